@@ -31,48 +31,128 @@ import javax.swing.*;
 import java.awt.*;
 import java.awt.event.*;
 import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.awt.image.SinglePixelPackedSampleModel;
+import java.awt.image.WritableRaster;
 import java.io.*;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.lang.ref.SoftReference;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.IntBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
+import java.nio.file.Path;
 import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.text.SimpleDateFormat;
 import java.util.List;
 import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Consumer;
+import java.util.function.UnaryOperator;
+import java.util.logging.ErrorManager;
+import java.util.logging.Handler;
 import java.util.logging.Level;
+import java.util.logging.LogRecord;
 import java.util.logging.Logger;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
 
 public class ImageRecognition {
     private static final Eye EYE = new Eye();
-    private static AppState currentState = null;
     private static int selectedScreen = -1;
     private static Rectangle selectedArea;
     private static Rectangle selectedMonitor;
-    private static BufferedImage currentScreenshot;
+    private static volatile BufferedImage currentScreenshot;
+    private static CaptureFrame currentFrame = null;
+    private static CaptureFrame previousFrame = null;
+    private static FramePool framePool = new FramePool(4);
+    private static final CaptureScheduler captureScheduler = new CaptureScheduler();
+    private static final FrameHistory frameHistory = new FrameHistory(8);
+    private static final SessionRecorder sessionRecorder = new SessionRecorder();
+    private static final RetryReport retryReport = new RetryReport();
+    private static final Map<String, TemplateFeatures> templateFeatures = new ConcurrentHashMap<>();
+    private static final Map<Widget, LocatedMatch> locatedMatches = new ConcurrentHashMap<>();
+    private static WidgetHistory widgetHistory = null;
+    private static TemplateFeatures frameFeatures = null;
+    private static long frameFeaturesId = -1;
+    private static List<TemplateMatcher> matchers = createEyeMatchers();
+    private static Map<String, List<TemplateMatcher>> matcherChains = Collections.singletonMap("eye", matchers);
     private static final Logger LOGGER = Logger.getLogger(ImageRecognition.class.getName());
-    private static Widget.WidgetType currentWidgetType = Widget.WidgetType.ACTION;
-    private static Widget.WidgetSubtype currentWidgetSubtype = Widget.WidgetSubtype.DOUBLE_CLICK_ACTION;
-    protected static boolean isControlClicked = false;
-    protected static boolean isShiftClicked = false;
+    private static final EventLog EVENTS = new EventLog(LOGGER);
+    private static AsyncLogHandler asyncLogHandler = null;
+    private static volatile PluginState plugin = new PluginState();
+    private static final PluginLoop pluginLoop = new PluginLoop("ImageRecognition-loop");
     private static long startTypeTime = 0;
-    private static Point dragStartPoint = null;
-    private static Point dragCurrentPoint = null;
     private static final Color overlayColor = new Color(0, 0, 0, 80);
     private static final Color circleColor = new Color(255, 0, 0, 255);
     private static final Properties keyBindings = new Properties();
-    private static int defaultDimensionWidth = 150;
-    private static int defaultDimensionHeight = 150;
-    private static long mayInsertDragDrop = 0;
     private static final float ONE_MILLION = 1000000.0f;
+    // Only used on the plugin loop thread, see PluginLoop.
+    private static long mayInsertDragDrop = 0;
     private static final LinkedList<AppState> previousState = new LinkedList<>();
     private static boolean shouldInsertState = true;
     private static boolean firstSelected = false;
     private static boolean secondSelected = false;
     private static Point upperLeft = null;
     private static Point lowerRight = null;
-    private static Widget latestTypeWidget = null;
     private static Robot robot = null;
+    private static ScreenCapturer screenCapturer = null;
     private static ArrayList<GraphicsDevice> graphicDevices = new ArrayList<>();
-    private static Widget repairWidget = null;
-    private static int minimumMatchPercent = 100;
+    private static final String SETTINGS_FILE = "./settings/ImageRecognition.keybindings.properties";
+    private static final long SETTINGS_RELOAD_DELAY_MS = 200;
+    private static volatile Settings settings = Settings.from(new Properties());
+    private static Thread settingsWatcher = null;
+    private static final int MENU_POLL_INTERVAL_MS = 100;
+    private static final int MAX_INDEXED_STATES = 64;
+    private static final ExecutorService fileExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ImageRecognition-files");
+        t.setDaemon(true);
+        return t;
+    });
+    private static final ExecutorService suiteExecutor = Executors.newSingleThreadExecutor(r -> {
+        Thread t = new Thread(r, "ImageRecognition-suite");
+        t.setDaemon(true);
+        return t;
+    });
+    private static volatile SuiteRun activeRun = null;
+    private static volatile CompletableFuture<Void> statePass = CompletableFuture.completedFuture(null);
+    private static final Map<AppState, WidgetIndex> widgetIndexes = new LinkedHashMap<AppState, WidgetIndex>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<AppState, WidgetIndex> eldest) {
+            return size() > MAX_INDEXED_STATES;
+        }
+    };
 
     /**
      * Delegate method that Scout calls on to start a session.
@@ -82,24 +162,24 @@ public class ImageRecognition {
             NOTE: We had to manually set SessionState to running.
         */
         StateController.setSessionState(StateController.SessionState.RUNNING);
-        currentState = StateController.getCurrentState();
+        update(s -> s.withCurrentState(StateController.getCurrentState()));
+
+        // The state tree may have been changed or reloaded since the last session.
+        synchronized (widgetIndexes) {
+            widgetIndexes.clear();
+        }
 
-        // Default logging level
+        // Default logging level, written from a background thread.
         LOGGER.setLevel(Level.INFO);
 
         // RecognitionMode.EXACT has better performance on larger images.
         EYE.setRecognitionMode(Eye.RecognitionMode.EXACT);
 
-        // Attempt to get the key bindings and apply them.
+        // Attempt to get the key bindings and apply them, and apply them again whenever the file changes.
         getOrCreateKeybindings();
-
-        // Set up the application runtime values.
-        minimumMatchPercent =  trySetDefaultIntegers("minmatchpercent", 100);
-        defaultDimensionWidth = trySetDefaultIntegers("defaultwidgetwidth", 150);
-        defaultDimensionHeight = trySetDefaultIntegers("defaultwidgetheight", 150);
-
-        LOGGER.info("Minimum match = " + minimumMatchPercent + "% | Default widget size = [w="
-                + defaultDimensionWidth + ",h=" + defaultDimensionHeight +"]");
+        publishSettings(Settings.from(keyBindings), true);
+        startSettingsWatcher();
+        installAsyncLogging(settings.logBufferSize);
 
         try {
             GlobalScreen.registerNativeHook();
@@ -140,15 +220,18 @@ public class ImageRecognition {
     public void paintCaptureForeground(Graphics g) {
         if(StateController.isOngoingSession() && !StateController.isToolbarVisible()) {
 
-            if(isControlClicked && isShiftClicked) {
+            PluginState s = plugin;
+            if(s.isControlClicked && s.isShiftClicked) {
                 // early kill, no need to draw.
-                if (dragStartPoint == null)
+                if (s.dragStartPoint == null)
                     return;
-                else if (dragCurrentPoint == null) // have gotten the start drag point, but not the current. create min size.
-                    dragCurrentPoint = new Point(dragStartPoint.x + 1, dragStartPoint.y + 1);
+
+                // have gotten the start drag point, but not the current. create min size.
+                Point dragCurrentPoint = s.dragCurrentPoint != null ? s.dragCurrentPoint
+                        : new Point(s.dragStartPoint.x + 1, s.dragStartPoint.y + 1);
 
                 // Get the rectangle to draw.
-                Rectangle draw = getRectangleFromPoints(dragStartPoint, dragCurrentPoint, true);
+                Rectangle draw = getRectangleFromPoints(s.dragStartPoint, dragCurrentPoint, true);
 
                 // set rendering hints, color. draw rectangle.
                 Graphics2D g2d = (Graphics2D) g;
@@ -159,9 +242,8 @@ public class ImageRecognition {
                 g2d.setColor(circleColor);
                 g2d.drawOval(draw.x + (draw.width / 2), draw.y + (draw.height / 2), 3, 3);
             }
-            else {
-                dragStartPoint = null;
-                dragCurrentPoint = null;
+            else if (s.dragStartPoint != null || s.dragCurrentPoint != null) {
+                update(p -> p.withDragStartPoint(null).withDragCurrentPoint(null));
             }
         }
     }
@@ -199,6 +281,8 @@ public class ImageRecognition {
      */
     public void promptSelection(BufferedImage screenshot) {
         JFrame screenShotFrame = new JFrame();
+        firstSelected = false;
+        secondSelected = false;
         //BufferedImage minimizedScreenshot = resizeImage(screenshot,StateController.getProductViewWidth(),StateController.getProductViewHeight());
         JLabel temp = new JLabel(new ImageIcon(screenshot));
 
@@ -210,15 +294,16 @@ public class ImageRecognition {
             @Override
             public void mouseClicked(MouseEvent e) {
                 super.mouseClicked(e);
+                // The label shows the screenshot unscaled, so the click point is in monitor coordinates.
                 if(!firstSelected) {
-                    upperLeft = MouseInfo.getPointerInfo().getLocation();
+                    upperLeft = e.getPoint();
                     firstSelected = true;
                 }
                 else if (!secondSelected) {
-                    lowerRight = MouseInfo.getPointerInfo().getLocation();
+                    lowerRight = e.getPoint();
                     secondSelected = true;
-                    screenShotFrame.setVisible(false);
-                    selectedArea = getRectangleFromPoints(upperLeft, lowerRight, false);
+                    screenShotFrame.dispose();
+                    setSelectedArea(getRectangleFromPoints(upperLeft, lowerRight, false), screenshot);
                 }
             }
         });
@@ -226,6 +311,38 @@ public class ImageRecognition {
         screenShotFrame.setVisible(true);
     }
 
+    /**
+     * Helper method to restrict the capture to a region of the selected monitor.
+     * @param area The {@link java.awt.Rectangle Rectangle} to capture, in monitor coordinates.
+     * @param screenshot A screenshot of the selected monitor, used to clamp the area to the monitor bounds.
+     */
+    private void setSelectedArea(Rectangle area, BufferedImage screenshot) {
+        Rectangle clamped = area.intersection(new Rectangle(0, 0, screenshot.getWidth(), screenshot.getHeight()));
+
+        if(clamped.width < 2 || clamped.height < 2) {
+            StateController.displayMessage("Selected area was too small, capturing the whole screen.", 2000);
+            selectedArea = null;
+            return;
+        }
+
+        selectedArea = clamped;
+        StateController.displayMessage("Capturing area [x=" + clamped.x + ",y=" + clamped.y + ",w=" + clamped.width +
+                ",h=" + clamped.height + "]", 2000);
+        LOGGER.info("Capture restricted to " + clamped);
+    }
+
+    /**
+     * Helper method to get the part of the desktop that is captured.
+     * @return The {@link #selectedArea} in desktop coordinates if one is selected, otherwise the {@link #selectedMonitor}.
+     */
+    private static Rectangle getCaptureBounds() {
+        if(selectedArea == null)
+            return selectedMonitor;
+
+        return new Rectangle(selectedMonitor.x + selectedArea.x, selectedMonitor.y + selectedArea.y,
+                selectedArea.width, selectedArea.height);
+    }
+
     /**
      * Helper method that handles the sleep call and its throws to not have to do it multiple times.
      * @param amountOfMS the amount of milliseconds to sleep for.
@@ -243,25 +360,263 @@ public class ImageRecognition {
         }
     }
 
+    /**
+     * Helper method to locate a widget on the current screenshot with each matcher of its chain in turn,
+     * from the strictest to the most tolerant, until one of them finds it.
+     * @param toFind The {@link scout.Widget Widget} to locate.
+     * @return The {@link Match Match} of the first matcher that found the widget, or null.
+     */
     private Match tryAllThreeModes(Widget toFind) {
-        Match match = null;
-        Eye.RecognitionMode savedRecognitionMode = EYE.getRecognitionMode();
+        FoundMatch found = tryAllThreeModes(toFind, loadWidgetImage(toFind));
+        return found == null ? null : found.match;
+    }
 
-        EYE.setRecognitionMode(Eye.RecognitionMode.EXACT);
-        match = findWidget(toFind);
-        if(match == null){
-            EYE.setRecognitionMode(Eye.RecognitionMode.COLOR);
-            match = findWidget(toFind);
-            if(match == null){
-                EYE.setRecognitionMode(Eye.RecognitionMode.TOLERANT);
-                match = findWidget(toFind);
+    /**
+     * Helper method to locate a widget whose image is already loaded, see {@link #tryAllThreeModes(Widget)}.
+     * @param toFind The {@link scout.Widget Widget} to locate.
+     * @param find The image of the widget, may be null.
+     * @return The {@link FoundMatch FoundMatch} of the first matcher that found the widget, or null.
+     */
+    private FoundMatch tryAllThreeModes(Widget toFind, BufferedImage find) {
+        return tryAllThreeModes(toFind, find, null);
+    }
+
+    /**
+     * Helper method to locate a widget within an area of the current screenshot, see {@link #tryAllThreeModes(Widget)}.
+     * @param toFind The {@link scout.Widget Widget} to locate.
+     * @param find The image of the widget, may be null.
+     * @param region The area of the screenshot to search, or null to search all of it.
+     * @return The {@link FoundMatch FoundMatch} of the first matcher that found the widget, or null.
+     */
+    private FoundMatch tryAllThreeModes(Widget toFind, BufferedImage find, Rectangle region) {
+        if(find == null)
+            return null;
+
+        List<TemplateMatcher> chain = getMatchers(toFind);
+        if(isRuledOut(toFind, find, chain))
+            return null;
+
+        for(TemplateMatcher matcher : chain) {
+            Match match = findWidget(find, matcher, region);
+            if(match != null)
+                return new FoundMatch(match, matcher.getName());
+        }
+
+        return null;
+    }
+
+    /**
+     * Helper method to check the {@link TemplateFeatures TemplateFeatures} of a widget image against those of the
+     * current screenshot, when the "prefilter" setting is on and every matcher of the chain compares colors.
+     * @param w The {@link scout.Widget Widget} to locate.
+     * @param find The image of the widget.
+     * @param chain The matchers that would search for the widget.
+     * @return True if the widget can not be on the screenshot and searching for it can be skipped.
+     */
+    private boolean isRuledOut(Widget w, BufferedImage find, List<TemplateMatcher> chain) {
+        Settings s = settings;
+        if(!s.prefilter)
+            return false;
+        for(TemplateMatcher matcher : chain) {
+            if(!matcher.comparesColors())
+                return false;
+        }
+
+        TemplateFeatures frameFeatures = getFrameFeatures();
+        if(frameFeatures == null)
+            return false;
+
+        String imageName = (String) w.getMetadata("IR_imageName");
+        TemplateFeatures features = getTemplateFeatures(imageName, find);
+        if(features.mayBeIn(frameFeatures, s.prefilterSlack / 100.0))
+            return false;
+
+        EVENTS.event(Level.FINE, "prefilter-skip", "image", imageName);
+        return true;
+    }
+
+    /**
+     * Helper method to get the {@link TemplateFeatures TemplateFeatures} of a widget image from memory, from its
+     * sidecar file, or by computing them and writing the sidecar file for images saved before sidecars existed.
+     * @param imageName The name of the image.
+     * @param image The image.
+     * @return The features.
+     */
+    private TemplateFeatures getTemplateFeatures(String imageName, BufferedImage image) {
+        TemplateFeatures features = templateFeatures.get(imageName);
+        if(features != null)
+            return features;
+
+        String imagePath = getProjectFileLocationForName(imageName);
+        Path sidecar = imagePath == null ? null : TemplateFeatures.getSidecar(Paths.get(imagePath));
+        if(sidecar != null && Files.exists(sidecar)) {
+            try {
+                features = TemplateFeatures.load(sidecar);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warning("Failed to read the features of " + imageName + " | " + e);
+            }
+        }
+
+        if(features == null) {
+            features = TemplateFeatures.of(image);
+            if(sidecar != null)
+                saveTemplateFeatures(features, sidecar);
+        }
+
+        templateFeatures.put(imageName, features);
+        return features;
+    }
+
+    /**
+     * Helper method to write the sidecar file of a widget image.
+     * @param features The {@link TemplateFeatures TemplateFeatures} of the image.
+     * @param sidecar The path of the sidecar file.
+     */
+    private static void saveTemplateFeatures(TemplateFeatures features, Path sidecar) {
+        try {
+            features.save(sidecar);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to save the features to " + sidecar + " | " + e);
+        }
+    }
+
+    /**
+     * Helper method to get the {@link TemplateFeatures TemplateFeatures} of the current screenshot, they are
+     * computed once per captured frame.
+     * @return The features, or null if nothing has been captured yet.
+     */
+    private static TemplateFeatures getFrameFeatures() {
+        CaptureFrame frame = retainCurrentFrame();
+        if(frame == null)
+            return null;
+
+        try {
+            synchronized (templateFeatures) {
+                if(frameFeatures == null || frameFeaturesId != frame.getId()) {
+                    frameFeatures = TemplateFeatures.of(frame.getImage());
+                    frameFeaturesId = frame.getId();
+                }
+                return frameFeatures;
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Helper method to load the image of a widget from the project image directory.
+     * @param w The {@link scout.Widget Widget} with the "IR_imageName" metadata.
+     * @return The image, or null if it could not be loaded.
+     */
+    BufferedImage loadWidgetImage(Widget w) {
+        String filePath = (String) w.getMetadata("IR_imageName");
+        return filePath == null ? null : EYE.loadImage(getProjectFileLocationForName(filePath));
+    }
+
+    /**
+     * Helper method to locate all widgets that appear pixel for pixel on the current screenshot, in a single
+     * pass over it with the {@link MultiTemplateMatcher MultiTemplateMatcher}.
+     * @param widgets The {@link scout.Widget Widgets} to locate, those that are not UNLOCATED are skipped.
+     * @param widgetImages The loaded images of the widgets.
+     * @return The exact matches of the widgets that were found.
+     */
+    private Map<Widget, Match> findExactMatches(List<Widget> widgets, Map<Widget, BufferedImage> widgetImages) {
+        List<Widget> searched = new ArrayList<>();
+        List<BufferedImage> templates = new ArrayList<>();
+        for(Widget w : widgets) {
+            BufferedImage image = widgetImages.get(w);
+            if(image != null && w.getWidgetStatus() == Widget.WidgetStatus.UNLOCATED) {
+                searched.add(w);
+                templates.add(image);
+            }
+        }
+
+        Map<Widget, Match> found = new HashMap<>();
+        CaptureFrame frame = templates.isEmpty() ? null : retainCurrentFrame();
+        if(frame == null)
+            return found;
+
+        try {
+            Match[] matches = MultiTemplateMatcher.findAll(frame.getImage(), templates, null);
+            for(int i = 0; i < matches.length; i++) {
+                if(matches[i] != null)
+                    found.put(searched.get(i), matches[i]);
             }
+        } finally {
+            frame.release();
+        }
+
+        EVENTS.event(Level.FINE, "single-pass", "located", found.size(), "searched", searched.size());
+        return found;
+    }
+
+    /**
+     * Helper method to get the chain of matchers to locate a widget with.
+     * @param w The {@link scout.Widget Widget}, its "IR_matcher" metadata selects a chain other than the global one.
+     * @return The {@link TemplateMatcher TemplateMatchers} to try, from the strictest to the most tolerant.
+     */
+    private static List<TemplateMatcher> getMatchers(Widget w) {
+        Object name = w.getMetadata("IR_matcher");
+        if(name != null) {
+            List<TemplateMatcher> chain = matcherChains.get(name.toString());
+            if(chain != null)
+                return chain;
+        }
+
+        return matchers;
+    }
+
+    /**
+     * Helper method to create the chains of matchers, and select the global one through the "matcher" setting.
+     *
+     * The chains are "eye" (Eye in EXACT, COLOR and TOLERANT mode), "pixel" (exact and then tolerant pixel
+     * comparison) and "ncc" (normalized cross-correlation).
+     */
+    private static void createMatchers(Settings s) {
+        int threads = s.matcherThreads;
+        int tolerance = s.pixelTolerance;
+        int fftMinPixels = s.nccFftPixels;
+
+        Map<String, List<TemplateMatcher>> chains = new LinkedHashMap<>();
+        chains.put("eye", createEyeMatchers());
+        chains.put("pixel", Arrays.asList(new PixelTemplateMatcher(0, threads), new PixelTemplateMatcher(tolerance, threads)));
+        chains.put("ncc", Collections.singletonList(new NccTemplateMatcher(threads, fftMinPixels)));
+
+        String name = s.matcher;
+        if(!chains.containsKey(name)) {
+            LOGGER.warning("Unknown matcher [" + name + "], using eye.");
+            name = "eye";
         }
-        else if(match.getMatchPercent() < minimumMatchPercent)
-            LOGGER.info("match% tryallthree = " + match.getMatchPercent());
 
-        EYE.setRecognitionMode(savedRecognitionMode);
-        return match;
+        Map<String, List<TemplateMatcher>> oldChains = matcherChains;
+        matcherChains = chains;
+        matchers = chains.get(name);
+
+        for(List<TemplateMatcher> chain : oldChains.values())
+            for(TemplateMatcher matcher : chain)
+                matcher.close();
+    }
+
+    /**
+     * Helper method to switch a widget to the next chain of matchers, or back to the global one after the last.
+     * @param w The {@link scout.Widget Widget} to switch.
+     */
+    private void cycleWidgetMatchers(Widget w) {
+        List<String> names = new ArrayList<>(matcherChains.keySet());
+        Object current = w.getMetadata("IR_matcher");
+        int next = current == null ? 0 : names.indexOf(current.toString()) + 1;
+        String name = next < names.size() ? names.get(next) : null;
+
+        w.putMetadata("IR_matcher", name);
+        StateController.displayMessage("Widget matcher: " + (name == null ? "global (" + settings.matcher + ")" : name), 2000);
+    }
+
+    /**
+     * @return The Eye matchers in the order EXACT, COLOR, TOLERANT.
+     */
+    private static List<TemplateMatcher> createEyeMatchers() {
+        return Arrays.asList(new EyeMatcher(Eye.RecognitionMode.EXACT), new EyeMatcher(Eye.RecognitionMode.COLOR),
+                new EyeMatcher(Eye.RecognitionMode.TOLERANT));
     }
 
     /**
@@ -270,17 +625,32 @@ public class ImageRecognition {
      * @return true if performed, false otherwise.
      */
     private boolean performImageWidget(Widget w) {
+        return performImageWidget(w, null);
+    }
+
+    /**
+     * The method that performs the actions of the image widgets, see {@link #performImageWidget(Widget)}.
+     * @param w The ImageRecognition plugin widget to be performed.
+     * @param located A {@link Match Match} of the widget that is already known, or null to locate it.
+     * @return true if performed, false otherwise.
+     */
+    private boolean performImageWidget(Widget w, Match located) {
 
         // Init variables
         long startx = System.nanoTime();
-        Match match = tryAllThreeModes(w);
+        Match match = located != null ? located : takeLocatedMatch(w);
+        if(match == null)
+            match = tryAllThreeModes(w);
+        else if(located == null)
+            EVENTS.event(Level.FINE, "match-reused", "image", w.getMetadata("IR_imageName"));
         boolean found = true;
 
 
         // Handle the matched widgets and perform them.
-        if(match != null && match.getMatchPercent() >= minimumMatchPercent) {
-            LOGGER.info("Match %"+ match.getMatchPercent());
-            w.setLocationArea(new Rectangle(match.getX(), match.getY(), match.getWidth(), match.getHeight()));
+        if(match != null && match.getMatchPercent() >= settings.minMatchPercent) {
+            EVENTS.event(Level.INFO, "match", "image", w.getMetadata("IR_imageName"), "percent", match.getMatchPercent(),
+                    "x", match.getX(), "y", match.getY());
+            setWidgetLocation(w, new Rectangle(match.getX(), match.getY(), match.getWidth(), match.getHeight()));
             if(w.getWidgetType() == Widget.WidgetType.ACTION && w.getWidgetSubtype() == Widget.WidgetSubtype.DOUBLE_CLICK_ACTION){
                 LOGGER.info("Action & Double Click");
                 moveMouseAction(w,match.getCenterLocation());
@@ -306,13 +676,13 @@ public class ImageRecognition {
             }
         }
         else{
-            LOGGER.fine("Didn't find match for widget with image path: " + w.getMetadata("IR_imageName"));
+            EVENTS.event(Level.FINE, "no-match", "image", w.getMetadata("IR_imageName"));
             w.setWidgetStatus(Widget.WidgetStatus.UNLOCATED);
             found = false;
         }
 
 
-        LOGGER.finer("TIME: [" + ((System.nanoTime() - startx) / ONE_MILLION) + " ms]");
+        LOGGER.finer(() -> "TIME: [" + ((System.nanoTime() - startx) / ONE_MILLION) + " ms]");
 
         return found;
     }
@@ -328,8 +698,11 @@ public class ImageRecognition {
      * @param p The {@link java.awt.Point Point} at where the widget should be performed.
      */
     private void moveMouseAction(Widget w, Point p) {
+        captureScheduler.boost();
+        sessionRecorder.noteAction("Perform " + w.getWidgetSubtype() + " " + w.getMetadata("IR_imageName") + " at " + p.x + "," + p.y);
         Point absoluteMousePoint = MouseInfo.getPointerInfo().getLocation();
-        robot.mouseMove(p.x + selectedMonitor.x,p.y + selectedMonitor.y);
+        Rectangle captureBounds = getCaptureBounds();
+        robot.mouseMove(p.x + captureBounds.x,p.y + captureBounds.y);
         if(w.getWidgetSubtype()  == Widget.WidgetSubtype.LEFT_CLICK_ACTION)
             singleLeftClick();
         else if(w.getWidgetSubtype()  == Widget.WidgetSubtype.RIGHT_CLICK_ACTION)
@@ -361,17 +734,20 @@ public class ImageRecognition {
         }
         else if(w.getWidgetSubtype() == Widget.WidgetSubtype.PASTE_ACTION){
             singleLeftClick(); // Perform first widget click.
-            sleepForAmountMS(1500);
             String fileName = (String) w.getMetadata("IR_secondImageWidget");
             if (fileName != null)
             {
                 BufferedImage secondImage = EYE.loadImage(getProjectFileLocationForName(fileName));
-                Match match = EYE.findImage(currentScreenshot, secondImage);
+                Match match = null;
+
+                // The menu is not on the current screenshot yet, wait for it to render close to the first click.
+                if(secondImage != null)
+                    match = waitForImageNear(secondImage, p);
 
                 if(match != null){
 
-                    robot.mouseMove(match.getCenterLocation().x + selectedMonitor.x,
-                            match.getCenterLocation().y + selectedMonitor.y);
+                    robot.mouseMove(match.getCenterLocation().x + captureBounds.x,
+                            match.getCenterLocation().y + captureBounds.y);
                     singleLeftClick(); // Perform second widget click.
                 }
                 else {
@@ -388,6 +764,62 @@ public class ImageRecognition {
 
     }
 
+    /**
+     * Helper method that waits for an image to appear close to a point on the captured area.
+     *
+     * A fresh screenshot is captured on every attempt since the image is expected to show up as a
+     * result of an action (e.g. a menu opening after a click), so {@link #currentScreenshot} is stale.
+     * Only the area within {@link Settings#menuSearchRadius} pixels of the point is searched.
+     *
+     * @param image The {@link java.awt.image.BufferedImage BufferedImage} to look for.
+     * @param p The {@link java.awt.Point Point}, relative to the captured area, to search around.
+     * @return The {@link Match Match} in capture coordinates, or null if the image did not appear
+     * before {@link Settings#menuWaitTimeout} ms had passed.
+     */
+    private Match waitForImageNear(BufferedImage image, Point p) {
+        long deadline = System.currentTimeMillis() + settings.menuWaitTimeout;
+        int tries = 0;
+
+        do {
+            CaptureFrame frame = captureFrame(getCaptureBounds());
+            tries++;
+
+            if(frame != null) {
+                try {
+                    Rectangle region = getSearchRegion(p, image, frame.getImage());
+                    Match match = matchers.get(0).find(frame.getImage(), image, region, settings.minMatchPercent);
+
+                    if(match != null && match.getMatchPercent() >= settings.minMatchPercent) {
+                        EVENTS.event(Level.FINE, "found-near", "point", p, "captures", tries);
+                        return match;
+                    }
+                } finally {
+                    frame.release();
+                }
+            }
+
+            sleepForAmountMS(MENU_POLL_INTERVAL_MS);
+        } while(System.currentTimeMillis() < deadline);
+
+        LOGGER.info("Image did not appear near " + p + " within " + settings.menuWaitTimeout + " ms (" + tries + " captures).");
+        return null;
+    }
+
+    /**
+     * Helper method to get the area of a frame to search for an image around a point.
+     * @param p The {@link java.awt.Point Point} to center the area on.
+     * @param image The image that will be searched for, the area is never smaller than it.
+     * @param frame The frame that the area has to fit within.
+     * @return The search area as a {@link java.awt.Rectangle Rectangle} in frame coordinates.
+     */
+    private Rectangle getSearchRegion(Point p, BufferedImage image, BufferedImage frame) {
+        int radiusX = Math.max(settings.menuSearchRadius, image.getWidth());
+        int radiusY = Math.max(settings.menuSearchRadius, image.getHeight());
+        Rectangle region = new Rectangle(p.x - radiusX, p.y - radiusY, radiusX * 2, radiusY * 2);
+
+        return region.intersection(new Rectangle(0, 0, frame.getWidth(), frame.getHeight()));
+    }
+
     /**
      * Delegate method that Scout calls on to get the image to display in the main window.
      * @return A {@link java.awt.image.BufferedImage BufferedImage} screenshot of the selected monitor/region.
@@ -399,19 +831,191 @@ public class ImageRecognition {
             selectedMonitor = graphicDevices.get(selectedScreen).getDefaultConfiguration().getBounds();
         }
 
-        if(isControlClicked && isShiftClicked){
+        if(plugin.isControlClicked && plugin.isShiftClicked){
             return currentScreenshot;
         }
-        if (lowerRight != null && upperLeft != null && false) { // TODO: Intentionally disabled for now.
-            BufferedImage imgTemp = getMonitorScreenshot(selectedMonitor);
-            currentScreenshot = EYE.getSubimage(imgTemp,selectedArea.x,selectedArea.y,selectedArea.width,selectedArea.height);
 
+        // While the screen is static the capture is only a probe, and the last capture is handed out again if the
+        // probe looks the same.
+        Rectangle bounds = getCaptureBounds();
+        long now = System.nanoTime();
+        boolean probing = currentScreenshot != null && !captureScheduler.isCaptureDue(now);
+
+        // Only the selected area (or the whole monitor) is captured, nothing outside of it is read from the screen.
+        long start = System.nanoTime();
+        CaptureFrame frame = captureFrame(bounds);
+        if(frame != null && probing && !captureScheduler.probed(frame, System.nanoTime() - start)) {
+            frame.release();
             return currentScreenshot;
         }
-        else{
-            currentScreenshot = getMonitorScreenshot(selectedMonitor);
-            return currentScreenshot;
+        if(frame != null) {
+            captureScheduler.captured(frame, System.nanoTime() - start);
+            long publishStart = System.nanoTime();
+            publishFrame(frame);
+            captureScheduler.published(System.nanoTime() - publishStart);
+        }
+
+        if(captureScheduler.isReportDue(now))
+            EVENTS.event(Level.INFO, "capture-rate", "perSecond", captureScheduler.getCaptureRate(),
+                    "cpuSavedMs", captureScheduler.getCpuSavedMs(), "skipped", captureScheduler.getSkipped());
+
+        return currentScreenshot;
+    }
+
+    /**
+     * Helper method to make a captured {@link CaptureFrame CaptureFrame} the {@link #currentScreenshot}.
+     *
+     * The two latest frames are kept, as Scout may still be painting the previous one. Older frames
+     * are released back to the {@link #framePool} once no matcher holds them.
+     * @param frame The newly captured frame, its reference is handed over to this method.
+     */
+    private static void publishFrame(CaptureFrame frame) {
+        CaptureFrame stale;
+
+        synchronized (ImageRecognition.class) {
+            stale = previousFrame;
+            previousFrame = currentFrame;
+            currentFrame = frame;
+            currentScreenshot = frame.getImage();
+        }
+
+        if(stale != null)
+            stale.release();
+
+        frameHistory.record(frame);
+        AppState state = plugin.currentState;
+        sessionRecorder.record(frame, state == null ? "" : state.getId());
+    }
+
+    /**
+     * Helper method to write what the plugin saw when it gave up on a widget to
+     * ./data/[product]/failures/[time]-[image]/, in the background: the frames of the {@link #frameHistory},
+     * the widget image, an analysis of the best candidate match of the latest frame and a short description.
+     * Nothing is written if the "failureframes" setting is 0.
+     * @param state The {@link scout.AppState AppState} the widget belongs to.
+     * @param w The {@link scout.Widget Widget} that was not found.
+     * @param template The image of the widget, may be null.
+     * @param attempts The number of attempts made.
+     * @param elapsedMs The time spent looking for the widget.
+     */
+    private void writeFailureBundle(AppState state, Widget w, BufferedImage template, int attempts, long elapsedMs) {
+        List<FrameHistory.Entry> frames = frameHistory.snapshot();
+        String imagePath = getProjectFileLocationForName("");
+        if(frames.isEmpty() || imagePath == null)
+            return;
+
+        String imageName = String.valueOf(w.getMetadata("IR_imageName"));
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss-SSS").format(new Date());
+        Path bundle = Paths.get(imagePath).resolveSibling("failures").resolve(time + "-" + imageName.replace(".png", ""));
+        StringBuilder description = new StringBuilder("state=").append(state.getId()).append("\nimage=").append(imageName)
+                .append("\ntype=").append(w.getWidgetType()).append("\nsubtype=").append(w.getWidgetSubtype())
+                .append("\nattempts=").append(attempts).append("\nelapsedMs=").append(elapsedMs)
+                .append("\nminmatchpercent=").append(settings.minMatchPercent).append("\nmatchers=");
+        for(TemplateMatcher matcher : getMatchers(w))
+            description.append(matcher.getName()).append(' ');
+        description.append('\n');
+
+        fileExecutor.execute(() -> {
+            try {
+                Files.createDirectories(bundle);
+                BufferedImage latest = null;
+                for(FrameHistory.Entry entry : frames) {
+                    latest = entry.decode();
+                    Eye.savePngImage(latest, bundle.resolve("frame-" + entry.getId() + ".png").toString());
+                }
+
+                StringBuilder info = new StringBuilder(description);
+                if(template != null) {
+                    Eye.savePngImage(template, bundle.resolve("template.png").toString());
+
+                    // A private Eye, the shared ones may be searching on other threads.
+                    Eye eye = new Eye();
+                    Match best = eye.findImage(latest, template);
+                    if(best != null) {
+                        info.append("bestmatch=").append(best.getMatchPercent()).append("% at ").append(best.getX())
+                                .append(',').append(best.getY()).append('\n');
+                        Eye.savePngImage(eye.createMatchAnalysis(latest, best), bundle.resolve("analysis.png").toString());
+                    }
+                    else
+                        info.append("bestmatch=none\n");
+                }
+
+                Files.write(bundle.resolve("info.txt"), info.toString().getBytes(StandardCharsets.UTF_8));
+                LOGGER.info("Wrote failure bundle " + bundle);
+            } catch (IOException | RuntimeException e) {
+                LOGGER.warning("Failed to write failure bundle " + bundle + " | " + ExceptionUtils.getStackTrace(e));
+            }
+        });
+    }
+
+    /**
+     * Helper method to hold on to the current frame while working on it, so it is not recycled by a new capture.
+     * @return The retained current {@link CaptureFrame CaptureFrame}, which has to be released by the caller, or null if
+     * nothing has been captured yet.
+     */
+    private static CaptureFrame retainCurrentFrame() {
+        synchronized (ImageRecognition.class) {
+            return currentFrame == null ? null : currentFrame.retain();
+        }
+    }
+
+    /**
+     * @return The {@link CaptureFrame#getId() id} of the current frame, or -1 if nothing has been captured yet.
+     */
+    private static long getCurrentFrameId() {
+        CaptureFrame frame = retainCurrentFrame();
+        if(frame == null)
+            return -1;
+
+        try {
+            return frame.getId();
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Helper method to remember where a widget was located, so that performing it does not have to search again.
+     * Only remembered while the frame that was searched is still the current one, so that the area of the match
+     * holds what was found.
+     * @param w The {@link scout.Widget Widget} that was located.
+     * @param match Where it was located.
+     * @param frameId The id of the current frame from before the search.
+     */
+    private static void rememberLocatedMatch(Widget w, Match match, long frameId) {
+        CaptureFrame frame = retainCurrentFrame();
+        if(frame == null)
+            return;
+
+        try {
+            if(frame.getId() == frameId)
+                locatedMatches.put(w, new LocatedMatch(match, frameId, LocatedMatch.areaHash(frame, match)));
+        } finally {
+            frame.release();
+        }
+    }
+
+    /**
+     * Helper method to take the remembered location of a widget, see {@link #rememberLocatedMatch(Widget, Match, long)}.
+     * @param w The {@link scout.Widget Widget} to perform.
+     * @return The {@link Match Match}, or null if there is none or a newer frame differs in its area.
+     */
+    private static Match takeLocatedMatch(Widget w) {
+        LocatedMatch located = locatedMatches.remove(w);
+        if(located == null)
+            return null;
+
+        CaptureFrame frame = retainCurrentFrame();
+        if(frame == null)
+            return null;
+
+        try {
+            if(frame.getId() == located.frameId || LocatedMatch.areaHash(frame, located.match) == located.areaHash)
+                return located.match;
+        } finally {
+            frame.release();
         }
+        return null;
     }
 
     /**
@@ -419,42 +1023,149 @@ public class ImageRecognition {
      */
     public void changeState() {
         LOGGER.finer("Changed state");
+        AppState state = StateController.getCurrentState();
+
+        // Scout calls this from the suite thread and the EDT too, the state history belongs to the plugin loop.
+        pluginLoop.runAndWait(() -> {
+            // Preserve history of previous states.
+            // TODO: This is not perfect if manual back/forwards/home-commands are used.
+            if(shouldInsertState)
+                previousState.push(plugin.currentState);
+            else
+                shouldInsertState = true;
 
-        // Preserve history of previous states.
-        // TODO: This is not perfect if manual back/forwards/home-commands are used.
-        if(shouldInsertState)
-            previousState.push(currentState);
-        else
-            shouldInsertState = true;
-
-        currentState = StateController.getCurrentState();
+            update(s -> s.withCurrentState(state));
+        });
 
         // Force re-check of all widgets on the new state.
-        for(Widget w : currentState.getAllWidgets()){
+        for(Widget w : state.getAllWidgets()){
             w.setWidgetStatus(Widget.WidgetStatus.UNLOCATED);
         }
 
-        performAllStateWidgets(MAX_DEPTH, currentState, false);
+        // Reached from an action on the plugin loop, the search would hold back the commands queued behind it,
+        // such as the release of CTRL and SHIFT, for up to the state deadline.
+        if(pluginLoop.isLoopThread())
+            statePass = CompletableFuture.runAsync(() -> locateStateWidgets(state), suiteExecutor);
+        else
+            performAllStateWidgets(MAX_DEPTH, state, false);
     }
 
-    private Match findWidget(Widget w){
-        String filePath = (String) w.getMetadata("IR_imageName");
-        BufferedImage find = EYE.loadImage(getProjectFileLocationForName(filePath));
+    /**
+     * Helper method to locate the widgets of a state on the suite thread, unless the current state changed again
+     * while the search was waiting for the thread.
+     * @param state The {@link scout.AppState AppState} to locate the widgets of.
+     */
+    private void locateStateWidgets(AppState state) {
+        if(StateController.getCurrentState() != state)
+            return;
+
+        try {
+            performAllStateWidgets(MAX_DEPTH, state, false);
+        } catch (RuntimeException e) {
+            LOGGER.warning("Locating the widgets of the state failed. | " + ExceptionUtils.getStackTrace(e));
+        }
+    }
+
+    /**
+     * Helper method to locate a widget image on the current screenshot.
+     * @param find The image of the widget.
+     * @param matcher The {@link TemplateMatcher TemplateMatcher} to search with.
+     * @return The {@link Match Match} if it reaches the {@link Settings#minMatchPercent}, otherwise null.
+     */
+    private Match findWidget(BufferedImage find, TemplateMatcher matcher){
+        return findWidget(find, matcher, null);
+    }
+
+    /**
+     * Helper method to locate an image within an area of the current screenshot, see
+     * {@link #findWidget(BufferedImage, TemplateMatcher)}.
+     * @param region The area of the screenshot to search, or null to search all of it.
+     */
+    private Match findWidget(BufferedImage find, TemplateMatcher matcher, Rectangle region){
+        CaptureFrame frame = retainCurrentFrame();
 
-        if(find != null)
+        if(frame != null)
         {
-            Match match = EYE.findImage(currentScreenshot, find);
-            if(match != null && match.getMatchPercent() >= minimumMatchPercent)
+            Match match;
+            try {
+                match = matcher.find(frame.getImage(), find, region, settings.minMatchPercent);
+            } finally {
+                frame.release();
+            }
+
+            if(match != null && match.getMatchPercent() >= settings.minMatchPercent)
                 return match;
             else if(match != null)
-                LOGGER.info("Match was not null, but " + match.getMatchPercent() + "% instead of the minimum " +
-                        minimumMatchPercent + "%");
+                EVENTS.event(Level.INFO, "below-minimum", "matcher", matcher.getName(), "percent", match.getMatchPercent(),
+                        "minimum", settings.minMatchPercent);
         }
 
-
         return null;
     }
 
+    /**
+     * Helper method to get the widgets of the current state at a point, like
+     * {@link scout.StateController#getWidgetsAt(Point) StateController.getWidgetsAt} but through the
+     * {@link WidgetIndex WidgetIndex} of the state.
+     * @param location The {@link java.awt.Point Point} to look for widgets at.
+     * @return The widgets that are not hidden and whose location area contains the point, in state order.
+     */
+    private static List<Widget> getWidgetsAt(Point location) {
+        AppState state = StateController.getCurrentState();
+        if(state == null || location == null)
+            return new ArrayList<>();
+
+        List<Widget> found = getWidgetIndex(state).at(location);
+        found.removeIf(w -> w.getWidgetVisibility() == Widget.WidgetVisibility.HIDDEN);
+        return found;
+    }
+
+    /**
+     * Helper method to get the {@link WidgetIndex WidgetIndex} of a state, it is built on first use. The plugin
+     * keeps it up to date where it inserts, moves and removes widgets, see {@link #createAndAddWidget},
+     * {@link #setWidgetLocation}, {@link #removeWidget} and {@link #resetFromNode}, and drops every index when
+     * a session starts.
+     * @param state The {@link scout.AppState AppState} to get the index of.
+     * @return The index.
+     */
+    private static WidgetIndex getWidgetIndex(AppState state) {
+        synchronized (widgetIndexes) {
+            WidgetIndex index = widgetIndexes.get(state);
+            if(index == null) {
+                index = new WidgetIndex(state.getAllWidgets());
+                widgetIndexes.put(state, index);
+            }
+            return index;
+        }
+    }
+
+    /**
+     * Helper method to move a widget, keeping the {@link WidgetIndex WidgetIndex} of its state up to date.
+     * @param w The {@link scout.Widget Widget} to move.
+     * @param area The new location area.
+     */
+    private static void setWidgetLocation(Widget w, Rectangle area) {
+        w.setLocationArea(area);
+        synchronized (widgetIndexes) {
+            for(WidgetIndex index : widgetIndexes.values())
+                index.update(w);
+        }
+    }
+
+    /**
+     * Helper method to remove a widget from a state and from the {@link WidgetIndex WidgetIndex} of the state.
+     * @param state The {@link scout.AppState AppState} to remove the widget from.
+     * @param w The {@link scout.Widget Widget} to remove.
+     */
+    private static void removeWidget(AppState state, Widget w) {
+        state.removeWidget(w);
+        synchronized (widgetIndexes) {
+            WidgetIndex index = widgetIndexes.get(state);
+            if(index != null)
+                index.remove(w);
+        }
+    }
+
     /**
      * Helper method to retrieve Type action widgets from
      * @param location The {@link java.awt.Point Point} to look for Type action widgets at.
@@ -462,7 +1173,7 @@ public class ImageRecognition {
      */
     private Widget getTypeWidget(Point location)
     {
-        List<Widget> locatedWidgets = StateController.getWidgetsAt(location);
+        List<Widget> locatedWidgets = getWidgetsAt(location);
         for(Widget locatedWidget : locatedWidgets)
         {
             if(locatedWidget.getWidgetType() == Widget.WidgetType.ACTION &&
@@ -476,32 +1187,111 @@ public class ImageRecognition {
 
     /**
      * Helper method to delete all {@link scout.Widget Widgets} after a specific point on
-     * the state graph.
+     * the state graph. The subtree is collected first, without recursion, then the widgets are removed
+     * state by state. States on the current path are never entered, so widgets that lead back up the
+     * graph do not take the rest of the graph with them.
      * @param appState The {@link scout.AppState AppState} to start the deletion from.
-     * @param depth Sanity blocker variable to ensure that the recursion does not overflow.
+     * @param imageNames The names of the images of the removed widgets are added to this list.
+     * @return The number of removed widgets.
      */
-    private void resetFromNode(AppState appState,int depth){
-        List <Widget> stateWidgets = appState.getAllWidgets();
-
-        if(depth > 100) // Sanity blocker.
-            return;
-
-        for(Widget w: stateWidgets){
-            if(w.getNextState() != null && w.getNextState().getAllWidgets().size() > 0)
-                resetFromNode(w.getNextState(),++depth);
+    int resetFromNode(AppState appState, List<String> imageNames){
+        if(appState == null)
+            return 0;
+
+        Set<AppState> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+        visited.add(StateController.getCurrentState());
+        List<AppState> currentPath = StateController.getCurrentPath();
+        if(currentPath != null)
+            visited.addAll(currentPath);
+
+        List<AppState> subtree = new ArrayList<>();
+        ArrayDeque<AppState> open = new ArrayDeque<>();
+        open.push(appState);
+        while(!open.isEmpty()) {
+            AppState state = open.pop();
+            if(!visited.add(state))
+                continue;
+
+            subtree.add(state);
+            for(Widget w : state.getAllWidgets()) {
+                if(w.getNextState() != null)
+                    open.push(w.getNextState());
+            }
+        }
 
-            deleteFileWithName((String) w.getMetadata("IR_imageName"));
-            appState.removeWidget(w);
+        int removed = 0;
+        for(AppState state : subtree) {
+            for(Widget w : new ArrayList<>(state.getAllWidgets())) {
+                addImageNames(w, imageNames);
+                state.removeWidget(w);
+                if(w == plugin.latestTypeWidget)
+                    update(s -> s.withLatestTypeWidget(null));
+                if(w == plugin.repairWidget)
+                    update(s -> s.withRepairWidget(null));
+                if(w == plugin.menuWidget)
+                    update(s -> s.withMenuWidget(null));
+                removed++;
+            }
 
+            synchronized (widgetIndexes) {
+                widgetIndexes.remove(state);
+            }
         }
+        return removed;
     }
 
     /**
-     * Helper method to perform Type actions.
-     * @param location The {@link java.awt.Point Point} on which to perform the Type action.
+     * Helper method to collect the names of the images of a widget.
+     * @param w The {@link scout.Widget Widget}.
+     * @param imageNames The list to add the names to.
      */
-    private void performTypeAction(Point location) {
-        Widget existingTypeWidget = getTypeWidget(location);
+    private static void addImageNames(Widget w, List<String> imageNames) {
+        for(String key : new String[] {"IR_imageName", "IR_secondImageWidget"}) {
+            Object name = w.getMetadata(key);
+            if(name instanceof String)
+                imageNames.add((String) name);
+        }
+    }
+
+    /**
+     * Helper method to delete images from the project image directory on the background file thread.
+     * @param imageNames The names of the images to delete.
+     */
+    private void deleteImagesInBackground(List<String> imageNames) {
+        String imagePath = getProjectFileLocationForName("");
+        if(imagePath == null || imageNames.isEmpty())
+            return;
+
+        Path imageDirectory = Paths.get(imagePath);
+        fileExecutor.execute(() -> {
+            long start = System.nanoTime();
+            int deleted = 0;
+            for(String name : imageNames) {
+                if(name.contains("..")) {
+                    LOGGER.severe("Do not manipulate the path structure with the file name!");
+                    continue;
+                }
+
+                try {
+                    if(Files.deleteIfExists(imageDirectory.resolve(name)))
+                        deleted++;
+                    Files.deleteIfExists(TemplateFeatures.getSidecar(imageDirectory.resolve(name)));
+                    templateFeatures.remove(name);
+                } catch (IOException | SecurityException e) {
+                    LOGGER.warning("Failed to delete file with name - " + name + " - " + ExceptionUtils.getStackTrace(e));
+                }
+            }
+            LOGGER.info("Deleted " + deleted + " of " + imageNames.size() + " images, it took ["
+                    + ((System.nanoTime() - start) / ONE_MILLION) + "ms]");
+        });
+    }
+
+    /**
+     * Helper method to perform Type actions.
+     * @param location The {@link java.awt.Point Point} on which to perform the Type action.
+     */
+    private void performTypeAction(Point location) {
+        Widget existingTypeWidget = getTypeWidget(location);
 
         if(existingTypeWidget != null &&
                 StateController.getKeyboardInput().length() > 0 &&
@@ -516,8 +1306,8 @@ public class ImageRecognition {
                 StateController.clearKeyboardInput();
                 displayTypeWidgetClickSelection(existingTypeWidget);
 
-                if(latestTypeWidget == existingTypeWidget)
-                    latestTypeWidget = null;
+                if(plugin.latestTypeWidget == existingTypeWidget)
+                    update(s -> s.withLatestTypeWidget(null));
             }
         }
         else{
@@ -539,15 +1329,15 @@ public class ImageRecognition {
         JLabel infoText = new JLabel("Please select the amount of clicks to perform");
         JButton oneClick = new JButton("ONE CLICK");
         oneClick.setSize(40,40);
-        oneClick.addActionListener( x -> handleTypeWidgetClickSelection(x, w, performFrame));
+        oneClick.addActionListener( x -> pluginLoop.execute(() -> handleTypeWidgetClickSelection(x, w, performFrame)));
 
         JButton twoClick = new JButton("TWO CLICKS");
         twoClick.setSize(40,40);
-        twoClick.addActionListener( x -> handleTypeWidgetClickSelection(x, w, performFrame));
+        twoClick.addActionListener( x -> pluginLoop.execute(() -> handleTypeWidgetClickSelection(x, w, performFrame)));
 
         JButton threeClick = new JButton("THREE CLICKS");
         threeClick.setSize(40,40);
-        threeClick.addActionListener( x -> handleTypeWidgetClickSelection(x, w, performFrame));
+        threeClick.addActionListener( x -> pluginLoop.execute(() -> handleTypeWidgetClickSelection(x, w, performFrame)));
 
         attentionTxt.setAlignmentX(Component.CENTER_ALIGNMENT);
         infoText.setAlignmentX(Component.CENTER_ALIGNMENT);
@@ -631,7 +1421,7 @@ public class ImageRecognition {
      * @param fileName The name of the image to be saved.
      * @return Full {@link java.lang.String String} of the path if successful, otherwise null.
      */
-    private String getProjectFileLocationForName(String fileName) {
+    String getProjectFileLocationForName(String fileName) {
         try {
             String path = "./data/";
             path += StateController.getProduct();
@@ -650,40 +1440,53 @@ public class ImageRecognition {
     }
 
     /**
-     * Helper method to delete a specific file from the project image directory.
-     * @param fileName The name of the file to delete.
-     * @return True if successfully deleted, otherwise False.
+     * Helper method to start a {@link TemplateCollector TemplateCollector} run in the background, as set by the
+     * "templatecleanup" setting: "archive" moves unreferenced images to ./data/[product]/images-archive/,
+     * "delete" deletes them and "off" does nothing.
      */
-    private boolean deleteFileWithName(String fileName) {
-
-        if(fileName.contains("..")) {
-            LOGGER.severe("Do not manipulate the path structure with the file name!");
-            return false;
+    private void startTemplateCollector() {
+        String mode = settings.templateCleanup;
+        if(mode.equals("off")) {
+            StateController.displayMessage("Template cleanup is turned off.", 2000);
+            return;
         }
 
-        String fullPath = getProjectFileLocationForName(fileName);
+        String imagePath = getProjectFileLocationForName("");
+        if(imagePath == null)
+            return;
 
-        if(fullPath != null) {
-            File toDelete = new File(fullPath);
+        Path imageDirectory = Paths.get(imagePath);
+        Path archiveDirectory = mode.equals("delete") ? null : imageDirectory.resolveSibling("images-archive");
+        int batchSize = Math.max(1, settings.templateCleanupBatch);
+        LOGGER.info("Starting template cleanup [" + mode + "] in " + imageDirectory);
+        StateController.displayMessage("Cleaning up unused images in the background.", 2000);
+        fileExecutor.execute(new TemplateCollector(StateController.getStateTree(), imageDirectory, archiveDirectory,
+                batchSize, System.currentTimeMillis()));
+    }
 
-            try {
-                if(toDelete.delete()) {
-                    LOGGER.fine("Deleted file with path - " + fullPath);
-                    return true;
-                }
-                else {
-                    LOGGER.warning("Failed to delete file with path - " + fullPath);
-                    return false;
-                }
-            } catch (Exception e) {
-                LOGGER.warning("Failed to delete file with path - Security exception - "
-                        + fullPath + " - " + ExceptionUtils.getStackTrace(e));
-                return false;
-            }
+    /**
+     * Helper method to start recording the captured frames to ./data/[product]/recordings/[time].irrec, or to stop
+     * the recording in progress. See {@link SessionRecorder SessionRecorder}.
+     */
+    private void toggleRecording() {
+        if(sessionRecorder.isRecording()) {
+            sessionRecorder.stop();
+            StateController.displayMessage("Stopped recording.", 2000);
+            return;
         }
-        else {
-            LOGGER.warning("Failed to get full path?");
-            return false;
+
+        String imagePath = getProjectFileLocationForName("");
+        if(imagePath == null)
+            return;
+
+        String time = new SimpleDateFormat("yyyyMMdd-HHmmss").format(new Date());
+        Path file = Paths.get(imagePath).resolveSibling("recordings").resolve(time + SessionRecorder.EXTENSION);
+        try {
+            sessionRecorder.start(file, settings.recordKeyframes);
+            StateController.displayMessage("Recording to " + file, 2000);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to start recording to " + file + " | " + ExceptionUtils.getStackTrace(e));
+            StateController.displayMessage("Failed to start recording.", 2000);
         }
     }
 
@@ -693,15 +1496,20 @@ public class ImageRecognition {
      * @param f The {@link javax.swing.JFrame JFrame} to dispose after making the selection.
      */
     private void confirmDeleteSelection(Widget w, JFrame f){
-        if(w == latestTypeWidget)
-            latestTypeWidget = null;
-        else if (w == repairWidget)
-            repairWidget = null;
-
-        resetFromNode(w.getNextState(),0);
-        deleteFileWithName((String) w.getMetadata("IR_imageName"));
-        StateController.getCurrentState().removeWidget(w);
+        if(w == plugin.latestTypeWidget)
+            update(s -> s.withLatestTypeWidget(null));
+        else if (w == plugin.repairWidget)
+            update(s -> s.withRepairWidget(null));
+
+        List<String> imageNames = new ArrayList<>();
+        int removed = resetFromNode(w.getNextState(), imageNames) + 1;
+        addImageNames(w, imageNames);
+        removeWidget(StateController.getCurrentState(), w);
+        deleteImagesInBackground(imageNames);
         f.dispose();
+
+        LOGGER.info("Deleted " + removed + " widgets.");
+        StateController.displayMessage("Deleted " + removed + (removed == 1 ? " widget." : " widgets."), 2000);
     }
 
     /**
@@ -710,14 +1518,7 @@ public class ImageRecognition {
      * @return The {@link java.awt.event.KeyEvent KeyEvent} integer ID code.
      */
     private int getKeybindingKeyCode(String key){
-        String keyBindingString = keyBindings.getProperty(key);
-        if(keyBindingString != null)
-            return java.awt.event.KeyEvent.getExtendedKeyCodeForChar(keyBindingString.charAt(0));
-        else {
-            LOGGER.warning("Failed to get property with the name: [" + key + "]");
-            return KeyEvent.VK_UNDEFINED;
-        }
-
+        return settings.getKeyCode(key);
     }
 
     /**
@@ -726,9 +1527,31 @@ public class ImageRecognition {
      * @param action The {@link scout.Action action} that has been delegated.
      */
     public void performAction(Action action) {
+        pluginLoop.runAndWait(() -> handleAction(action));
+    }
+
+    /**
+     * Handles a delegated action on the {@link PluginLoop PluginLoop} thread, see {@link #performAction(Action)}.
+     * @param action The {@link scout.Action action} that has been delegated.
+     */
+    private void handleAction(Action action) {
         if (!StateController.isRunningSession() || action.isToolbarAction())
             return;
 
+        captureScheduler.boost();
+        if(!(action instanceof MoveAction))
+            sessionRecorder.noteAction(action.getClass().getSimpleName());
+
+        // The suite thread moves through the states while a run goes on, only the key that cancels the run is handled.
+        SuiteRun running = activeRun;
+        boolean cancelKey = action instanceof TypeAction && plugin.isControlClicked
+                && ((TypeAction) action).getKeyEvent().getKeyCode() == getKeybindingKeyCode("performwidgets");
+        if(running != null && !running.isDone() && !cancelKey) {
+            if(action instanceof TypeAction || action instanceof LeftClickAction || action instanceof DragDropAction)
+                StateController.displayMessage("Performing widgets, cancel the run before editing.", 1000);
+            return;
+        }
+
         if (action instanceof TypeAction) {
             TypeAction typeAction = (TypeAction) action;
             KeyEvent keyEvent = typeAction.getKeyEvent();
@@ -744,71 +1567,71 @@ public class ImageRecognition {
                 if (StateController.getKeyboardInput().length() > 0) {
                     StateController.clearKeyboardInput();
                 }
-                if (repairWidget != null) {
-                    repairWidget = null;
-                } else if(menuWidget != null) {
-                    StateController.getCurrentState().removeWidget(menuWidget);
-                    menuWidget = null;
-                } else if(latestTypeWidget != null) {
-                    StateController.getCurrentState().removeWidget(latestTypeWidget);
-                    latestTypeWidget = null;
+                if (plugin.repairWidget != null) {
+                    update(s -> s.withRepairWidget(null));
+                } else if(plugin.menuWidget != null) {
+                    removeWidget(StateController.getCurrentState(), plugin.menuWidget);
+                    update(s -> s.withMenuWidget(null));
+                } else if(plugin.latestTypeWidget != null) {
+                    removeWidget(StateController.getCurrentState(), plugin.latestTypeWidget);
+                    update(s -> s.withLatestTypeWidget(null));
                 }
-            } else if (!isControlClicked && keyCode == KeyEvent.VK_BACK_SPACE) {
+            } else if (!plugin.isControlClicked && keyCode == KeyEvent.VK_BACK_SPACE) {
                 if(StateController.getKeyboardInput().length() > 0)
                     StateController.removeLastKeyboardInput();
-            } else if (!isControlClicked && keyCode == KeyEvent.VK_SPACE) {
+            } else if (!plugin.isControlClicked && keyCode == KeyEvent.VK_SPACE) {
                 StateController.addKeyboardInput(" ");
             }
-            else if (isControlClicked && keyCode == getKeybindingKeyCode("performwidgets")) {
-                /* Perform the entire state tree automatically from where you are */
-                LOGGER.info("Performing every widget automatically from the current app state.");
-                displayPerformWidgets(currentState);
-            } else if (isControlClicked && keyCode == getKeybindingKeyCode("type")) {
+            else if (plugin.isControlClicked && keyCode == getKeybindingKeyCode("performwidgets")) {
+                /* Perform the entire state tree automatically from where you are, or stop the run in progress */
+                if(running != null && !running.isDone()) {
+                    running.cancel();
+                    StateController.displayMessage("Cancelling the replay.");
+                }
+                else {
+                    LOGGER.info("Performing every widget automatically from the current app state.");
+                    displayPerformWidgets(plugin.currentState);
+                }
+            } else if (plugin.isControlClicked && keyCode == getKeybindingKeyCode("type")) {
                 /* Keybinding for the Type action widget */
-                currentWidgetSubtype = Widget.WidgetSubtype.TYPE_ACTION;
-                currentWidgetType = Widget.WidgetType.ACTION;
+                update(s -> s.withCurrentWidgetSubtype(Widget.WidgetSubtype.TYPE_ACTION).withCurrentWidgetType(Widget.WidgetType.ACTION));
                 announceCurrentWidgetTypes();
-                LOGGER.info("Type: " + currentWidgetType + "\nAction: " + currentWidgetSubtype);
-            } else if (isControlClicked && keyCode == getKeybindingKeyCode("leftclick")) {
+                LOGGER.info("Type: " + plugin.currentWidgetType + "\nAction: " + plugin.currentWidgetSubtype);
+            } else if (plugin.isControlClicked && keyCode == getKeybindingKeyCode("leftclick")) {
                 /* Keybinding for the Left Click action widget */
-                currentWidgetSubtype = Widget.WidgetSubtype.LEFT_CLICK_ACTION;
-                currentWidgetType = Widget.WidgetType.ACTION;
+                update(s -> s.withCurrentWidgetSubtype(Widget.WidgetSubtype.LEFT_CLICK_ACTION).withCurrentWidgetType(Widget.WidgetType.ACTION));
                 announceCurrentWidgetTypes();
-                LOGGER.info("Type: " + currentWidgetType + "\nAction: " + currentWidgetSubtype);
-            } else if (isControlClicked && keyCode == getKeybindingKeyCode("rightclick")) {
+                LOGGER.info("Type: " + plugin.currentWidgetType + "\nAction: " + plugin.currentWidgetSubtype);
+            } else if (plugin.isControlClicked && keyCode == getKeybindingKeyCode("rightclick")) {
                 /* Keybinding for the right click action widget */
-                currentWidgetSubtype = Widget.WidgetSubtype.RIGHT_CLICK_ACTION;
-                currentWidgetType = Widget.WidgetType.ACTION;
+                update(s -> s.withCurrentWidgetSubtype(Widget.WidgetSubtype.RIGHT_CLICK_ACTION).withCurrentWidgetType(Widget.WidgetType.ACTION));
                 announceCurrentWidgetTypes();
-                LOGGER.info("Type: " + currentWidgetType + "\nAction: " + currentWidgetSubtype);
-            } else if (isControlClicked && keyCode == getKeybindingKeyCode("check")) {
+                LOGGER.info("Type: " + plugin.currentWidgetType + "\nAction: " + plugin.currentWidgetSubtype);
+            } else if (plugin.isControlClicked && keyCode == getKeybindingKeyCode("check")) {
                 /* Keybinding for the Check widget */
-                currentWidgetType = Widget.WidgetType.CHECK;
-                currentWidgetSubtype = null; // Check has no subtype.
+                update(s -> s.withCurrentWidgetType(Widget.WidgetType.CHECK).withCurrentWidgetSubtype(null)); // Check has no subtype.
                 announceCurrentWidgetTypes();
-                LOGGER.info("Type: " + currentWidgetType + "\nAction: " + currentWidgetSubtype);
-            } else if (isControlClicked && keyCode == getKeybindingKeyCode("doubleclick")) {
+                LOGGER.info("Type: " + plugin.currentWidgetType + "\nAction: " + plugin.currentWidgetSubtype);
+            } else if (plugin.isControlClicked && keyCode == getKeybindingKeyCode("doubleclick")) {
                 /* Keybinding for the Double Click action widget */
                 //NOTE: Creates unknown hover action due to not being implemented in the HoverAction plugin
-                currentWidgetSubtype = Widget.WidgetSubtype.DOUBLE_CLICK_ACTION;
-                currentWidgetType = Widget.WidgetType.ACTION;
+                update(s -> s.withCurrentWidgetSubtype(Widget.WidgetSubtype.DOUBLE_CLICK_ACTION).withCurrentWidgetType(Widget.WidgetType.ACTION));
                 announceCurrentWidgetTypes();
-                LOGGER.info("Type: " + currentWidgetType.toString() + "\nAction: " + currentWidgetSubtype.toString());
-            } else if (isControlClicked && keyCode == getKeybindingKeyCode("menuaction")) {
+                LOGGER.info("Type: " + plugin.currentWidgetType.toString() + "\nAction: " + plugin.currentWidgetSubtype.toString());
+            } else if (plugin.isControlClicked && keyCode == getKeybindingKeyCode("menuaction")) {
                 /* Keybinding for Menu Click actions */
-                currentWidgetSubtype = Widget.WidgetSubtype.PASTE_ACTION; // TODO WE ARE SORRY ABOUT THIS, TEMPORARY SOLUTION
-                currentWidgetType = Widget.WidgetType.ACTION;
+                update(s -> s.withCurrentWidgetSubtype(Widget.WidgetSubtype.PASTE_ACTION).withCurrentWidgetType(Widget.WidgetType.ACTION)); // TODO WE ARE SORRY ABOUT THIS, TEMPORARY SOLUTION
                 announceCurrentWidgetTypes();
-                LOGGER.info("Type: " + currentWidgetType.toString() + "\nAction: " + currentWidgetSubtype.toString());
+                LOGGER.info("Type: " + plugin.currentWidgetType.toString() + "\nAction: " + plugin.currentWidgetSubtype.toString());
             }
-            else if(isControlClicked && keyCode == KeyEvent.VK_K) {
+            else if(plugin.isControlClicked && keyCode == KeyEvent.VK_K) {
                 LOGGER.info("Displaying Keybinding form");
                 showKeybindingForm();
             }
-            else if(isControlClicked && keyCode == getKeybindingKeyCode("forcerepair")) {
+            else if(plugin.isControlClicked && keyCode == getKeybindingKeyCode("forcerepair")) {
                 LOGGER.info("Force repair widget");
                 Point location = ((TypeAction) action).getLocation();
-                List<Widget> foundWidgets = StateController.getWidgetsAt(location);
+                List<Widget> foundWidgets = getWidgetsAt(location);
                 if (!foundWidgets.isEmpty()) {
                     for (Widget w : foundWidgets) {
                         if (w.getWidgetVisibility() == Widget.WidgetVisibility.VISIBLE && w.getWidgetStatus() == Widget.WidgetStatus.LOCATED) {
@@ -819,17 +1642,36 @@ public class ImageRecognition {
                 } // else
                 // Do nothing, did not click on a widget.
             }
-            else if(isControlClicked && keyCode == getKeybindingKeyCode("home")){
+            else if(plugin.isControlClicked && keyCode == getKeybindingKeyCode("cyclematcher")) {
+                /* Switch the recognition engine used for the widget at the mouse pointer */
+                Point location = ((TypeAction) action).getLocation();
+                List<Widget> foundWidgets = getWidgetsAt(location);
+                if (!foundWidgets.isEmpty())
+                    cycleWidgetMatchers(foundWidgets.get(Math.min(StateController.getSelectedWidgetNo(), foundWidgets.size() - 1)));
+            }
+            else if(plugin.isControlClicked && keyCode == getKeybindingKeyCode("cleanuptemplates")) {
+                /* Remove the images that no widget of the state tree refers to anymore */
+                startTemplateCollector();
+            }
+            else if(plugin.isControlClicked && keyCode == getKeybindingKeyCode("widgetreport")) {
+                /* Rank the widgets by the time spent finding them in the last runs */
+                startWidgetReport();
+            }
+            else if(plugin.isControlClicked && keyCode == getKeybindingKeyCode("record")) {
+                /* Start or stop recording the captured frames */
+                toggleRecording();
+            }
+            else if(plugin.isControlClicked && keyCode == getKeybindingKeyCode("home")){
                 LOGGER.info("Went to the Home node.");
-                currentState = StateController.getStateTree();
+                update(s -> s.withCurrentState(StateController.getStateTree()));
                 previousState.clear(); // Reset the previous states when you go home.
-                StateController.setCurrentState(currentState);
+                StateController.setCurrentState(plugin.currentState);
                 StateController.displayMessage("Went to Home node.", 1000);
             }
-            else if(isControlClicked && keyCode == KeyEvent.VK_BACK_SPACE){
+            else if(plugin.isControlClicked && keyCode == KeyEvent.VK_BACK_SPACE){
                 /* Remove widget at mouse pointer and all branches underneath it */
                 Point location = ((TypeAction) action).getLocation();
-                List<Widget> foundWidgets = StateController.getWidgetsAt(location);
+                List<Widget> foundWidgets = getWidgetsAt(location);
 
                 if(!foundWidgets.isEmpty()) {
                     Widget selected = foundWidgets.get(StateController.getSelectedWidgetNo());
@@ -840,7 +1682,19 @@ public class ImageRecognition {
                     LOGGER.fine("Failed to locate widgets to delete at point: " + location.toString());
 
             }
-            else if(isControlClicked && keyCode == getKeybindingKeyCode("previousstate")){
+            else if(plugin.isControlClicked && keyCode == getKeybindingKeyCode("selectarea")){
+                /* Restrict the capture to an area of the monitor, or go back to the whole monitor */
+                if(selectedArea != null) {
+                    selectedArea = null;
+                    StateController.displayMessage("Capturing the whole screen.", 2000);
+                }
+                else if(selectedMonitor != null) {
+                    BufferedImage monitorScreenshot = getMonitorScreenshot(selectedMonitor);
+                    if(monitorScreenshot != null)
+                        promptSelection(monitorScreenshot);
+                }
+            }
+            else if(plugin.isControlClicked && keyCode == getKeybindingKeyCode("previousstate")){
                 /* Go back a step in the state graph. Utilize pre-built list of actions for this purpose. */
                 if(!previousState.isEmpty()){
                     shouldInsertState = false;
@@ -851,13 +1705,13 @@ public class ImageRecognition {
                     LOGGER.info("previousState was empty, going back failed.");
 
             }
-            else if(isControlClicked && keyCode == getKeybindingKeyCode("nextstate")){
+            else if(plugin.isControlClicked && keyCode == getKeybindingKeyCode("nextstate")){
                 /* Go forward a step in the state graph. Utilize pre-built list of actions for this purpose. */
-                Widget w = currentState.getAllWidgets().get(0);
+                Widget w = plugin.currentState.getAllWidgets().get(0);
                 if(w.getNextState() != null){
-                    currentState = w.getNextState();
+                    update(s -> s.withCurrentState(w.getNextState()));
                     shouldInsertState = false;
-                    StateController.setCurrentState(currentState);
+                    StateController.setCurrentState(plugin.currentState);
                     StateController.displayMessage("Went to next node.", 1000);
                 }
                 else
@@ -869,53 +1723,65 @@ public class ImageRecognition {
                     startTypeTime = System.currentTimeMillis(); // First typed char - remember the time
                 StateController.addKeyboardInput(getKeyText(keyChar));
             }
-        } else if (action instanceof LeftClickAction && isControlClicked) {
+        } else if (action instanceof LeftClickAction && plugin.isControlClicked) {
             long startAddWidget = System.nanoTime();
+            CaptureFrame frame = retainCurrentFrame();
+            if(frame == null)
+                return;
 
-            // Create widgetImage location rectangle
-            Point p = ((MoveAction) action).getLocation();
-            int minX = Math.max((int)(p.x - (defaultDimensionWidth /2.0f)), 0);
-            int minY = Math.max((int)(p.y - (defaultDimensionHeight /2.0f)), 0);
-            BufferedImage find = getWidgetImage(new Rectangle(minX, minY, defaultDimensionWidth, defaultDimensionHeight));
-
-            // Attempt to locate the image (for verification purposes)
-            Match match = EYE.findImage(currentScreenshot, find);
-
-            if (match != null) {
-                //robot.mouseMove(upperLeft.x + p.x + selectedMonitor.x,lowerRight.y + p.y + selectedMonitor.y);
-                if(!createAndAddWidget(match, find)) {
-                    StateController.displayMessage("Failed to add widget");
-                    LOGGER.warning("Failed to add widget? Match was not null.");
+            try {
+                // Create widgetImage location rectangle
+                Point p = ((MoveAction) action).getLocation();
+                int minX = Math.max((int)(p.x - (settings.defaultWidgetWidth /2.0f)), 0);
+                int minY = Math.max((int)(p.y - (settings.defaultWidgetHeight /2.0f)), 0);
+                BufferedImage find = getWidgetImage(frame.getImage(), new Rectangle(minX, minY, settings.defaultWidgetWidth, settings.defaultWidgetHeight));
+
+                // Attempt to locate the image (for verification purposes)
+                Match match = matchers.get(0).find(frame.getImage(), find, null, settings.minMatchPercent);
+
+                if (match != null) {
+                    if(!createAndAddWidget(match, find, frame.getImage(), new Point(p.x - minX, p.y - minY))) {
+                        StateController.displayMessage("Failed to add widget");
+                        LOGGER.warning("Failed to add widget? Match was not null.");
+                    }
+                    else
+                        LOGGER.info("Inserted widget, it took [" + ((System.nanoTime() - startAddWidget) / ONE_MILLION)   + "ms]");
+                } else {
+                    LOGGER.info("CLICK: Match is null!");
                 }
-                else
-                    LOGGER.info("Inserted widget, it took [" + ((System.nanoTime() - startAddWidget) / ONE_MILLION)   + "ms]");
-            } else {
-                LOGGER.info("CLICK: Match is null!");
+            } finally {
+                frame.release();
             }
         } else if (action instanceof LeftClickAction) {
             Point location = ((MoveAction) action).getLocation();
-            List<Widget> foundWidgets = StateController.getWidgetsAt(location);
+            List<Widget> foundWidgets = getWidgetsAt(location);
             if (!foundWidgets.isEmpty()) {
                 for (Widget w : foundWidgets) {
                     if (w.getWidgetVisibility() == Widget.WidgetVisibility.VISIBLE && w.getWidgetStatus() == Widget.WidgetStatus.LOCATED && w.getWidgetType() == Widget.WidgetType.ACTION) {
-                        int findWidgetIterations;
-                        try {
-                            findWidgetIterations = Integer.parseInt(keyBindings.getProperty("widgetfindretries","5"));
-                        } catch (NumberFormatException e) {
-                            LOGGER.warning("Int parse error in widgetfindretries");
-                            findWidgetIterations = 5;
-                        }
-                        for(int i = 0; i < findWidgetIterations; i++) {
+                        RetryPolicy policy = settings.getRetryPolicy(StateController.getProduct());
+                        long widgetDeadline = policy.getWidgetDeadline(w);
+                        long start = System.currentTimeMillis();
+                        for(int attempt = 1; ; attempt++) {
                             if(performImageWidget(w)) {
                                 StateController.setCurrentState(w.getNextState());
+                                retryReport.record(w, attempt, System.currentTimeMillis() - start, widgetDeadline, true);
                                 break;
                             }
-                            else {
-                                LOGGER.info("Fail, retry after sleep.");
-                                sleepForAmountMS(400);
+
+                            long delay = policy.getDelay(attempt);
+                            long elapsed = System.currentTimeMillis() - start;
+                            if(attempt >= policy.maxAttempts || elapsed + delay > widgetDeadline) {
+                                LOGGER.info("Failed to perform the widget within " + widgetDeadline + " ms.");
+                                retryReport.record(w, attempt, elapsed, widgetDeadline, false);
+                                break;
                             }
+                            sleepForAmountMS(delay);
                         }
                         break; // Only perform one action widget in a stack.
+                    } else if (w.getWidgetVisibility() == Widget.WidgetVisibility.VISIBLE && w.getWidgetStatus() == Widget.WidgetStatus.UNLOCATED
+                            && !statePass.isDone()) {
+                        StateController.displayMessage("Still locating the widgets of this state.", 1000);
+                        break;
                     } else if (w.getWidgetVisibility() == Widget.WidgetVisibility.VISIBLE && w.getWidgetStatus() == Widget.WidgetStatus.UNLOCATED) {
                         String fileName = (String) w.getMetadata("IR_imageName");
                         BufferedImage widgetImage = EYE.loadImage(getProjectFileLocationForName(fileName));
@@ -929,37 +1795,37 @@ public class ImageRecognition {
             } // else
                 // Do nothing, did not click on a widget.
         }
-        else if (action instanceof DragStartAction && isControlClicked) {
-            if(dragStartPoint == null)
-                dragStartPoint = ((MoveAction)action).getLocation();
+        else if (action instanceof DragStartAction && plugin.isControlClicked) {
+            if(plugin.dragStartPoint == null)
+                update(s -> s.withDragStartPoint(((MoveAction)action).getLocation()));
             else
                 LOGGER.info("DragStartPoint wasn't null...");
         }
         else if (action instanceof DragAction) {
-            if(isControlClicked){
-                dragCurrentPoint = ((MoveAction)action).getLocation();
+            if(plugin.isControlClicked){
+                update(s -> s.withDragCurrentPoint(((MoveAction)action).getLocation()));
             }
             else{
-                dragCurrentPoint = null;
-                dragStartPoint = null;
+                update(s -> s.withDragStartPoint(null).withDragCurrentPoint(null));
             }
         }
-        else if (action instanceof DragDropAction && isControlClicked) {
+        else if (action instanceof DragDropAction && plugin.isControlClicked) {
             if(System.currentTimeMillis() < mayInsertDragDrop + 500)
                 return;
             long startInsert = System.nanoTime();
             mayInsertDragDrop = System.currentTimeMillis(); // Blocking variable to prevent multiple inserts.
 
             // Get sub-image of screenshot
-            Rectangle area = getRectangleFromPoints(dragStartPoint, dragCurrentPoint, false);
-            BufferedImage find = getWidgetImage(area);
+            Rectangle area = getRectangleFromPoints(plugin.dragStartPoint, plugin.dragCurrentPoint, false);
+            CaptureFrame frame = retainCurrentFrame();
+            BufferedImage find = frame == null ? null : getWidgetImage(frame.getImage(), area);
 
             if (find != null) {
                 // Locate the sub-image for verification purposes
-                Match match = EYE.findImage(currentScreenshot, find);
-                if(match != null && match.getMatchPercent() >= minimumMatchPercent) {
+                Match match = matchers.get(0).find(frame.getImage(), find, null, settings.minMatchPercent);
+                if(match != null && match.getMatchPercent() >= settings.minMatchPercent) {
                     // Add widget
-                    if(!createAndAddWidget(match, find)) {
+                    if(!createAndAddWidget(match, find, null, null)) {
                         StateController.displayMessage("Failed to add widget?", 1000);
                         LOGGER.warning("Failed to add widget from rectangle even if match != null?");
                     }
@@ -974,9 +1840,11 @@ public class ImageRecognition {
                 }
             }
 
+            if(frame != null)
+                frame.release();
+
             // null out the drag points as the action is completed
-            dragStartPoint = null;
-            dragCurrentPoint = null;
+            update(s -> s.withDragStartPoint(null).withDragCurrentPoint(null));
         } else if (action instanceof MouseScrollAction) {
             MouseScrollAction mouseScrollAction = (MouseScrollAction) action;
             StateController.setSelectedWidgetNo(StateController.getSelectedWidgetNo() + mouseScrollAction.getRotation());
@@ -994,7 +1862,7 @@ public class ImageRecognition {
         JLabel image = new JLabel(new ImageIcon(widgetImage));
         JButton repairBtn = new JButton("Repair");
         repairBtn.setSize(40,40);
-        repairBtn.addActionListener( x -> attemptRepairWidget(imageFrame,w));
+        repairBtn.addActionListener( x -> pluginLoop.execute(() -> attemptRepairWidget(imageFrame,w)));
         GridBagConstraints gbc = new GridBagConstraints();
         imageFrame.setLayout(new GridBagLayout());
 
@@ -1052,7 +1920,147 @@ public class ImageRecognition {
      */
     private void confirmPerformWidgets(JFrame f, AppState state) {
         f.dispose();
-        performAllStateWidgets(0, state, true);
+        SuiteRun run = startSuiteRun(state);
+        if(run != null)
+            displaySuiteProgress(run);
+    }
+
+    /**
+     * Start performing all widgets from the specified state on the background suite thread.
+     * @param state The {@link scout.AppState AppState} to auto-run from.
+     * @return The handle of the run, or null if another run has not finished yet.
+     */
+    public SuiteRun startSuiteRun(AppState state) {
+        SuiteRun running = activeRun;
+        if(running != null && !running.isDone()) {
+            StateController.displayMessage("Already performing widgets, cancel that run first.");
+            return null;
+        }
+
+        SuiteRun run = new SuiteRun(state, MAX_DEPTH);
+        activeRun = run;
+        WidgetHistory history = getWidgetHistory();
+        if(history != null) {
+            long runId = System.currentTimeMillis();
+            run.addListener(result -> fileExecutor.execute(() -> history.append(runId, result)));
+            run.getDone().thenRun(() -> fileExecutor.execute(history::finishRun));
+        }
+
+        suiteExecutor.execute(() -> {
+            MemoryStats before = MemoryStats.take(framePool);
+            retryReport.reset();
+            long startRun = System.nanoTime();
+            boolean completed = false;
+
+            try {
+                completed = performAllStateWidgets(0, state, true, run);
+            } catch (RuntimeException e) {
+                LOGGER.warning("Replay failed. | " + ExceptionUtils.getStackTrace(e));
+            } finally {
+                run.finish(completed);
+            }
+
+            LOGGER.info("Replay " + (run.isCancelled() ? "was cancelled after [" : "took [")
+                    + ((System.nanoTime() - startRun) / ONE_MILLION) + " ms] | " + run.describeProgress() + " | "
+                    + MemoryStats.take(framePool).describeSince(before) + " | " + captureScheduler.describe());
+            LOGGER.info(retryReport.describe());
+        });
+        return run;
+    }
+
+    /**
+     * Helper method to get the {@link WidgetHistory WidgetHistory} of the current product.
+     * @return The history, or null if the project directory is not accessible.
+     */
+    private WidgetHistory getWidgetHistory() {
+        String imagePath = getProjectFileLocationForName("");
+        if(imagePath == null)
+            return null;
+
+        Path file = Paths.get(imagePath).resolveSibling(WidgetHistory.FILE_NAME);
+        WidgetHistory history = widgetHistory;
+        if(history == null || !history.getFile().equals(file) || history.keptRuns != settings.historyRuns) {
+            history = new WidgetHistory(file, settings.historyRuns);
+            widgetHistory = history;
+        }
+        return history;
+    }
+
+    /**
+     * Helper method to write the report of the {@link WidgetHistory WidgetHistory} over the last "reportruns" runs
+     * to the log and to ./data/[product]/widget-report.txt, in the background.
+     */
+    private void startWidgetReport() {
+        WidgetHistory history = getWidgetHistory();
+        if(history == null)
+            return;
+
+        int runs = settings.reportRuns;
+        Path reportFile = history.getFile().resolveSibling("widget-report.txt");
+        StateController.displayMessage("Writing the widget report to " + reportFile, 2000);
+        fileExecutor.execute(() -> {
+            try {
+                String report = history.report(runs);
+                Files.write(reportFile, report.getBytes(StandardCharsets.UTF_8));
+                LOGGER.info(report);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to write the widget report | " + ExceptionUtils.getStackTrace(e));
+            }
+        });
+    }
+
+    /**
+     * Helper method to stop or resume the searches of every matcher, see {@link TemplateMatcher#setStop(boolean)}.
+     */
+    private static void setMatchersStopped(boolean stop) {
+        for(List<TemplateMatcher> chain : matcherChains.values()) {
+            for(TemplateMatcher matcher : chain)
+                matcher.setStop(stop);
+        }
+    }
+
+    /**
+     * Helper method to display the progress and the widget results of a run, with a button to cancel it.
+     * @param run The {@link SuiteRun SuiteRun} to follow.
+     */
+    private void displaySuiteProgress(SuiteRun run) {
+        JFrame progressFrame = new JFrame("Performing widgets");
+        progressFrame.setLayout(new BoxLayout(progressFrame.getContentPane(), BoxLayout.Y_AXIS));
+
+        JProgressBar progressBar = new JProgressBar(0, Math.max(run.getTotalWidgets(), 1));
+        progressBar.setStringPainted(true);
+        JLabel progressText = new JLabel(run.describeProgress());
+        JTextArea resultText = new JTextArea(12, 40);
+        resultText.setEditable(false);
+        JButton cancelBtn = new JButton("CANCEL");
+        cancelBtn.addActionListener(x -> {
+            run.cancel();
+            cancelBtn.setEnabled(false);
+        });
+
+        run.addListener(result -> SwingUtilities.invokeLater(() -> {
+            progressBar.setValue(run.getWidgetsDone());
+            progressText.setText(run.describeProgress());
+            resultText.append(result + "\n");
+        }));
+        run.getDone().thenRun(() -> SwingUtilities.invokeLater(() -> {
+            progressText.setText(run.describeProgress());
+            cancelBtn.setText("CLOSE");
+            cancelBtn.setEnabled(true);
+            cancelBtn.addActionListener(x -> progressFrame.dispose());
+        }));
+
+        progressText.setAlignmentX(Component.CENTER_ALIGNMENT);
+        cancelBtn.setAlignmentX(Component.CENTER_ALIGNMENT);
+
+        progressFrame.add(progressBar);
+        progressFrame.add(progressText);
+        progressFrame.add(new JScrollPane(resultText));
+        progressFrame.add(cancelBtn);
+
+        progressFrame.pack();
+        centreWindow(progressFrame);
+        progressFrame.setVisible(true);
     }
 
     /**
@@ -1063,9 +2071,7 @@ public class ImageRecognition {
     private void attemptRepairWidget(JFrame imageFrame,Widget w){
         // Set "action" mode to widget type and subtype
         StateController.displayMessage("Perform widget action as intended. Action type switched.", 2000);
-        repairWidget = w;
-        currentWidgetType = repairWidget.getWidgetType();
-        currentWidgetSubtype = repairWidget.getWidgetSubtype();
+        update(s -> s.withRepairWidget(w).withCurrentWidgetType(w.getWidgetType()).withCurrentWidgetSubtype(w.getWidgetSubtype()));
         imageFrame.dispose();
     }
 
@@ -1092,7 +2098,7 @@ public class ImageRecognition {
         GridBagConstraints gbc = new GridBagConstraints();
 
         // Bind actions to the buttons
-        yesButton.addActionListener(x -> confirmDeleteSelection(w,confirmFrame));
+        yesButton.addActionListener(x -> pluginLoop.execute(() -> confirmDeleteSelection(w,confirmFrame)));
         noButton.addActionListener(x -> confirmFrame.dispose());
         confirmFrame.setLayout(new GridBagLayout());
 
@@ -1124,50 +2130,77 @@ public class ImageRecognition {
      */
     private void announceCurrentWidgetTypes() {
         StateController.displayMessage("Currently performing: MAIN TYPE: ["
-                + currentWidgetType + "] SUBTYPE: [" + currentWidgetSubtype +"]", 2000);
+                + plugin.currentWidgetType + "] SUBTYPE: [" + plugin.currentWidgetSubtype +"]", 2000);
     }
 
-    private static Widget menuWidget = null;
-
     /**
      * Helper method to create and add a widget to Scout and the state graph.
      * @param match The {@link Match Match} object that describes where the widget is located.
+     * @param found The widget image.
+     * @param screen The screenshot the widget image was taken from, used to trim the image when the trimtemplates
+     * setting is on. Null to keep the image as it is.
+     * @param focus The point that was clicked within the fixed size widget image, or null for an area the tester
+     * selected, which is kept as it is.
      * @return True if widget was added, otherwise False.
      */
-    private boolean createAndAddWidget(@NotNull Match match, @NotNull BufferedImage found) {
+    private boolean createAndAddWidget(@NotNull Match match, @NotNull BufferedImage found, BufferedImage screen, Point focus) {
         try {
+            if(settings.trimTemplates && screen != null && focus != null) {
+                Match trimmed = trimTemplate(match, found, screen, focus);
+                if(trimmed != null) {
+                    BufferedImage trimmedImage = getSubimageView(screen, new Rectangle(trimmed.getX(), trimmed.getY(),
+                            trimmed.getWidth(), trimmed.getHeight()));
+                    if(trimmedImage != null) {
+                        LOGGER.info("Trimmed widget image from " + found.getWidth() + "x" + found.getHeight() + " to "
+                                + trimmedImage.getWidth() + "x" + trimmedImage.getHeight());
+                        match = trimmed;
+                        found = trimmedImage;
+                    }
+                }
+            }
+
             // Create timestamp for image naming.
             long timeStamp = System.currentTimeMillis();
             String fileName = String.format("%d.png", timeStamp);
-            Eye.savePngImage(found, getProjectFileLocationForName(fileName));
+
+            // The widget image is a view of the screenshot, give it its own pixels before it is stored.
+            found = materializeImage(found);
+            String imagePath = getProjectFileLocationForName(fileName);
+            Eye.savePngImage(found, imagePath);
+
+            // Features for the prefilter, computed once now instead of on every search.
+            TemplateFeatures features = TemplateFeatures.of(found);
+            templateFeatures.put(fileName, features);
+            if(imagePath != null)
+                saveTemplateFeatures(features, TemplateFeatures.getSidecar(Paths.get(imagePath)));
 
             // If repairing do this instead
-            if(repairWidget != null){
-                repairWidget.putMetadata("IR_imageName", fileName);
-                repairWidget.setWidgetType(currentWidgetType);
-                repairWidget.setWidgetSubtype(currentWidgetSubtype);
+            if(plugin.repairWidget != null){
+                plugin.repairWidget.putMetadata("IR_imageName", fileName);
+                plugin.repairWidget.setWidgetType(plugin.currentWidgetType);
+                plugin.repairWidget.setWidgetSubtype(plugin.currentWidgetSubtype);
 
-                if(currentWidgetType == Widget.WidgetType.ACTION && currentWidgetSubtype == Widget.WidgetSubtype.PASTE_ACTION)
+                if(plugin.currentWidgetType == Widget.WidgetType.ACTION && plugin.currentWidgetSubtype == Widget.WidgetSubtype.PASTE_ACTION)
                 {
-                    menuWidget = repairWidget;
+                    update(s -> s.withMenuWidget(plugin.repairWidget));
                 }
 
-                repairWidget.setLocationArea(new Rectangle(match.getX(), match.getY(), match.getWidth(), match.getHeight()));
-                putWidgetMetaData(repairWidget, match);
-                repairWidget = null;
+                setWidgetLocation(plugin.repairWidget, new Rectangle(match.getX(), match.getY(), match.getWidth(), match.getHeight()));
+                putWidgetMetaData(plugin.repairWidget, match);
+                update(s -> s.withRepairWidget(null));
                 LOGGER.info("Repaired widget.");
                 return true;
             }
-            else if (menuWidget != null) {
-                menuWidget.putMetadata("IR_secondImageWidget", fileName);
-                performImageWidget(menuWidget);
-                menuWidget = null;
+            else if (plugin.menuWidget != null) {
+                plugin.menuWidget.putMetadata("IR_secondImageWidget", fileName);
+                performImageWidget(plugin.menuWidget);
+                update(s -> s.withMenuWidget(null));
                 return true;
             }
 
             Widget widget = new Widget();
-            widget.setWidgetType(currentWidgetType);
-            widget.setWidgetSubtype(currentWidgetSubtype);
+            widget.setWidgetType(plugin.currentWidgetType);
+            widget.setWidgetSubtype(plugin.currentWidgetSubtype);
             AppState appState = StateController.getCurrentState();
             widget.putMetadata("IR_imageName", fileName);
             widget.setLocationArea(new Rectangle(match.getX(), match.getY(), match.getWidth(), match.getHeight()));
@@ -1175,22 +2208,24 @@ public class ImageRecognition {
 
             // Set action and type of widget
             if(widget.getWidgetSubtype() == Widget.WidgetSubtype.TYPE_ACTION && widget.getWidgetType() == Widget.WidgetType.ACTION){
-                if(latestTypeWidget != null) {
+                if(plugin.latestTypeWidget != null) {
                     StateController.displayMessage("There already is a Type action in progress, finish that first.", 5000);
                     return false;
                 }
-                latestTypeWidget = widget;
+                update(s -> s.withLatestTypeWidget(widget));
             }
-            else if(latestTypeWidget != null){
-                currentState.removeWidget(latestTypeWidget);
-                latestTypeWidget = null;
+            else if(plugin.latestTypeWidget != null){
+                removeWidget(plugin.currentState, plugin.latestTypeWidget);
+                update(s -> s.withLatestTypeWidget(null));
             }
 
             AppState newState = StateController.insertWidget(appState, widget, widget.getNextState(), StateController.getProductVersion(),
                     StateController.getTesterName(), StateController.getCurrentPath());
             if (newState != null) {
+                getWidgetIndex(appState).put(widget);
+
                 if (widget.getWidgetType() == Widget.WidgetType.ACTION && widget.getWidgetSubtype() == Widget.WidgetSubtype.PASTE_ACTION)
-                    menuWidget = widget;
+                    update(s -> s.withMenuWidget(widget));
 
                 if (widget.getWidgetType() == Widget.WidgetType.ACTION && widget.getWidgetSubtype() != Widget.WidgetSubtype.TYPE_ACTION) {
                     StateController.setCurrentState(newState); //widget.getNextState()
@@ -1216,72 +2251,154 @@ public class ImageRecognition {
      */
     private static final int MAX_DEPTH = 100;
     public boolean performAllStateWidgets(int depth, AppState workState, boolean perform) {
+        return performAllStateWidgets(depth, workState, perform, SuiteRun.untracked());
+    }
+
+    /**
+     * Perform all widgets from the state provided and onwards, reporting the results to a run.
+     * @param depth Integer sanity value, start at 0.
+     * @param workState The {@link scout.AppState AppState} to work from.
+     * @param run The {@link SuiteRun SuiteRun} that collects the results and may be cancelled.
+     */
+    private boolean performAllStateWidgets(int depth, AppState workState, boolean perform, SuiteRun run) {
 
-        if(depth > MAX_DEPTH) // sanity blocker
+        if(depth > MAX_DEPTH || run.isCancelled()) // sanity blocker
             return false;
 
         ArrayList<Widget> tempActionWidgets = new ArrayList<>();
         ArrayList<Widget> unlocatedWidgets = new ArrayList<>();
         boolean keepIterating = true;
-        boolean shouldPerform = true;
-        int findWidgetIterations = Integer.parseInt(keyBindings.getProperty("widgetfindretries","5"));
+        RetryPolicy policy = settings.getRetryPolicy(StateController.getProduct());
 
+        // Cleared first, the search that the state change may run inline remembers the widgets it located.
+        locatedMatches.clear();
         StateController.setCurrentState(workState);
         List<Widget> widgetList = workState.getAllWidgets();
 
-        if(widgetList.isEmpty()) // No need to do any checks on 0 widgets
+        if(widgetList.isEmpty()) { // No need to do any checks on 0 widgets
+            run.stateDone();
             return true;
+        }
 
-        // Retry matching on failed widgets (due to interface load times)
-        while(keepIterating && findWidgetIterations-- > 0) {
-            LOGGER.info(findWidgetIterations + " tries left to find a Widget.");
+        // The widget images are searched for on every retry, only load them once.
+        Map<Widget, BufferedImage> widgetImages = new HashMap<>();
+        for(Widget wid : widgetList)
+            widgetImages.put(wid, loadWidgetImage(wid));
+
+        List<Widget> missingWidgets = new ArrayList<>();
+        for(Widget wid : widgetList) {
+            if(wid.getWidgetType() == Widget.WidgetType.ACTION)
+                tempActionWidgets.add(wid);
+            if(wid.getWidgetStatus() == Widget.WidgetStatus.UNLOCATED)
+                missingWidgets.add(wid);
+        }
 
+        // The widgets found so far are anchors, the others are first searched where the anchors predict them.
+        // Widgets already located on entry anchor where they were found, as do those found in earlier attempts.
+        WidgetLayout layout = new WidgetLayout();
+        for(Widget wid : widgetList) {
+            if(wid.getWidgetStatus() == Widget.WidgetStatus.UNLOCATED)
+                continue;
+            LocatedMatch located = locatedMatches.get(wid);
+            if(located != null)
+                layout.anchor(wid, located.match);
+            else if(wid.getWidgetStatus() == Widget.WidgetStatus.VALID && wid.getLocationArea() != null)
+                layout.anchor(wid, wid.getLocationArea().getLocation());
+        }
 
-            for(Widget wid : widgetList)
+        // Retry matching on the widgets that are still missing (due to interface load times), until their deadlines.
+        Map<Widget, Long> searchNanos = new HashMap<>();
+        long stateStart = System.currentTimeMillis();
+        for(int attempt = 1; !missingWidgets.isEmpty() && !run.isCancelled(); attempt++) {
+            EVENTS.event(Level.INFO, "locate-attempt", "state", workState.getId(), "attempt", attempt,
+                    "missing", missingWidgets.size());
+            captureScheduler.boost();
+
+            // One pass finds every widget that is on screen pixel for pixel, only the rest are searched one by one.
+            long exactFrameId = getCurrentFrameId();
+            long exactStart = System.nanoTime();
+            Map<Widget, Match> exactMatches = findExactMatches(missingWidgets, widgetImages);
+            long exactShare = (System.nanoTime() - exactStart) / missingWidgets.size();
+            for(Widget wid : missingWidgets)
+                searchNanos.merge(wid, exactShare, Long::sum);
+
+            // The exact matches anchor the one by one searches, whatever order the widgets come in.
+            for(Map.Entry<Widget, Match> entry : exactMatches.entrySet())
+                layout.anchor(entry.getKey(), entry.getValue());
+
+            for(Iterator<Widget> it = missingWidgets.iterator(); it.hasNext() && !run.isCancelled();)
             {
+                Widget wid = it.next();
+                Match exactMatch = exactMatches.get(wid);
+                long searchStart = System.nanoTime();
+                long frameId = exactMatch != null ? exactFrameId : getCurrentFrameId();
+                FoundMatch found = exactMatch != null ? new FoundMatch(exactMatch, "exact")
+                        : findNearAnchors(wid, widgetImages.get(wid), layout);
+                searchNanos.merge(wid, System.nanoTime() - searchStart, Long::sum);
+                Match match = found == null ? null : found.match;
+                boolean located = match != null && match.getMatchPercent() >= settings.minMatchPercent;
+                if(located)
+                    layout.anchor(wid, match);
+
                 if(wid.getWidgetType() == Widget.WidgetType.ACTION) {
-                    if(wid.getWidgetStatus() == Widget.WidgetStatus.UNLOCATED) {
-                        Match match = tryAllThreeModes(wid);
-                        if(match == null || match.getMatchPercent() < minimumMatchPercent) {
-                            unlocatedWidgets.add(wid);
-                        }
-                        else if (match != null && match.getMatchPercent() >= minimumMatchPercent) {
-                            wid.setWidgetStatus(Widget.WidgetStatus.LOCATED);
-                        }
+                    if(located) {
+                        wid.setWidgetStatus(Widget.WidgetStatus.LOCATED);
+                        rememberLocatedMatch(wid, match, frameId);
                     }
-
-                    if(!tempActionWidgets.contains(wid))
-                        tempActionWidgets.add(wid);
                 }
-                else if (wid.getWidgetStatus() == Widget.WidgetStatus.UNLOCATED) {
-                    if(!performImageWidget(wid)) {
-                        unlocatedWidgets.add(wid);
-                    }
-                    else {
+                else {
+                    located = located && performImageWidget(wid, match);
+                    if(located)
                         wid.setWidgetStatus(Widget.WidgetStatus.VALID);
-                    }
                 }
-            }
 
-            if(unlocatedWidgets.size() > 0) {
-                unlocatedWidgets.clear(); 
-                sleepForAmountMS(400);
-                shouldPerform = false;
+                if(located) {
+                    long usedMs = System.currentTimeMillis() - stateStart;
+                    retryReport.record(wid, attempt, usedMs, policy.getWidgetDeadline(wid), true);
+                    run.widgetDone(new WidgetResult(workState.getId(), String.valueOf(wid.getMetadata("IR_imageName")),
+                            wid.getWidgetStatus().name(), found.matcher, match.getMatchPercent(), attempt, usedMs,
+                            searchNanos.get(wid) / 1000000));
+                    it.remove();
+                }
             }
-            else {
-                keepIterating = false;
-                shouldPerform = true;
+            if(run.isCancelled())
+                break;
+
+            // Give up on the widgets whose deadline passes before the next attempt.
+            long delay = policy.getDelay(attempt);
+            long elapsed = System.currentTimeMillis() - stateStart;
+            boolean stateExpired = attempt >= policy.maxAttempts || elapsed + delay > policy.stateDeadlineMs;
+            for(Iterator<Widget> it = missingWidgets.iterator(); it.hasNext();) {
+                Widget wid = it.next();
+                long widgetDeadline = policy.getWidgetDeadline(wid);
+                if(stateExpired || elapsed + delay > widgetDeadline) {
+                    retryReport.record(wid, attempt, elapsed, widgetDeadline, false);
+                    run.widgetDone(new WidgetResult(workState.getId(), String.valueOf(wid.getMetadata("IR_imageName")),
+                            Widget.WidgetStatus.UNLOCATED.name(), null, -1, attempt, elapsed,
+                            searchNanos.getOrDefault(wid, 0L) / 1000000));
+                    writeFailureBundle(workState, wid, widgetImages.get(wid), attempt, elapsed);
+                    unlocatedWidgets.add(wid);
+                    it.remove();
+                }
             }
 
+            if(!missingWidgets.isEmpty())
+                run.sleep(delay);
         }
+        if(run.isCancelled())
+            return false;
+
+        run.stateDone();
+        boolean shouldPerform = unlocatedWidgets.isEmpty();
 
         if(perform && shouldPerform) {
             for(Widget tempPerformWidget : tempActionWidgets) {
-                keepIterating = performImageWidget(tempPerformWidget);
-                sleepForAmountMS(500);
+                keepIterating = !run.isCancelled() && performImageWidget(tempPerformWidget);
+                if(!run.isCancelled())
+                    run.sleep(500);
 
                 if(keepIterating)
-                    keepIterating = performAllStateWidgets(++depth, tempPerformWidget.getNextState(), true);
+                    keepIterating = performAllStateWidgets(++depth, tempPerformWidget.getNextState(), true, run);
                 else {
                     LOGGER.info("Failed to locate widget, stopping.");
 
@@ -1293,6 +2410,29 @@ public class ImageRecognition {
         return keepIterating;
     }
 
+    /**
+     * Helper method to locate a widget of a state, first in the small area where the widgets already found in the
+     * state predict it when the anchorsearch setting is on, and in the whole screenshot if it is not there.
+     * @param w The {@link scout.Widget Widget} to locate.
+     * @param find The image of the widget, may be null.
+     * @param layout The {@link WidgetLayout WidgetLayout} with the widgets of the state found so far.
+     * @return The {@link FoundMatch FoundMatch} of the widget, or null.
+     */
+    private FoundMatch findNearAnchors(Widget w, BufferedImage find, WidgetLayout layout) {
+        Settings s = settings;
+        Rectangle predicted = s.anchorSearch && find != null
+                ? layout.predict(w, find.getWidth(), find.getHeight(), s.anchorRadius) : null;
+        if(predicted != null) {
+            FoundMatch found = tryAllThreeModes(w, find, predicted);
+            if(found != null && found.match.getMatchPercent() >= s.minMatchPercent) {
+                EVENTS.event(Level.FINE, "anchor-hit", "image", w.getMetadata("IR_imageName"));
+                return found;
+            }
+            EVENTS.event(Level.FINE, "anchor-miss", "image", w.getMetadata("IR_imageName"));
+        }
+        return tryAllThreeModes(w, find);
+    }
+
     /**
      * Helper method to perform a single Left Mouse Button click.
      */
@@ -1345,12 +2485,64 @@ public class ImageRecognition {
     }
 
     /**
-     * Helper method to get a smaller sub-image from the {@link #currentScreenshot}.
+     * Helper method to trim a widget image to its salient content, see {@link TemplateTrimmer TemplateTrimmer}.
+     *
+     * The trimmed image has to be found where it was cut from and nowhere else on the screen, otherwise the
+     * widget could be performed at the wrong place later. If it is not unique, more of the surroundings are kept,
+     * and if that is not unique either the image is not trimmed.
+     * @param match Where the widget image is on the screen.
+     * @param found The widget image.
+     * @param screen The screenshot the widget image was taken from.
+     * @param focus The point the widget was picked at within the widget image, or null.
+     * @return The {@link Match Match} of the trimmed image on the screen, or null to keep the image as it is.
+     */
+    private Match trimTemplate(Match match, BufferedImage found, BufferedImage screen, Point focus) {
+        TemplateMatcher matcher = matchers.get(0);
+        int padding = Math.max(0, settings.trimPadding);
+        for(int attempt = 0; attempt < 2; attempt++, padding = Math.max(1, padding) * 4) {
+            Rectangle content = TemplateTrimmer.salientBounds(found, focus, padding);
+            if(content == null)
+                return null;
+
+            content.translate(match.getX(), match.getY());
+            BufferedImage trimmed = getSubimageView(screen, content);
+            if(trimmed == null)
+                return null;
+
+            // Where it was cut from, allowing for the match being a pixel or two off.
+            Rectangle expected = new Rectangle(content);
+            expected.grow(2, 2);
+            Match located = matcher.find(screen, trimmed, expected, settings.minMatchPercent);
+            if(located == null || located.getMatchPercent() < settings.minMatchPercent)
+                return null;
+
+            // Nowhere else, with the place it was cut from painted over.
+            BufferedImage masked = new BufferedImage(screen.getWidth(), screen.getHeight(), BufferedImage.TYPE_INT_RGB);
+            Graphics2D g = masked.createGraphics();
+            g.drawImage(screen, 0, 0, null);
+            g.setColor(Color.MAGENTA);
+            g.fillRect(content.x, content.y, content.width, content.height);
+            g.dispose();
+            Match other = matcher.find(masked, trimmed, null, settings.minMatchPercent);
+            if(other == null || other.getMatchPercent() < settings.minMatchPercent)
+                return located;
+
+            LOGGER.info("Trimmed widget image is found at [" + other.getX() + "," + other.getY() + "] too, "
+                    + (attempt == 0 ? "keeping more of its surroundings." : "not trimming it."));
+        }
+        return null;
+    }
+
+    /**
+     * Helper method to get a smaller sub-image from a screenshot.
+     *
+     * The sub-image is a view of the screenshot, see {@link #getSubimageView(BufferedImage, Rectangle)}.
+     * @param screenshot The screenshot, usually the one of a retained {@link CaptureFrame CaptureFrame}.
      * @param area The {@link java.awt.Rectangle Rectangle} of the new image within the larger one.
      * @return The newly created image. Returns null if it failed to create an image.
      */
-    private BufferedImage getWidgetImage(Rectangle area) {
-        BufferedImage widgetImage = EYE.getSubimage(currentScreenshot, area.x, area.y,area.width,area.height);
+    private BufferedImage getWidgetImage(BufferedImage screenshot, Rectangle area) {
+        BufferedImage widgetImage = getSubimageView(screenshot, area);
 
         if(widgetImage == null) {
             StateController.displayMessage("ERROR: WidgetImage was null. Check logs.", 1000);
@@ -1360,6 +2552,42 @@ public class ImageRecognition {
         return widgetImage;
     }
 
+    /**
+     * Helper method to get a sub-image that shares its pixels with the parent image instead of copying them.
+     *
+     * Changes to the parent are visible in the view, so use {@link #materializeImage(BufferedImage)} before the
+     * view has to outlive its parent or is persisted.
+     * @param image The parent {@link java.awt.image.BufferedImage BufferedImage}.
+     * @param area The {@link java.awt.Rectangle Rectangle} of the view, clamped to the parent bounds.
+     * @return The view, or null if the image is null or the area does not overlap it.
+     */
+    private static BufferedImage getSubimageView(BufferedImage image, Rectangle area) {
+        if(image == null)
+            return null;
+
+        Rectangle clamped = area.intersection(new Rectangle(0, 0, image.getWidth(), image.getHeight()));
+        if(clamped.isEmpty())
+            return null;
+
+        return image.getSubimage(clamped.x, clamped.y, clamped.width, clamped.height);
+    }
+
+    /**
+     * Helper method to copy an image view into an image that owns its pixels.
+     * @param image The {@link java.awt.image.BufferedImage BufferedImage} to copy.
+     * @return A compact copy of the image, or the image itself if it is not a view.
+     */
+    private static BufferedImage materializeImage(BufferedImage image) {
+        if(image == null || image.getRaster().getParent() == null)
+            return image;
+
+        int type = image.getType() == BufferedImage.TYPE_CUSTOM ? BufferedImage.TYPE_INT_RGB : image.getType();
+        BufferedImage copy = new BufferedImage(image.getWidth(), image.getHeight(), type);
+        copy.setData(image.getRaster().createTranslatedChild(0, 0));
+
+        return copy;
+    }
+
     /**
      * Helper method to get a screenshot from each of the available monitors.
      * @return An {@link java.util.ArrayList ArrayList} of {@link java.awt.image.BufferedImage BufferedImage}s
@@ -1379,6 +2607,20 @@ public class ImageRecognition {
         return screenShots;
     }
 
+    /**
+     * Helper method to capture an area of the desktop into a pooled {@link CaptureFrame CaptureFrame}.
+     * @param rect The area to capture in desktop coordinates.
+     * @return The captured frame with one reference held by the caller, or null if robot fails to instantiate.
+     */
+    private CaptureFrame captureFrame(Rectangle rect) {
+        if (!ensureRobot())
+            return null;
+
+        CaptureFrame frame = framePool.acquire(rect.width, rect.height);
+        frame.capture(getScreenCapturer(), rect);
+        return frame;
+    }
+
     /**
      * Helper method to get a specific monitors screenshot.
      * @param rect The monitor bounds in the form of a {@link java.awt.Rectangle Rectangle}.
@@ -1386,6 +2628,52 @@ public class ImageRecognition {
      * robot fails to instantiate.
      */
     private BufferedImage getMonitorScreenshot(Rectangle rect) {
+        if (!ensureRobot())
+            return null;
+
+        BufferedImage image = new BufferedImage(rect.width, rect.height, BufferedImage.TYPE_INT_RGB);
+        int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        getScreenCapturer().capture(rect, pixels, 0, rect.width);
+        return image;
+    }
+
+    /**
+     * Helper method to get the {@link ScreenCapturer ScreenCapturer} set by the capturebackend setting, created
+     * the first time it is needed after the settings changed. The {@link #robot} has to exist.
+     *
+     * With the xvfb backend the framebuffer file of Xvfb is read directly, areas outside of it and a file that
+     * can not be opened fall back to robot.
+     * @return The capturer to capture the screen with.
+     */
+    private static synchronized ScreenCapturer getScreenCapturer() {
+        if(screenCapturer == null) {
+            Settings current = settings;
+            ScreenCapturer robotCapturer = new RobotCapturer(robot, current.captureStripRows);
+            screenCapturer = robotCapturer;
+
+            if(current.captureBackend.equals("xvfb")) {
+                try {
+                    XvfbCapturer xvfb = XvfbCapturer.open(Paths.get(current.captureFile));
+                    screenCapturer = new FallbackCapturer(xvfb, robotCapturer);
+                    LOGGER.info("Capturing from the Xvfb framebuffer " + current.captureFile + " | " + xvfb.getWidth()
+                            + "x" + xvfb.getHeight());
+                } catch (IOException | RuntimeException e) {
+                    LOGGER.warning("Could not read the Xvfb framebuffer " + current.captureFile
+                            + ", capturing with robot. | " + e);
+                }
+            }
+            else if(!current.captureBackend.equals("robot")) {
+                LOGGER.warning("Unknown capture backend [" + current.captureBackend + "], capturing with robot.");
+            }
+        }
+        return screenCapturer;
+    }
+
+    /**
+     * Helper method to instantiate the {@link #robot} if it does not exist yet.
+     * @return True if the robot is available, otherwise False and the session is stopped.
+     */
+    private boolean ensureRobot() {
         if (robot == null){
             try{
                 robot = new Robot();
@@ -1394,10 +2682,10 @@ public class ImageRecognition {
                 LOGGER.severe("Failed to instantiate a Robot instance? | " + ExceptionUtils.getStackTrace(e));
                 StateController.displayMessage("Failed to instantiate a Robot instance, stopping session.", 5000);
                 StateController.stopSession();
-                return null;
+                return false;
             }
         }
-        return robot.createScreenCapture(rect);
+        return true;
     }
 
     /**
@@ -1513,7 +2801,7 @@ public class ImageRecognition {
             JButton confirmButton = new JButton("Confirm");
             confirmButton.addActionListener(new ActionListener(){
                 public void actionPerformed(ActionEvent ae){
-                    try (OutputStream output = new FileOutputStream("./settings/ImageRecognition.keybindings.properties")) {
+                    try (OutputStream output = new FileOutputStream(SETTINGS_FILE)) {
                         for(JTextField jf: propertyFields){
                             //LOGGER.info("Key: " + jf.getName() + " Value: " + jf.getText());
                             keyBindings.setProperty(jf.getName(),jf.getText());
@@ -1522,13 +2810,7 @@ public class ImageRecognition {
                         keyBindings.store(output,null);
 
                         // Update the application settings with the new values.
-                        minimumMatchPercent =  trySetDefaultIntegers("minmatchpercent", 100);
-                        defaultDimensionWidth = trySetDefaultIntegers("defaultwidgetwidth", 150);
-                        defaultDimensionHeight = trySetDefaultIntegers("defaultwidgetheight", 150);
-
-                        LOGGER.info("Minimum match = " + minimumMatchPercent + "% | Default widget size = [w="
-                                + defaultDimensionWidth + ",h=" + defaultDimensionHeight +"]");
-
+                        publishSettings(Settings.from(keyBindings), false);
 
                         keyBindingForm.dispose();
                     } catch (IOException e) {
@@ -1549,26 +2831,154 @@ public class ImageRecognition {
     }
 
     /**
-     * Helper method to extract some repetitive try/catch code from parsing the {@link java.util.Properties Properties}
-     * for the project while setting some default values.
-     * @param key The {@link java.lang.String String} representation of the key value in the {@link #keyBindings} list.
-     * @param defaultValue The int representation of the default value of the parameter.
-     * @return The stored value in int format if it exists and can be parsed as an int, otherwise the default value.
+     * Helper method to replace the {@link PluginState PluginState}. On the {@link PluginLoop PluginLoop} thread the
+     * new state is visible right away, from other threads the change is queued on the loop.
+     * @param change Creates the new state from the current one.
+     */
+    private static void update(UnaryOperator<PluginState> change) {
+        if(pluginLoop.isLoopThread())
+            plugin = change.apply(plugin);
+        else
+            pluginLoop.execute(() -> plugin = change.apply(plugin));
+    }
+
+    /**
+     * Helper method to publish a new {@link Settings Settings} snapshot, and to rebuild the matchers and the frame
+     * pool if their settings changed.
+     * @param next The new settings.
+     * @param force Rebuild the matchers and the frame pool even if their settings did not change.
+     */
+    private static synchronized void publishSettings(Settings next, boolean force) {
+        Settings previous = settings;
+        settings = next;
+
+        if(force || !next.hasSameMatchers(previous))
+            createMatchers(next);
+        if(force || next.framePoolSize != previous.framePoolSize)
+            framePool = new FramePool(next.framePoolSize);
+        if(force || next.captureStripRows != previous.captureStripRows
+                || !next.captureBackend.equals(previous.captureBackend) || !next.captureFile.equals(previous.captureFile))
+            resetScreenCapturer();
+        EVENTS.setSampling(next.logSampling);
+        captureScheduler.configure(next.adaptiveCapture, next.idleCaptureInterval, next.captureBoost);
+        frameHistory.configure(next.failureFrames);
+
+        LOGGER.info("Minimum match = " + next.minMatchPercent + "% | Default widget size = [w="
+                + next.defaultWidgetWidth + ",h=" + next.defaultWidgetHeight +"] | Matcher = " + next.matcher);
+    }
+
+    /**
+     * Helper method to create the {@link ScreenCapturer ScreenCapturer} again the next time it is needed.
+     */
+    private static synchronized void resetScreenCapturer() {
+        screenCapturer = null;
+    }
+
+    /**
+     * Helper method to write the log records of the plugin from a background thread, through the handlers
+     * the records went to before. Only done once.
+     * @param capacity The number of records the {@link AsyncLogHandler AsyncLogHandler} buffers.
+     */
+    private static synchronized void installAsyncLogging(int capacity) {
+        if(asyncLogHandler != null)
+            return;
+
+        List<Handler> targets = new ArrayList<>();
+        for(Logger logger = LOGGER; logger != null; logger = logger.getParent()) {
+            targets.addAll(Arrays.asList(logger.getHandlers()));
+            if(!logger.getUseParentHandlers())
+                break;
+        }
+        for(Handler handler : LOGGER.getHandlers())
+            LOGGER.removeHandler(handler);
+
+        asyncLogHandler = new AsyncLogHandler(targets, Math.max(16, capacity));
+        LOGGER.addHandler(asyncLogHandler);
+        LOGGER.setUseParentHandlers(false);
+        Runtime.getRuntime().addShutdownHook(new Thread(asyncLogHandler::close, "ImageRecognition-log-flush"));
+    }
+
+    /**
+     * Helper method to start the daemon thread that reloads the settings when the settings file changes.
+     */
+    private static synchronized void startSettingsWatcher() {
+        if(settingsWatcher != null)
+            return;
+
+        Path file = Paths.get(SETTINGS_FILE).toAbsolutePath().normalize();
+        try {
+            WatchService watchService = file.getFileSystem().newWatchService();
+            file.getParent().register(watchService, StandardWatchEventKinds.ENTRY_CREATE, StandardWatchEventKinds.ENTRY_MODIFY);
+            settingsWatcher = new Thread(() -> watchSettings(watchService, file), "ImageRecognition-settings");
+            settingsWatcher.setDaemon(true);
+            settingsWatcher.start();
+        } catch (IOException e) {
+            LOGGER.warning("Failed to watch the settings file, changes need a restart. | " + ExceptionUtils.getStackTrace(e));
+        }
+    }
+
+    /**
+     * Helper method that waits for changes to the settings file and reloads it, a burst of changes
+     * causes one reload.
+     * @param watchService The {@link java.nio.file.WatchService WatchService} the settings directory is registered with.
+     * @param file The settings file.
      */
-    private int trySetDefaultIntegers(String key, int defaultValue) {
+    private static void watchSettings(WatchService watchService, Path file) {
         try {
-            return Integer.parseInt(keyBindings.getProperty(key));
-        } catch (NumberFormatException e) {
-            LOGGER.warning("Failed to parse the key [" + key + "] due to NumberFormatException.");
-            return defaultValue;
+            while(true) {
+                WatchKey key = watchService.take();
+                boolean changed = false;
+                for(WatchEvent<?> event : key.pollEvents()) {
+                    if(file.getFileName().equals(event.context()))
+                        changed = true;
+                }
+                key.reset();
+
+                if(changed) {
+                    Thread.sleep(SETTINGS_RELOAD_DELAY_MS);
+                    for(WatchKey more = watchService.poll(); more != null; more = watchService.poll()) {
+                        more.pollEvents();
+                        more.reset();
+                    }
+                    reloadSettings(file);
+                }
+            }
+        } catch (InterruptedException | ClosedWatchServiceException e) {
+            LOGGER.fine("Stopped watching the settings file.");
+        }
+    }
+
+    /**
+     * Helper method to load the settings file and publish it if anything changed.
+     * @param file The settings file.
+     */
+    private static void reloadSettings(Path file) {
+        Properties loaded = new Properties();
+        try (Reader reader = new FileReader(file.toFile())) {
+            loaded.load(reader);
+        } catch (IOException e) {
+            LOGGER.warning("Failed to reload the settings. | " + ExceptionUtils.getStackTrace(e));
+            return;
+        }
+        putDefaultKeybindings(loaded);
+
+        Settings next = Settings.from(loaded);
+        if(next.equals(settings))
+            return;
+
+        synchronized (keyBindings) {
+            keyBindings.clear();
+            keyBindings.putAll(loaded);
         }
+        publishSettings(next, false);
+        StateController.displayMessage("Reloaded the ImageRecognition settings.", 2000);
     }
 
     /**
      * Helper method to load keybindings, ensure that all keybindings exist, and store them back to disk.
      */
     private void getOrCreateKeybindings() {
-        String file = "./settings/ImageRecognition.keybindings.properties";
+        String file = SETTINGS_FILE;
         try {
             keyBindings.load(new FileReader(file));
         } catch (IOException e) {
@@ -1576,21 +2986,7 @@ public class ImageRecognition {
             LOGGER.warning("failed to load keybindings");
         }
 
-        keyBindings.putIfAbsent("leftclick", "C");
-        keyBindings.putIfAbsent("rightclick", "V");
-        keyBindings.putIfAbsent("doubleclick", "B");
-        keyBindings.putIfAbsent("type", "N");
-        keyBindings.putIfAbsent("check", "M");
-        keyBindings.putIfAbsent("performwidgets", "R");
-        keyBindings.putIfAbsent("home", "H");
-        keyBindings.putIfAbsent("previousstate", "Q");
-        keyBindings.putIfAbsent("nextstate", "E");
-        keyBindings.putIfAbsent("menuaction", "X");
-        keyBindings.putIfAbsent("widgetfindretries", "5");
-        keyBindings.putIfAbsent("minmatchpercent", "100");
-        keyBindings.putIfAbsent("defaultwidgetwidth", "150");
-        keyBindings.putIfAbsent("defaultwidgetheight", "150");
-        keyBindings.putIfAbsent("forcerepair", "A");
+        putDefaultKeybindings(keyBindings);
 
         try {
             keyBindings.store(new FileOutputStream(file), "ImageRecognition Plugin Keybinds");
@@ -1601,8 +2997,67 @@ public class ImageRecognition {
     }
 
     /**
-     * Helper method to get the {@link java.lang.String String} representation of a {@link java.awt.event.KeyEvent KeyEvent}
-     * @param keyChar The {@link java.awt.event.KeyEvent KeyEvent} to get the char for.
+     * Helper method to add the default value of every setting that is missing.
+     * @param properties The {@link java.util.Properties Properties} to complete.
+     */
+    private static void putDefaultKeybindings(Properties properties) {
+        properties.putIfAbsent("leftclick", "C");
+        properties.putIfAbsent("rightclick", "V");
+        properties.putIfAbsent("doubleclick", "B");
+        properties.putIfAbsent("type", "N");
+        properties.putIfAbsent("check", "M");
+        properties.putIfAbsent("performwidgets", "R");
+        properties.putIfAbsent("home", "H");
+        properties.putIfAbsent("previousstate", "Q");
+        properties.putIfAbsent("nextstate", "E");
+        properties.putIfAbsent("menuaction", "X");
+        properties.putIfAbsent("widgetfindretries", "5");
+        properties.putIfAbsent("minmatchpercent", "100");
+        properties.putIfAbsent("defaultwidgetwidth", "150");
+        properties.putIfAbsent("defaultwidgetheight", "150");
+        properties.putIfAbsent("forcerepair", "A");
+        properties.putIfAbsent("menuwaittimeout", "3000");
+        properties.putIfAbsent("menusearchradius", "400");
+        properties.putIfAbsent("selectarea", "G");
+        properties.putIfAbsent("capturestriprows", "0");
+        properties.putIfAbsent("trimtemplates", "1");
+        properties.putIfAbsent("trimpadding", "4");
+        properties.putIfAbsent("capturebackend", "robot");
+        properties.putIfAbsent("capturefile", XvfbCapturer.DEFAULT_FILE);
+        properties.putIfAbsent("framepoolsize", "4");
+        properties.putIfAbsent("matcher", "eye");
+        properties.putIfAbsent("pixeltolerance", "16");
+        properties.putIfAbsent("matcherthreads", String.valueOf(Runtime.getRuntime().availableProcessors()));
+        properties.putIfAbsent("nccfftpixels", "4096");
+        properties.putIfAbsent("cyclematcher", "J");
+        properties.putIfAbsent("cleanuptemplates", "U");
+        properties.putIfAbsent("templatecleanup", "archive");
+        properties.putIfAbsent("templatecleanupbatch", "200");
+        properties.putIfAbsent("logsampling", "1");
+        properties.putIfAbsent("logbuffersize", "1024");
+        properties.putIfAbsent("adaptivecapture", "1");
+        properties.putIfAbsent("idlecaptureinterval", "1000");
+        properties.putIfAbsent("captureboost", "2000");
+        properties.putIfAbsent("prefilter", "0");
+        properties.putIfAbsent("prefilterslack", "20");
+        properties.putIfAbsent("anchorsearch", "1");
+        properties.putIfAbsent("anchorradius", "24");
+        properties.putIfAbsent("retrydeadline", "2000");
+        properties.putIfAbsent("statedeadline", "5000");
+        properties.putIfAbsent("retrybackoff", "exponential");
+        properties.putIfAbsent("retrydelay", "100");
+        properties.putIfAbsent("retrymaxdelay", "800");
+        properties.putIfAbsent("failureframes", "8");
+        properties.putIfAbsent("record", "O");
+        properties.putIfAbsent("recordkeyframes", "50");
+        properties.putIfAbsent("widgetreport", "Y");
+        properties.putIfAbsent("historyruns", "50");
+        properties.putIfAbsent("reportruns", "10");
+    }
+
+    /**
+     * Helper method to get the {@link java.lang.String String} representation of a {@link java.awt.event.KeyEvent KeyEvent}
+     * @param keyChar The {@link java.awt.event.KeyEvent KeyEvent} to get the char for.
      * @return The {@link java.lang.String String} representation of the event if it is Alphabetic, is a Digit, or is Defined.
      * Otherwise an Empty String.
      */
@@ -1619,23 +3074,4100 @@ public class ImageRecognition {
     private static class GlobalKeyboardListener implements NativeKeyListener {
         public void nativeKeyPressed(NativeKeyEvent e) {
             if (e.getKeyCode() == NativeKeyEvent.VC_CONTROL) {
-                isControlClicked = true;
+                update(s -> s.withControlClicked(true));
             }
             else if(e.getKeyCode() == NativeKeyEvent.VC_SHIFT) {
-                isShiftClicked = true;
+                update(s -> s.withShiftClicked(true));
             }
         }
 
         public void nativeKeyReleased(NativeKeyEvent e) {
             if (e.getKeyCode() == NativeKeyEvent.VC_CONTROL) {
-                isControlClicked = false;
+                update(s -> s.withControlClicked(false));
             }
             else if(e.getKeyCode() == NativeKeyEvent.VC_SHIFT) {
-                isShiftClicked = false;
+                update(s -> s.withShiftClicked(false));
             }
         }
         public void nativeKeyTyped(NativeKeyEvent e) {
             // Do nothing, has to exist to meet the interface implementation requirements.
         }
     }
+
+    /**
+     * Immutable snapshot of the state of the plugin during a session: the state it works from, the widgets that
+     * are being repaired, added or typed into, the kind of widget that is added next, the modifier keys and the
+     * drag points. Any thread can read the current snapshot from {@link #plugin}, only the {@link PluginLoop
+     * PluginLoop} thread replaces it, see {@link #update(UnaryOperator)}.
+     */
+    static final class PluginState {
+        final AppState currentState;
+        final Widget repairWidget;
+        final Widget menuWidget;
+        final Widget latestTypeWidget;
+        final Widget.WidgetType currentWidgetType;
+        final Widget.WidgetSubtype currentWidgetSubtype;
+        final boolean isControlClicked;
+        final boolean isShiftClicked;
+        final Point dragStartPoint;
+        final Point dragCurrentPoint;
+
+        PluginState() {
+            this(null, null, null, null, Widget.WidgetType.ACTION, Widget.WidgetSubtype.DOUBLE_CLICK_ACTION,
+                    false, false, null, null);
+        }
+
+        private PluginState(AppState currentState, Widget repairWidget, Widget menuWidget, Widget latestTypeWidget,
+                            Widget.WidgetType currentWidgetType, Widget.WidgetSubtype currentWidgetSubtype,
+                            boolean isControlClicked, boolean isShiftClicked, Point dragStartPoint, Point dragCurrentPoint) {
+            this.currentState = currentState;
+            this.repairWidget = repairWidget;
+            this.menuWidget = menuWidget;
+            this.latestTypeWidget = latestTypeWidget;
+            this.currentWidgetType = currentWidgetType;
+            this.currentWidgetSubtype = currentWidgetSubtype;
+            this.isControlClicked = isControlClicked;
+            this.isShiftClicked = isShiftClicked;
+            this.dragStartPoint = dragStartPoint;
+            this.dragCurrentPoint = dragCurrentPoint;
+        }
+
+        PluginState withCurrentState(AppState state) {
+            return new PluginState(state, repairWidget, menuWidget, latestTypeWidget, currentWidgetType,
+                    currentWidgetSubtype, isControlClicked, isShiftClicked, dragStartPoint, dragCurrentPoint);
+        }
+
+        PluginState withRepairWidget(Widget w) {
+            return new PluginState(currentState, w, menuWidget, latestTypeWidget, currentWidgetType,
+                    currentWidgetSubtype, isControlClicked, isShiftClicked, dragStartPoint, dragCurrentPoint);
+        }
+
+        PluginState withMenuWidget(Widget w) {
+            return new PluginState(currentState, repairWidget, w, latestTypeWidget, currentWidgetType,
+                    currentWidgetSubtype, isControlClicked, isShiftClicked, dragStartPoint, dragCurrentPoint);
+        }
+
+        PluginState withLatestTypeWidget(Widget w) {
+            return new PluginState(currentState, repairWidget, menuWidget, w, currentWidgetType,
+                    currentWidgetSubtype, isControlClicked, isShiftClicked, dragStartPoint, dragCurrentPoint);
+        }
+
+        PluginState withCurrentWidgetType(Widget.WidgetType type) {
+            return new PluginState(currentState, repairWidget, menuWidget, latestTypeWidget, type,
+                    currentWidgetSubtype, isControlClicked, isShiftClicked, dragStartPoint, dragCurrentPoint);
+        }
+
+        PluginState withCurrentWidgetSubtype(Widget.WidgetSubtype subtype) {
+            return new PluginState(currentState, repairWidget, menuWidget, latestTypeWidget, currentWidgetType,
+                    subtype, isControlClicked, isShiftClicked, dragStartPoint, dragCurrentPoint);
+        }
+
+        PluginState withControlClicked(boolean clicked) {
+            return new PluginState(currentState, repairWidget, menuWidget, latestTypeWidget, currentWidgetType,
+                    currentWidgetSubtype, clicked, isShiftClicked, dragStartPoint, dragCurrentPoint);
+        }
+
+        PluginState withShiftClicked(boolean clicked) {
+            return new PluginState(currentState, repairWidget, menuWidget, latestTypeWidget, currentWidgetType,
+                    currentWidgetSubtype, isControlClicked, clicked, dragStartPoint, dragCurrentPoint);
+        }
+
+        PluginState withDragStartPoint(Point p) {
+            return new PluginState(currentState, repairWidget, menuWidget, latestTypeWidget, currentWidgetType,
+                    currentWidgetSubtype, isControlClicked, isShiftClicked, p, dragCurrentPoint);
+        }
+
+        PluginState withDragCurrentPoint(Point p) {
+            return new PluginState(currentState, repairWidget, menuWidget, latestTypeWidget, currentWidgetType,
+                    currentWidgetSubtype, isControlClicked, isShiftClicked, dragStartPoint, p);
+        }
+    }
+
+    /**
+     * The single thread that owns the {@link PluginState PluginState}. Commands from Scout, the keyboard hook and
+     * Swing are put on a lock-free queue and run one at a time in order, so they never see each other half done.
+     * Long work is not run here but on the matcher pools and the background file thread.
+     */
+    static final class PluginLoop {
+        private final ConcurrentLinkedQueue<Runnable> commands = new ConcurrentLinkedQueue<>();
+        private final Thread thread;
+
+        PluginLoop(String name) {
+            thread = new Thread(this::runCommands, name);
+            thread.setDaemon(true);
+            thread.start();
+        }
+
+        boolean isLoopThread() {
+            return Thread.currentThread() == thread;
+        }
+
+        /**
+         * Run the command on the loop thread later.
+         */
+        void execute(Runnable command) {
+            commands.add(command);
+            LockSupport.unpark(thread);
+        }
+
+        /**
+         * Run the command on the loop thread and wait for it, directly if already on the loop thread.
+         */
+        void runAndWait(Runnable command) {
+            if(isLoopThread()) {
+                command.run();
+                return;
+            }
+
+            CompletableFuture<Void> done = new CompletableFuture<>();
+            execute(() -> {
+                try {
+                    command.run();
+                    done.complete(null);
+                } catch (Throwable t) {
+                    done.completeExceptionally(t);
+                }
+            });
+
+            try {
+                done.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (ExecutionException e) {
+                LOGGER.warning("Command failed on the plugin loop. | " + ExceptionUtils.getStackTrace(e.getCause()));
+            }
+        }
+
+        private void runCommands() {
+            while(true) {
+                Runnable command = commands.poll();
+                if(command == null) {
+                    LockSupport.park(this);
+                    continue;
+                }
+
+                try {
+                    command.run();
+                } catch (RuntimeException e) {
+                    LOGGER.warning("Command failed on the plugin loop. | " + ExceptionUtils.getStackTrace(e));
+                }
+            }
+        }
+    }
+
+    /**
+     * Structured log events for the hot paths, such as match attempts and retries. An event is a name and
+     * key/value pairs that are only turned into text when the record is written, on the writer thread of the
+     * {@link AsyncLogHandler AsyncLogHandler}. With sampling set to N only every Nth event of each name is logged,
+     * events below the level of the logger cost one check.
+     */
+    static final class EventLog {
+        private final Logger logger;
+        private final Map<String, AtomicLong> counters = new ConcurrentHashMap<>();
+        private volatile int sampling = 1;
+
+        EventLog(Logger logger) {
+            this.logger = logger;
+        }
+
+        /**
+         * @param sampling Log every Nth event of each name, 1 or less logs all of them.
+         */
+        void setSampling(int sampling) {
+            this.sampling = Math.max(1, sampling);
+        }
+
+        /**
+         * @param level The level to log the event at.
+         * @param name The name of the event.
+         * @param keyValues Alternating keys and values.
+         */
+        void event(Level level, String name, Object... keyValues) {
+            if(!logger.isLoggable(level))
+                return;
+
+            int every = sampling;
+            if(every > 1 && counters.computeIfAbsent(name, n -> new AtomicLong()).getAndIncrement() % every != 0)
+                return;
+
+            LogRecord record = new LogRecord(level, "{0}");
+            record.setParameters(new Object[] {new Event(name, keyValues, every)});
+            record.setLoggerName(logger.getName());
+            record.setSourceClassName(ImageRecognition.class.getName());
+            record.setSourceMethodName(name);
+            logger.log(record);
+        }
+
+        /**
+         * Formats itself as "name key=value ..." when the record is written.
+         */
+        private static final class Event {
+            private final String name;
+            private final Object[] keyValues;
+            private final int sampling;
+
+            Event(String name, Object[] keyValues, int sampling) {
+                this.name = name;
+                this.keyValues = keyValues;
+                this.sampling = sampling;
+            }
+
+            @Override
+            public String toString() {
+                StringBuilder text = new StringBuilder(name);
+                for(int i = 0; i + 1 < keyValues.length; i += 2)
+                    text.append(' ').append(keyValues[i]).append('=').append(keyValues[i + 1]);
+                if(sampling > 1)
+                    text.append(" sampled=1/").append(sampling);
+                return text.toString();
+            }
+        }
+    }
+
+    /**
+     * Log handler that puts records in a bounded ring buffer and writes them through other handlers from a
+     * daemon thread, so that logging does not block matching on console or file output. When the buffer is full
+     * the oldest record is dropped, the number of dropped records is logged once the writer catches up.
+     */
+    static final class AsyncLogHandler extends Handler {
+        private final List<Handler> targets;
+        private final LogRecord[] ring;
+        private final Thread writer;
+        private int head = 0;
+        private int size = 0;
+        private long dropped = 0;
+        private boolean writing = false;
+        private volatile boolean closed = false;
+
+        AsyncLogHandler(List<Handler> targets, int capacity) {
+            this.targets = new ArrayList<>(targets);
+            ring = new LogRecord[capacity];
+            writer = new Thread(this::writeRecords, "ImageRecognition-log");
+            writer.setDaemon(true);
+            writer.start();
+        }
+
+        @Override
+        public void publish(LogRecord record) {
+            if(closed || !isLoggable(record))
+                return;
+
+            // The caller can only be found on the logging thread.
+            record.getSourceClassName();
+
+            synchronized (ring) {
+                if(size == ring.length) {
+                    head = (head + 1) % ring.length;
+                    size--;
+                    dropped++;
+                }
+                ring[(head + size) % ring.length] = record;
+                size++;
+                ring.notifyAll();
+            }
+        }
+
+        /**
+         * Waits until the buffered records are written, then flushes the target handlers.
+         */
+        @Override
+        public void flush() {
+            synchronized (ring) {
+                while((size > 0 || writing) && writer.isAlive()) {
+                    try {
+                        ring.wait(100);
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        return;
+                    }
+                }
+            }
+            for(Handler target : targets)
+                target.flush();
+        }
+
+        @Override
+        public void close() {
+            flush();
+            closed = true;
+            writer.interrupt();
+        }
+
+        private void writeRecords() {
+            List<LogRecord> batch = new ArrayList<>();
+            while(!closed) {
+                long droppedRecords;
+                synchronized (ring) {
+                    writing = false;
+                    ring.notifyAll();
+                    while(size == 0) {
+                        try {
+                            ring.wait();
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+
+                    for(; size > 0; size--) {
+                        batch.add(ring[head]);
+                        ring[head] = null;
+                        head = (head + 1) % ring.length;
+                    }
+                    droppedRecords = dropped;
+                    dropped = 0;
+                    writing = true;
+                }
+
+                if(droppedRecords > 0)
+                    batch.add(0, new LogRecord(Level.WARNING, "Dropped " + droppedRecords + " log records, the log buffer was full."));
+                for(LogRecord record : batch) {
+                    for(Handler target : targets) {
+                        try {
+                            target.publish(record);
+                        } catch (RuntimeException e) {
+                            reportError(null, e, ErrorManager.WRITE_FAILURE);
+                        }
+                    }
+                }
+                batch.clear();
+            }
+        }
+    }
+
+    /**
+     * Immutable, parsed snapshot of the settings file. A new snapshot is published as a whole whenever the settings
+     * change, so the values are parsed once and not on every event, and code that reads the snapshot once sees
+     * consistent values.
+     */
+    static final class Settings {
+        final int minMatchPercent;
+        final int defaultWidgetWidth;
+        final int defaultWidgetHeight;
+        final int widgetFindRetries;
+        final int menuWaitTimeout;
+        final int menuSearchRadius;
+        final int captureStripRows;
+        final String captureBackend;
+        final String captureFile;
+        final boolean trimTemplates;
+        final int trimPadding;
+        final int framePoolSize;
+        final String matcher;
+        final int pixelTolerance;
+        final int matcherThreads;
+        final int nccFftPixels;
+        final String templateCleanup;
+        final int templateCleanupBatch;
+        final int logSampling;
+        final int logBufferSize;
+        final boolean adaptiveCapture;
+        final int idleCaptureInterval;
+        final int captureBoost;
+        final boolean prefilter;
+        final int prefilterSlack;
+        final boolean anchorSearch;
+        final int anchorRadius;
+        final int failureFrames;
+        final int recordKeyframes;
+        final int historyRuns;
+        final int reportRuns;
+        private final Map<String, RetryPolicy> retryPolicies = new ConcurrentHashMap<>();
+        private final Map<String, String> values;
+        private final Map<String, Integer> keyCodes = new HashMap<>();
+
+        private Settings(Map<String, String> values) {
+            this.values = values;
+            minMatchPercent = getInt("minmatchpercent", 100);
+            defaultWidgetWidth = getInt("defaultwidgetwidth", 150);
+            defaultWidgetHeight = getInt("defaultwidgetheight", 150);
+            widgetFindRetries = getInt("widgetfindretries", 5);
+            menuWaitTimeout = getInt("menuwaittimeout", 3000);
+            menuSearchRadius = getInt("menusearchradius", 400);
+            captureStripRows = getInt("capturestriprows", 0);
+            trimTemplates = getInt("trimtemplates", 1) != 0;
+            trimPadding = getInt("trimpadding", 4);
+            captureBackend = getName("capturebackend", "robot");
+            // A path, so not lower case like the names.
+            captureFile = values.getOrDefault("capturefile", XvfbCapturer.DEFAULT_FILE).trim();
+            framePoolSize = getInt("framepoolsize", 4);
+            matcher = getName("matcher", "eye");
+            pixelTolerance = getInt("pixeltolerance", 16);
+            matcherThreads = getInt("matcherthreads", Runtime.getRuntime().availableProcessors());
+            nccFftPixels = getInt("nccfftpixels", 4096);
+            templateCleanup = getName("templatecleanup", "archive");
+            templateCleanupBatch = getInt("templatecleanupbatch", 200);
+            logSampling = getInt("logsampling", 1);
+            logBufferSize = getInt("logbuffersize", 1024);
+            adaptiveCapture = getInt("adaptivecapture", 1) != 0;
+            idleCaptureInterval = getInt("idlecaptureinterval", 1000);
+            captureBoost = getInt("captureboost", 2000);
+            prefilter = getInt("prefilter", 0) != 0;
+            prefilterSlack = getInt("prefilterslack", 20);
+            anchorSearch = getInt("anchorsearch", 1) != 0;
+            anchorRadius = getInt("anchorradius", 24);
+            failureFrames = getInt("failureframes", 8);
+            recordKeyframes = getInt("recordkeyframes", 50);
+            historyRuns = getInt("historyruns", 50);
+            reportRuns = getInt("reportruns", 10);
+
+            for(Map.Entry<String, String> entry : values.entrySet()) {
+                if(!entry.getValue().isEmpty())
+                    keyCodes.put(entry.getKey(), KeyEvent.getExtendedKeyCodeForChar(entry.getValue().charAt(0)));
+            }
+        }
+
+        /**
+         * @param properties The settings to take a snapshot of.
+         * @return The snapshot.
+         */
+        static Settings from(Properties properties) {
+            Map<String, String> values = new TreeMap<>();
+            synchronized (properties) {
+                for(String key : properties.stringPropertyNames())
+                    values.put(key, properties.getProperty(key));
+            }
+            return new Settings(values);
+        }
+
+        /**
+         * @param product The product, its settings start with the product name and a dot, for example
+         * "myproduct.retrydeadline", and override the general ones.
+         * @return The {@link RetryPolicy RetryPolicy} for the product.
+         */
+        RetryPolicy getRetryPolicy(String product) {
+            return retryPolicies.computeIfAbsent(product == null ? "" : product, p -> {
+                String prefix = p.isEmpty() ? "" : p + ".";
+                String backoff = getName(prefix + "retrybackoff", getName("retrybackoff", "exponential"));
+                RetryPolicy.Backoff strategy;
+                try {
+                    strategy = RetryPolicy.Backoff.valueOf(backoff.toUpperCase());
+                } catch (IllegalArgumentException e) {
+                    LOGGER.warning("Unknown retry backoff [" + backoff + "], using exponential.");
+                    strategy = RetryPolicy.Backoff.EXPONENTIAL;
+                }
+                return new RetryPolicy(
+                        getInt(prefix + "widgetfindretries", widgetFindRetries),
+                        getInt(prefix + "retrydeadline", getInt("retrydeadline", 2000)),
+                        getInt(prefix + "statedeadline", getInt("statedeadline", 5000)),
+                        strategy,
+                        getInt(prefix + "retrydelay", getInt("retrydelay", 100)),
+                        getInt(prefix + "retrymaxdelay", getInt("retrymaxdelay", 800)));
+            });
+        }
+
+        /**
+         * @param key The name of the key binding.
+         * @return The {@link java.awt.event.KeyEvent KeyEvent} key code of the first character of the binding.
+         */
+        int getKeyCode(String key) {
+            Integer keyCode = keyCodes.get(key);
+            if(keyCode == null) {
+                LOGGER.warning("Failed to get property with the name: [" + key + "]");
+                return KeyEvent.VK_UNDEFINED;
+            }
+            return keyCode;
+        }
+
+        /**
+         * @return True if the matchers built from the other settings are the same as the ones built from these.
+         */
+        boolean hasSameMatchers(Settings other) {
+            return matcher.equals(other.matcher) && pixelTolerance == other.pixelTolerance
+                    && matcherThreads == other.matcherThreads && nccFftPixels == other.nccFftPixels;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof Settings && values.equals(((Settings) o).values);
+        }
+
+        @Override
+        public int hashCode() {
+            return values.hashCode();
+        }
+
+        private int getInt(String key, int defaultValue) {
+            String value = values.get(key);
+            if(value == null)
+                return defaultValue;
+
+            try {
+                return Integer.parseInt(value.trim());
+            } catch (NumberFormatException e) {
+                LOGGER.warning("Failed to parse the key [" + key + "] due to NumberFormatException.");
+                return defaultValue;
+            }
+        }
+
+        private String getName(String key, String defaultValue) {
+            String value = values.get(key);
+            return value == null ? defaultValue : value.trim().toLowerCase();
+        }
+    }
+
+    /**
+     * Locates a template image within a frame.
+     *
+     * Implementations are used from several threads at once and must be safe for that.
+     */
+    interface TemplateMatcher {
+        /**
+         * @param frame The image to search in.
+         * @param template The image to search for.
+         * @param region The area of the frame to search, or null to search the whole frame.
+         * @param minimumPercent The lowest match percent that is of interest, implementations may stop
+         * looking at a location as soon as it can no longer reach it.
+         * @return The best {@link Match Match} in frame coordinates, or null if nothing was found.
+         */
+        Match find(BufferedImage frame, BufferedImage template, Rectangle region, int minimumPercent);
+
+        /**
+         * @return A short name of the matcher for logs and benchmarks.
+         */
+        String getName();
+
+        /**
+         * @return True if the matcher only finds templates whose colors appear in the frame, so that
+         * {@link TemplateFeatures TemplateFeatures} can rule a template out before searching.
+         */
+        default boolean comparesColors() {
+            return true;
+        }
+
+        /**
+         * Make searches that are running or started later give up early and find nothing, until cleared again.
+         * @param stop True to stop searching, false to search normally again.
+         */
+        default void setStop(boolean stop) {
+        }
+
+        /**
+         * Release threads or other resources held by the matcher. It is not used afterwards.
+         */
+        default void close() {
+        }
+    }
+
+    /**
+     * Base of the matchers that split a search into tasks run on their own {@link ForkJoinPool ForkJoinPool}.
+     */
+    abstract static class ParallelMatcher implements TemplateMatcher {
+        protected final int threads;
+        private ForkJoinPool pool = null;
+        private volatile boolean stopped = false;
+
+        ParallelMatcher(int threads) {
+            this.threads = Math.max(threads, 1);
+        }
+
+        private synchronized ForkJoinPool getPool() {
+            if(pool == null)
+                pool = new ForkJoinPool(threads);
+            return pool;
+        }
+
+        /**
+         * Run the tasks in parallel and wait for all of them.
+         * @return The results in task order, or null if the search was interrupted or a task failed.
+         */
+        protected <T> List<T> invokeAll(List<Callable<T>> tasks) {
+            if(stopped)
+                return null;
+
+            try {
+                List<T> results = new ArrayList<>(tasks.size());
+                for(Future<T> result : getPool().invokeAll(tasks))
+                    results.add(result.get());
+                return results;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return null;
+            } catch (ExecutionException e) {
+                LOGGER.warning(getName() + " search failed | " + ExceptionUtils.getStackTrace(e));
+                return null;
+            } catch (RejectedExecutionException e) {
+                LOGGER.fine(getName() + " was closed during a search.");
+                return null;
+            }
+        }
+
+        @Override
+        public void setStop(boolean stop) {
+            stopped = stop;
+        }
+
+        @Override
+        public synchronized void close() {
+            if(pool != null)
+                pool.shutdown();
+            pool = null;
+        }
+    }
+
+    /**
+     * {@link TemplateMatcher TemplateMatcher} that delegates to an {@link eye.Eye Eye} in a fixed recognition mode.
+     */
+    static final class EyeMatcher implements TemplateMatcher {
+        private final Eye eye = new Eye();
+        private final Eye.RecognitionMode mode;
+
+        EyeMatcher(Eye.RecognitionMode mode) {
+            this.mode = mode;
+            eye.setRecognitionMode(mode);
+        }
+
+        @Override
+        public Match find(BufferedImage frame, BufferedImage template, Rectangle region, int minimumPercent) {
+            // Eye's own region overload does not restrict the search, so search a view and translate back.
+            Rectangle area = region == null ? null : region.intersection(new Rectangle(0, 0, frame.getWidth(), frame.getHeight()));
+            if(area != null && (area.width < template.getWidth() || area.height < template.getHeight()))
+                return null;
+            BufferedImage searched = area == null ? frame : getSubimageView(frame, area);
+            if(searched == null)
+                return null;
+
+            Match match;
+            // Eye keeps search state in the instance.
+            synchronized (eye) {
+                match = eye.findImage(searched, template);
+            }
+
+            if(match != null && area != null) {
+                match.setX(match.getX() + area.x);
+                match.setY(match.getY() + area.y);
+            }
+
+            return match;
+        }
+
+        @Override
+        public void setStop(boolean stop) {
+            // Not synchronized, the Eye checks the flag while it searches.
+            eye.setStop(stop);
+        }
+
+        @Override
+        public String getName() {
+            return "eye-" + mode.name().toLowerCase();
+        }
+    }
+
+    /**
+     * {@link TemplateMatcher TemplateMatcher} that compares the pixels of the template with every location of the frame.
+     *
+     * A template pixel matches when each color channel is within the tolerance. The match percent is the share of
+     * matching pixels, the same scale as {@link Match#getMatchPercent()}. A location is abandoned as soon as it has
+     * more mismatching pixels than the minimum percent allows, or than the best location found so far, so exact
+     * searches usually look at a single pixel per location. The rows of the frame are searched in parallel bands.
+     */
+    static final class PixelTemplateMatcher extends ParallelMatcher {
+        private static final int MIN_BAND_ROWS = 16;
+        private static final long MIN_PARALLEL_WORK = 1L << 20;
+
+        private final int tolerance;
+
+        PixelTemplateMatcher(int tolerance, int threads) {
+            super(threads);
+            this.tolerance = Math.max(tolerance, 0);
+        }
+
+        @Override
+        public Match find(BufferedImage frame, BufferedImage template, Rectangle region, int minimumPercent) {
+            Rectangle frameBounds = new Rectangle(0, 0, frame.getWidth(), frame.getHeight());
+            Rectangle searched = region == null ? frameBounds : region.intersection(frameBounds);
+            int tw = template.getWidth();
+            int th = template.getHeight();
+            int lastX = searched.x + searched.width - tw;
+            int lastY = searched.y + searched.height - th;
+
+            if(lastX < searched.x || lastY < searched.y)
+                return null;
+
+            PixelArray f = PixelArray.of(frame);
+            PixelArray t = PixelArray.of(template);
+            long pixels = (long) tw * th;
+            long allowed = pixels * (100 - Math.min(Math.max(minimumPercent, 0), 100)) / 100;
+            AtomicInteger perfectRow = new AtomicInteger(Integer.MAX_VALUE);
+
+            int rows = lastY - searched.y + 1;
+            long work = (long) rows * (lastX - searched.x + 1);
+            int bands = work < MIN_PARALLEL_WORK || threads == 1 ? 1 : Math.min(threads * 4, Math.max(rows / MIN_BAND_ROWS, 1));
+
+            long[] best = null;
+            if(bands == 1) {
+                best = searchBand(f, t, searched.x, lastX, searched.y, lastY, allowed, perfectRow);
+            }
+            else {
+                List<Callable<long[]>> tasks = new ArrayList<>(bands);
+                int bandRows = (rows + bands - 1) / bands;
+                for(int y = searched.y; y <= lastY; y += bandRows) {
+                    final int fromY = y;
+                    final int toY = Math.min(y + bandRows - 1, lastY);
+                    final int fromX = searched.x;
+                    final int toX = lastX;
+                    tasks.add(() -> searchBand(f, t, fromX, toX, fromY, toY, allowed, perfectRow));
+                }
+
+                List<long[]> results = invokeAll(tasks);
+                if(results == null)
+                    return null;
+
+                for(long[] band : results) {
+                    if(band != null && (best == null || band[2] < best[2]))
+                        best = band;
+                }
+            }
+
+            if(best == null)
+                return null;
+
+            return new Match((int) best[0], (int) best[1], tw, th, pixels - best[2], pixels, 1.0, 1.0);
+        }
+
+        /**
+         * Search the locations of one band, top to bottom and left to right.
+         * @return {x, y, mismatches} of the best location, or null if no location is within the allowed mismatches.
+         */
+        private long[] searchBand(PixelArray f, PixelArray t, int fromX, int toX, int fromY, int toY, long allowed,
+                                  AtomicInteger perfectRow) {
+            final int[] fData = f.data;
+            final int[] tData = t.data;
+            final int fStride = f.stride;
+            final int tStride = t.stride;
+            final int tw = t.width;
+            final int th = t.height;
+            final int tol = tolerance;
+            long limit = allowed;
+            int bestX = -1;
+            int bestY = -1;
+            long bestMisses = Long.MAX_VALUE;
+
+            for(int y = fromY; y <= toY; y++) {
+                // A perfect match higher up wins over anything this band can still find.
+                if(y > perfectRow.get())
+                    break;
+
+                int frameRow = f.offset + y * fStride;
+                for(int x = fromX; x <= toX; x++) {
+                    long misses = 0;
+
+                    rows:
+                    for(int ty = 0; ty < th; ty++) {
+                        int fi = frameRow + ty * fStride + x;
+                        int ti = t.offset + ty * tStride;
+                        int end = ti + tw;
+
+                        if(tol == 0) {
+                            for(; ti < end; ti++, fi++) {
+                                if(((fData[fi] ^ tData[ti]) & 0xFFFFFF) != 0 && ++misses > limit)
+                                    break rows;
+                            }
+                        }
+                        else {
+                            for(; ti < end; ti++, fi++) {
+                                int a = fData[fi];
+                                int b = tData[ti];
+                                if((Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF)) > tol
+                                        || Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF)) > tol
+                                        || Math.abs((a & 0xFF) - (b & 0xFF)) > tol) && ++misses > limit)
+                                    break rows;
+                            }
+                        }
+                    }
+
+                    if(misses <= limit && misses < bestMisses) {
+                        bestMisses = misses;
+                        bestX = x;
+                        bestY = y;
+
+                        if(misses == 0) {
+                            perfectRow.accumulateAndGet(y, Math::min);
+                            return new long[]{bestX, bestY, 0};
+                        }
+                        // Only strictly better locations are of interest from now on.
+                        limit = misses - 1;
+                    }
+                }
+            }
+
+            return bestX < 0 ? null : new long[]{bestX, bestY, bestMisses};
+        }
+
+        @Override
+        public String getName() {
+            return tolerance == 0 ? "pixel-exact" : "pixel-" + tolerance;
+        }
+    }
+
+    /**
+     * {@link TemplateMatcher TemplateMatcher} that scores locations with the normalized cross-correlation (NCC)
+     * of the luminance of the frame and the template.
+     *
+     * NCC ignores uniform changes in brightness and contrast and degrades gracefully on small changes such as
+     * anti-aliasing, where pixel exact matching fails outright. The match percent is the correlation coefficient
+     * times 100 (negative correlation counts as 0), so {@link Settings#minMatchPercent} keeps its meaning.
+     *
+     * The sum and the sum of squares of every window come from summed-area tables in O(1). The cross term is
+     * either computed directly, abandoning a location as soon as a Cauchy-Schwarz bound on the remaining rows
+     * shows that it cannot reach the minimum, or for large templates with FFTs over overlapping tiles.
+     */
+    static final class NccTemplateMatcher extends ParallelMatcher {
+        private static final int MIN_BAND_ROWS = 16;
+        private static final int MIN_TILE_SIZE = 256;
+        private static final double EPSILON = 1e-6;
+        // Accept scores that only miss the minimum by rounding, the percent is rounded to four decimals.
+        private static final double SCORE_SLACK = 5e-5;
+        private static final long PERFECT = 10000;
+        private static final ThreadLocal<double[][]> TILE_BUFFERS = new ThreadLocal<>();
+        // One set of tables is kept between searches, the GC may take it back when memory runs low.
+        private static final AtomicReference<SoftReference<SummedArea>> SPARE_AREA = new AtomicReference<>();
+
+        private final int fftMinPixels;
+
+        /**
+         * @param threads The number of threads to search with.
+         * @param fftMinPixels The template size, in pixels, from which FFT correlation is used. 0 or less disables it.
+         */
+        NccTemplateMatcher(int threads, int fftMinPixels) {
+            super(threads);
+            this.fftMinPixels = fftMinPixels;
+        }
+
+        @Override
+        public Match find(BufferedImage frame, BufferedImage template, Rectangle region, int minimumPercent) {
+            Rectangle frameBounds = new Rectangle(0, 0, frame.getWidth(), frame.getHeight());
+            Rectangle searched = region == null ? frameBounds : region.intersection(frameBounds);
+            int tw = template.getWidth();
+            int th = template.getHeight();
+
+            if(searched.width < tw || searched.height < th)
+                return null;
+
+            SummedArea area = takeSummedArea();
+            double[] best;
+            try {
+                area.compute(PixelArray.of(frame), searched);
+                Template t = new Template(PixelArray.of(template));
+                double threshold = Math.min(Math.max(minimumPercent, 0), 100) / 100.0 - SCORE_SLACK;
+
+                best = fftMinPixels > 0 && t.pixels >= fftMinPixels
+                        ? searchFft(area, t, threshold)
+                        : searchDirect(area, t, threshold);
+            } finally {
+                SPARE_AREA.set(new SoftReference<>(area));
+            }
+
+            if(best == null)
+                return null;
+
+            long score = Math.round(Math.max(best[2], 0) * PERFECT);
+            return new Match(searched.x + (int) best[0], searched.y + (int) best[1], tw, th,
+                    Math.min(score, PERFECT), PERFECT, 1.0, 1.0);
+        }
+
+        /**
+         * @return The spare {@link SummedArea SummedArea}, or a new one if another search is using it or it was collected.
+         */
+        private static SummedArea takeSummedArea() {
+            SoftReference<SummedArea> spare = SPARE_AREA.getAndSet(null);
+            SummedArea area = spare == null ? null : spare.get();
+            return area == null ? new SummedArea() : area;
+        }
+
+        private double[] searchDirect(SummedArea area, Template t, double threshold) {
+            int lastX = area.width - t.width;
+            int lastY = area.height - t.height;
+            int rows = lastY + 1;
+            int bands = threads == 1 ? 1 : Math.min(threads * 4, Math.max(rows / MIN_BAND_ROWS, 1));
+            if(bands == 1)
+                return searchDirectBand(area, t, 0, lastX, 0, lastY, threshold);
+
+            int bandRows = (rows + bands - 1) / bands;
+            List<Callable<double[]>> tasks = new ArrayList<>(bands);
+            for(int y = 0; y <= lastY; y += bandRows) {
+                final int fromY = y;
+                final int toY = Math.min(y + bandRows - 1, lastY);
+                tasks.add(() -> searchDirectBand(area, t, 0, lastX, fromY, toY, threshold));
+            }
+
+            return bestOf(invokeAll(tasks));
+        }
+
+        /**
+         * @return {x, y, score} of the best location of the band that reaches the threshold, or null.
+         */
+        private static double[] searchDirectBand(SummedArea area, Template t, int fromX, int toX, int fromY, int toY,
+                                                 double threshold) {
+            final float[] lum = area.luminance;
+            final double[] tz = t.zeroMean;
+            final int stride = area.width;
+            final int tw = t.width;
+            final int th = t.height;
+            double best = threshold;
+            double[] result = null;
+
+            for(int y = fromY; y <= toY; y++) {
+                for(int x = fromX; x <= toX; x++) {
+                    double sum = area.sum(x, y, tw, th);
+                    double variance = area.squares(x, y, tw, th) - sum * sum / t.pixels;
+                    double score;
+
+                    if(variance <= EPSILON || t.variance <= EPSILON) {
+                        score = flatScore(variance, sum / t.pixels, t);
+                    }
+                    else {
+                        double mean = sum / t.pixels;
+                        double denominator = Math.sqrt(variance * t.variance);
+                        double needed = best * denominator;
+                        double cross = 0;
+                        boolean abandoned = false;
+
+                        for(int ty = 0; ty < th; ty++) {
+                            int fi = (y + ty) * stride + x;
+                            int ti = ty * tw;
+                            for(int tx = 0; tx < tw; tx++)
+                                cross += lum[fi + tx] * tz[ti + tx];
+
+                            int left = th - ty - 1;
+                            if(left > 0) {
+                                // Upper bound of what the remaining rows can add to the cross term.
+                                double restSum = area.sum(x, y + ty + 1, tw, left);
+                                double restSquares = area.squares(x, y + ty + 1, tw, left);
+                                double restVariance = restSquares - 2 * mean * restSum + mean * mean * tw * left;
+                                double bound = cross + mean * t.rowSuffixSum[ty + 1]
+                                        + Math.sqrt(Math.max(restVariance, 0) * t.rowSuffixSquares[ty + 1]);
+                                if(bound < needed) {
+                                    abandoned = true;
+                                    break;
+                                }
+                            }
+                        }
+
+                        score = abandoned ? -1 : cross / denominator;
+                    }
+
+                    if(score >= best && (result == null || score > result[2])) {
+                        result = new double[]{x, y, score};
+                        best = score;
+                    }
+                }
+            }
+
+            return result;
+        }
+
+        private double[] searchFft(SummedArea area, Template t, double threshold) {
+            int size = MIN_TILE_SIZE;
+            while(size < 2 * Math.max(t.width, t.height))
+                size <<= 1;
+            final int tileSize = size;
+
+            // Spectrum of the zero mean template, shared by all tiles.
+            double[] templateRe = new double[tileSize * tileSize];
+            double[] templateIm = new double[tileSize * tileSize];
+            for(int ty = 0; ty < t.height; ty++)
+                System.arraycopy(t.zeroMean, ty * t.width, templateRe, ty * tileSize, t.width);
+            Fft fft = new Fft(tileSize);
+            fft.transform2d(templateRe, templateIm, false);
+
+            int lastX = area.width - t.width;
+            int lastY = area.height - t.height;
+            int stepX = tileSize - t.width + 1;
+            int stepY = tileSize - t.height + 1;
+
+            List<Callable<double[]>> tasks = new ArrayList<>();
+            for(int oy = 0; oy <= lastY; oy += stepY) {
+                for(int ox = 0; ox <= lastX; ox += stepX) {
+                    final int tileX = ox;
+                    final int tileY = oy;
+                    final int toX = Math.min(ox + stepX - 1, lastX);
+                    final int toY = Math.min(oy + stepY - 1, lastY);
+                    tasks.add(() -> searchFftTile(area, t, fft, templateRe, templateIm, tileX, tileY, toX, toY, threshold));
+                }
+            }
+
+            return bestOf(invokeAll(tasks));
+        }
+
+        /**
+         * Correlate one tile of the frame with the template and score its valid locations.
+         * @return {x, y, score} of the best location of the tile that reaches the threshold, or null.
+         */
+        private static double[] searchFftTile(SummedArea area, Template t, Fft fft, double[] templateRe,
+                                               double[] templateIm, int tileX, int tileY, int toX, int toY,
+                                               double threshold) {
+            int size = fft.size;
+            double[][] buffers = TILE_BUFFERS.get();
+            if(buffers == null || buffers[0].length != size * size) {
+                buffers = new double[][]{new double[size * size], new double[size * size]};
+                TILE_BUFFERS.set(buffers);
+            }
+            double[] re = buffers[0];
+            double[] im = buffers[1];
+            Arrays.fill(re, 0);
+            Arrays.fill(im, 0);
+
+            int copyWidth = Math.min(size, area.width - tileX);
+            int copyHeight = Math.min(size, area.height - tileY);
+            for(int y = 0; y < copyHeight; y++) {
+                int source = (tileY + y) * area.width + tileX;
+                for(int x = 0; x < copyWidth; x++)
+                    re[y * size + x] = area.luminance[source + x];
+            }
+
+            fft.transform2d(re, im, false);
+            // Multiply with the conjugate of the template spectrum to correlate instead of convolve.
+            for(int i = 0; i < re.length; i++) {
+                double a = re[i];
+                double b = im[i];
+                double c = templateRe[i];
+                double d = templateIm[i];
+                re[i] = a * c + b * d;
+                im[i] = b * c - a * d;
+            }
+            fft.transform2d(re, im, true);
+
+            double best = threshold;
+            double[] result = null;
+            for(int y = tileY; y <= toY; y++) {
+                for(int x = tileX; x <= toX; x++) {
+                    double sum = area.sum(x, y, t.width, t.height);
+                    double variance = area.squares(x, y, t.width, t.height) - sum * sum / t.pixels;
+                    double score;
+
+                    if(variance <= EPSILON || t.variance <= EPSILON)
+                        score = flatScore(variance, sum / t.pixels, t);
+                    else
+                        score = re[(y - tileY) * size + (x - tileX)] / Math.sqrt(variance * t.variance);
+
+                    if(score >= best && (result == null || score > result[2])) {
+                        result = new double[]{x, y, score};
+                        best = score;
+                    }
+                }
+            }
+
+            return result;
+        }
+
+        /**
+         * NCC is undefined when the window or the template has no variance. Two flat areas of about the same
+         * brightness are a match, anything else is not.
+         */
+        private static double flatScore(double variance, double mean, Template t) {
+            if(variance <= EPSILON && t.variance <= EPSILON)
+                return Math.abs(mean - t.mean) <= 1.0 ? 1.0 : 0.0;
+            return 0.0;
+        }
+
+        /**
+         * @return The result with the highest score, the first one on ties, or null if there is none.
+         */
+        private static double[] bestOf(List<double[]> results) {
+            if(results == null)
+                return null;
+
+            double[] best = null;
+            for(double[] result : results) {
+                if(result != null && (best == null || result[2] > best[2]))
+                    best = result;
+            }
+            return best;
+        }
+
+        /**
+         * Luminance of the template with its mean removed, and the sums used by the early exit bound.
+         */
+        private static final class Template {
+            final int width;
+            final int height;
+            final int pixels;
+            final double[] zeroMean;
+            final double mean;
+            final double variance;
+            final double[] rowSuffixSum;
+            final double[] rowSuffixSquares;
+
+            Template(PixelArray image) {
+                width = image.width;
+                height = image.height;
+                pixels = width * height;
+                zeroMean = new double[pixels];
+
+                double sum = 0;
+                for(int y = 0; y < height; y++) {
+                    for(int x = 0; x < width; x++) {
+                        double value = luminance(image.data[image.offset + y * image.stride + x]);
+                        zeroMean[y * width + x] = value;
+                        sum += value;
+                    }
+                }
+
+                mean = sum / pixels;
+                rowSuffixSum = new double[height + 1];
+                rowSuffixSquares = new double[height + 1];
+                double total = 0;
+                for(int y = height - 1; y >= 0; y--) {
+                    double rowSum = 0;
+                    double rowSquares = 0;
+                    for(int x = 0; x < width; x++) {
+                        double value = zeroMean[y * width + x] - mean;
+                        zeroMean[y * width + x] = value;
+                        rowSum += value;
+                        rowSquares += value * value;
+                    }
+                    rowSuffixSum[y] = rowSuffixSum[y + 1] + rowSum;
+                    rowSuffixSquares[y] = rowSuffixSquares[y + 1] + rowSquares;
+                    total += rowSquares;
+                }
+                variance = total;
+            }
+        }
+
+        /**
+         * Luminance of the searched part of a frame with its summed-area tables of values and squared values.
+         * The luminance is 8 bits, so floats hold it exactly and the tables are whole numbers: the sums are ints,
+         * which may wrap around on large frames but give the exact sum of any window of less than 8 million pixels,
+         * and the squares are longs. The buffers only grow, so they are reused from one search to the next.
+         */
+        private static final class SummedArea {
+            int width;
+            int height;
+            float[] luminance = new float[0];
+            int[] sums = new int[0];
+            long[] squares = new long[0];
+
+            void compute(PixelArray frame, Rectangle searched) {
+                width = searched.width;
+                height = searched.height;
+                int tableSize = (width + 1) * (height + 1);
+                if(luminance.length < width * height)
+                    luminance = new float[width * height];
+                if(sums.length < tableSize) {
+                    sums = new int[tableSize];
+                    squares = new long[tableSize];
+                }
+
+                int tableStride = width + 1;
+                Arrays.fill(sums, 0, tableStride, 0);
+                Arrays.fill(squares, 0, tableStride, 0);
+                for(int y = 0; y < height; y++) {
+                    int source = frame.offset + (searched.y + y) * frame.stride + searched.x;
+                    int row = (y + 1) * tableStride;
+                    int rowSum = 0;
+                    long rowSquares = 0;
+                    sums[row] = 0;
+                    squares[row] = 0;
+
+                    for(int x = 0; x < width; x++) {
+                        int value = luminance(frame.data[source + x]);
+                        luminance[y * width + x] = value;
+                        rowSum += value;
+                        rowSquares += value * value;
+                        sums[row + x + 1] = sums[row - tableStride + x + 1] + rowSum;
+                        squares[row + x + 1] = squares[row - tableStride + x + 1] + rowSquares;
+                    }
+                }
+            }
+
+            double sum(int x, int y, int w, int h) {
+                int stride = width + 1;
+                int top = y * stride;
+                int bottom = (y + h) * stride;
+                return sums[bottom + x + w] - sums[top + x + w] - sums[bottom + x] + sums[top + x];
+            }
+
+            double squares(int x, int y, int w, int h) {
+                int stride = width + 1;
+                int top = y * stride;
+                int bottom = (y + h) * stride;
+                return squares[bottom + x + w] - squares[top + x + w] - squares[bottom + x] + squares[top + x];
+            }
+        }
+
+        /**
+         * @return The luminance of a packed RGB pixel as a whole number from 0 to 255, which keeps the
+         * summed-area tables exact.
+         */
+        private static int luminance(int rgb) {
+            return (((rgb >> 16) & 0xFF) * 77 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8;
+        }
+
+        @Override
+        public String getName() {
+            return "ncc";
+        }
+
+        @Override
+        public boolean comparesColors() {
+            return false;
+        }
+    }
+
+    /**
+     * In-place radix-2 fast Fourier transform of square power of two sized complex images.
+     */
+    static final class Fft {
+        final int size;
+        private final double[] cos;
+        private final double[] sin;
+        private final int[] reversed;
+
+        Fft(int size) {
+            if(Integer.bitCount(size) != 1)
+                throw new IllegalArgumentException("FFT size must be a power of two, was " + size);
+
+            this.size = size;
+            cos = new double[size / 2];
+            sin = new double[size / 2];
+            for(int i = 0; i < size / 2; i++) {
+                cos[i] = Math.cos(-2 * Math.PI * i / size);
+                sin[i] = Math.sin(-2 * Math.PI * i / size);
+            }
+
+            reversed = new int[size];
+            int bits = Integer.numberOfTrailingZeros(size);
+            for(int i = 0; i < size; i++)
+                reversed[i] = Integer.reverse(i) >>> (32 - bits);
+        }
+
+        /**
+         * Transform the rows and then the columns of a size x size image. The inverse transform is scaled.
+         */
+        void transform2d(double[] re, double[] im, boolean inverse) {
+            for(int row = 0; row < size; row++)
+                transform(re, im, row * size, 1, inverse);
+            for(int column = 0; column < size; column++)
+                transform(re, im, column, size, inverse);
+
+            if(inverse) {
+                double scale = 1.0 / ((double) size * size);
+                for(int i = 0; i < size * size; i++) {
+                    re[i] *= scale;
+                    im[i] *= scale;
+                }
+            }
+        }
+
+        private void transform(double[] re, double[] im, int offset, int stride, boolean inverse) {
+            for(int i = 0; i < size; i++) {
+                int j = reversed[i];
+                if(j > i) {
+                    int a = offset + i * stride;
+                    int b = offset + j * stride;
+                    double tr = re[a];
+                    re[a] = re[b];
+                    re[b] = tr;
+                    double ti = im[a];
+                    im[a] = im[b];
+                    im[b] = ti;
+                }
+            }
+
+            double direction = inverse ? -1 : 1;
+            for(int length = 2; length <= size; length <<= 1) {
+                int half = length >> 1;
+                int step = size / length;
+                for(int start = 0; start < size; start += length) {
+                    for(int k = 0; k < half; k++) {
+                        double wr = cos[k * step];
+                        double wi = direction * sin[k * step];
+                        int a = offset + (start + k) * stride;
+                        int b = offset + (start + k + half) * stride;
+                        double xr = re[b] * wr - im[b] * wi;
+                        double xi = re[b] * wi + im[b] * wr;
+                        re[b] = re[a] - xr;
+                        im[b] = im[a] - xi;
+                        re[a] += xr;
+                        im[a] += xi;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * Finds the images in the image directory that no widget of the state tree refers to, and archives or deletes
+     * them in batches. Repairs, failed inserts and cancelled Type actions leave such images behind.
+     *
+     * The state tree is walked first and nothing is removed if that fails, so a tree that changes during the walk
+     * can not get its images removed. Images that are newer than the start of the run are kept, they may belong
+     * to a widget that is being added. The directory is streamed, and the run pauses between batches so that it
+     * does not compete with the session for the disk.
+     */
+    static final class TemplateCollector implements Runnable {
+        private static final long BATCH_PAUSE_MS = 50;
+        private final AppState root;
+        private final Path imageDirectory;
+        private final Path archiveDirectory;
+        private final int batchSize;
+        private final long startedAt;
+        private int scanned = 0;
+        private int removed = 0;
+        private int failed = 0;
+
+        /**
+         * @param root The root of the state tree.
+         * @param imageDirectory The directory with the widget images.
+         * @param archiveDirectory The directory to move unreferenced images to, or null to delete them.
+         * @param batchSize The number of images to remove before pausing.
+         * @param startedAt The time in milliseconds, images modified after it are kept.
+         */
+        TemplateCollector(AppState root, Path imageDirectory, Path archiveDirectory, int batchSize, long startedAt) {
+            this.root = root;
+            this.imageDirectory = imageDirectory;
+            this.archiveDirectory = archiveDirectory;
+            this.batchSize = batchSize;
+            this.startedAt = startedAt;
+        }
+
+        @Override
+        public void run() {
+            long start = System.nanoTime();
+            Set<String> referenced;
+            try {
+                referenced = getReferencedImages(root);
+            } catch (RuntimeException e) {
+                LOGGER.warning("Template cleanup stopped, failed to walk the state tree. | " + ExceptionUtils.getStackTrace(e));
+                return;
+            }
+
+            if(referenced.isEmpty()) {
+                LOGGER.info("Template cleanup stopped, the state tree refers to no images.");
+                return;
+            }
+
+            List<Path> batch = new ArrayList<>(batchSize);
+            try (DirectoryStream<Path> images = Files.newDirectoryStream(imageDirectory, "*.png")) {
+                if(archiveDirectory != null)
+                    Files.createDirectories(archiveDirectory);
+
+                for(Path image : images) {
+                    scanned++;
+                    if(referenced.contains(image.getFileName().toString())
+                            || Files.getLastModifiedTime(image).toMillis() >= startedAt)
+                        continue;
+
+                    batch.add(image);
+                    if(batch.size() >= batchSize) {
+                        removeBatch(batch);
+                        Thread.sleep(BATCH_PAUSE_MS);
+                    }
+                }
+                removeBatch(batch);
+            } catch (IOException e) {
+                LOGGER.warning("Template cleanup stopped. | " + ExceptionUtils.getStackTrace(e));
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+
+            String result = "Template cleanup " + (archiveDirectory != null ? "archived " : "deleted ") + removed
+                    + " of " + scanned + " images";
+            LOGGER.info(result + ", " + failed + " failed, it took [" + ((System.nanoTime() - start) / ONE_MILLION) + "ms]");
+            StateController.displayMessage(result + ".", 3000);
+        }
+
+        /**
+         * @return The names of all images the widgets of the tree refer to.
+         */
+        static Set<String> getReferencedImages(AppState root) {
+            Set<String> referenced = new HashSet<>();
+            Set<AppState> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            ArrayDeque<AppState> open = new ArrayDeque<>();
+            if(root != null)
+                open.push(root);
+
+            while(!open.isEmpty()) {
+                AppState state = open.pop();
+                if(!visited.add(state))
+                    continue;
+
+                for(Widget w : state.getAllWidgets()) {
+                    addName(referenced, w.getMetadata("IR_imageName"));
+                    addName(referenced, w.getMetadata("IR_secondImageWidget"));
+                    if(w.getNextState() != null)
+                        open.push(w.getNextState());
+                }
+            }
+            return referenced;
+        }
+
+        private static void addName(Set<String> names, Object name) {
+            if(name instanceof String)
+                names.add((String) name);
+        }
+
+        private void removeBatch(List<Path> batch) {
+            for(Path image : batch) {
+                try {
+                    Path sidecar = TemplateFeatures.getSidecar(image);
+                    if(archiveDirectory != null) {
+                        Files.move(image, archiveDirectory.resolve(image.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                        if(Files.exists(sidecar))
+                            Files.move(sidecar, archiveDirectory.resolve(sidecar.getFileName()), StandardCopyOption.REPLACE_EXISTING);
+                    }
+                    else {
+                        Files.delete(image);
+                        Files.deleteIfExists(sidecar);
+                    }
+                    removed++;
+                } catch (IOException e) {
+                    LOGGER.fine("Failed to remove image " + image + " | " + e);
+                    failed++;
+                }
+            }
+            batch.clear();
+        }
+    }
+
+    /**
+     * Cheap summary of an image: a color histogram, luminance statistics and an edge count. Comparing the
+     * features of a template with those of a frame shows when the template can not be in the frame, for example
+     * because a color of the template is missing, and the search can be skipped. The features of templates are
+     * stored next to the image in a sidecar file, see {@link #getSidecar(Path)}.
+     *
+     * Every check allows for a share of the template, the slack, to differ, as the tolerant matchers find
+     * templates whose colors have shifted a little. A color that shifts across the edge of its bin ends up in a
+     * neighbouring bin, so the pixels of a template bin are also looked for in the neighbouring bins of the frame.
+     */
+    static final class TemplateFeatures {
+        static final int BINS = 64; // 2 bits per channel
+        private static final int VERSION = 1;
+        private static final int EDGE_THRESHOLD = 48;
+        final int pixels;
+        final int[] histogram;
+        final double luminanceMean;
+        final double luminanceDeviation;
+        final int luminanceMin;
+        final int luminanceMax;
+        final int edges;
+        private final int[] neighbourhood;
+
+        private TemplateFeatures(int pixels, int[] histogram, double luminanceMean, double luminanceDeviation,
+                                 int luminanceMin, int luminanceMax, int edges) {
+            this.pixels = pixels;
+            this.histogram = histogram;
+            this.neighbourhood = spread(histogram);
+            this.luminanceMean = luminanceMean;
+            this.luminanceDeviation = luminanceDeviation;
+            this.luminanceMin = luminanceMin;
+            this.luminanceMax = luminanceMax;
+            this.edges = edges;
+        }
+
+        static TemplateFeatures of(BufferedImage image) {
+            PixelArray p = PixelArray.of(image);
+            int[] histogram = new int[BINS];
+            int[] previousRow = new int[p.width];
+            long sum = 0;
+            long sumSquares = 0;
+            int min = 255;
+            int max = 0;
+            int edges = 0;
+
+            for(int y = 0; y < p.height; y++) {
+                int row = p.offset + y * p.stride;
+                int left = 0;
+                for(int x = 0; x < p.width; x++) {
+                    int rgb = p.data[row + x];
+                    histogram[((rgb >> 18) & 0x30) | ((rgb >> 12) & 0x0C) | ((rgb >> 6) & 0x03)]++;
+
+                    int l = (((rgb >> 16) & 0xFF) * 77 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8;
+                    sum += l;
+                    sumSquares += l * l;
+                    min = Math.min(min, l);
+                    max = Math.max(max, l);
+
+                    int gradient = (x > 0 ? Math.abs(l - left) : 0) + (y > 0 ? Math.abs(l - previousRow[x]) : 0);
+                    if(gradient > EDGE_THRESHOLD)
+                        edges++;
+                    left = l;
+                    previousRow[x] = l;
+                }
+            }
+
+            int pixels = p.width * p.height;
+            double mean = pixels == 0 ? 0 : (double) sum / pixels;
+            double deviation = pixels == 0 ? 0 : Math.sqrt(Math.max(0, (double) sumSquares / pixels - mean * mean));
+            return new TemplateFeatures(pixels, histogram, mean, deviation, min, max, edges);
+        }
+
+        /**
+         * @param area The features of the frame or region that would be searched.
+         * @param slack The share of the template, from 0 to 1, that may differ from the area.
+         * @return False if the template can not be in the area.
+         */
+        boolean mayBeIn(TemplateFeatures area, double slack) {
+            if(pixels > area.pixels)
+                return false;
+
+            long missing = 0;
+            for(int bin = 0; bin < BINS; bin++)
+                missing += Math.max(0, histogram[bin] - area.neighbourhood[bin]);
+            if(missing > slack * pixels)
+                return false;
+
+            int margin = (int) (slack * 255);
+            if(luminanceMin < area.luminanceMin - margin || luminanceMax > area.luminanceMax + margin)
+                return false;
+
+            return edges * (1 - slack) <= area.edges;
+        }
+
+        /**
+         * @return For every bin, the number of pixels in the bin and the bins next to it, one step up or down in
+         * any of the channels.
+         */
+        private static int[] spread(int[] histogram) {
+            int[] spread = new int[BINS];
+            for(int bin = 0; bin < BINS; bin++) {
+                int r = bin >> 4;
+                int g = (bin >> 2) & 3;
+                int b = bin & 3;
+                int sum = 0;
+                for(int nr = Math.max(0, r - 1); nr <= Math.min(3, r + 1); nr++) {
+                    for(int ng = Math.max(0, g - 1); ng <= Math.min(3, g + 1); ng++) {
+                        for(int nb = Math.max(0, b - 1); nb <= Math.min(3, b + 1); nb++)
+                            sum += histogram[(nr << 4) | (ng << 2) | nb];
+                    }
+                }
+                spread[bin] = sum;
+            }
+            return spread;
+        }
+
+        /**
+         * @return The sidecar file of an image, the image path with ".features" appended.
+         */
+        static Path getSidecar(Path image) {
+            return image.resolveSibling(image.getFileName() + ".features");
+        }
+
+        void save(Path file) throws IOException {
+            Properties properties = new Properties();
+            properties.setProperty("version", String.valueOf(VERSION));
+            properties.setProperty("pixels", String.valueOf(pixels));
+            StringBuilder bins = new StringBuilder();
+            for(int bin = 0; bin < BINS; bin++)
+                bins.append(bin == 0 ? "" : ",").append(histogram[bin]);
+            properties.setProperty("histogram", bins.toString());
+            properties.setProperty("luminanceMean", String.valueOf(luminanceMean));
+            properties.setProperty("luminanceDeviation", String.valueOf(luminanceDeviation));
+            properties.setProperty("luminanceMin", String.valueOf(luminanceMin));
+            properties.setProperty("luminanceMax", String.valueOf(luminanceMax));
+            properties.setProperty("edges", String.valueOf(edges));
+
+            try (OutputStream output = Files.newOutputStream(file)) {
+                properties.store(output, "ImageRecognition template features");
+            }
+        }
+
+        /**
+         * @return The features in the file, or null if it was written by another version.
+         */
+        static TemplateFeatures load(Path file) throws IOException {
+            Properties properties = new Properties();
+            try (InputStream input = Files.newInputStream(file)) {
+                properties.load(input);
+            }
+            if(!String.valueOf(VERSION).equals(properties.getProperty("version")))
+                return null;
+
+            String[] bins = properties.getProperty("histogram").split(",");
+            if(bins.length != BINS)
+                return null;
+            int[] histogram = new int[BINS];
+            for(int bin = 0; bin < BINS; bin++)
+                histogram[bin] = Integer.parseInt(bins[bin]);
+
+            return new TemplateFeatures(Integer.parseInt(properties.getProperty("pixels")), histogram,
+                    Double.parseDouble(properties.getProperty("luminanceMean")),
+                    Double.parseDouble(properties.getProperty("luminanceDeviation")),
+                    Integer.parseInt(properties.getProperty("luminanceMin")),
+                    Integer.parseInt(properties.getProperty("luminanceMax")),
+                    Integer.parseInt(properties.getProperty("edges")));
+        }
+    }
+
+    /**
+     * The widgets of a state that have been found on the screen, used to predict where the other widgets of the state
+     * are. Widgets of a state tend to keep their places relative to each other, like a toolbar or the fields of a
+     * form, so a widget is expected at the offset between its stored IR_x/IR_y and those of the closest anchor,
+     * from where the anchor was found now.
+     */
+    static final class WidgetLayout {
+        private final Map<Widget, Point> stored = new LinkedHashMap<>();
+        private final Map<Widget, Point> found = new LinkedHashMap<>();
+
+        /**
+         * Use a widget that was found as an anchor, a widget anchored again replaces its earlier anchor.
+         * @param w The {@link scout.Widget Widget}.
+         * @param match Where it was found.
+         */
+        void anchor(Widget w, Match match) {
+            if(match != null)
+                anchor(w, new Point(match.getX(), match.getY()));
+        }
+
+        /**
+         * @param w The {@link scout.Widget Widget}.
+         * @param at The top left corner of where it was found.
+         */
+        void anchor(Widget w, Point at) {
+            Point position = getStoredPosition(w);
+            if(position == null || at == null)
+                return;
+            stored.put(w, position);
+            found.put(w, at);
+        }
+
+        /**
+         * @param w The {@link scout.Widget Widget} to predict.
+         * @param width The width of the widget image.
+         * @param height The height of the widget image.
+         * @param radius The number of pixels the widget may have moved relative to the anchor.
+         * @return The area to search for the widget, or null if there is no anchor or the widget has no stored
+         * position.
+         */
+        Rectangle predict(Widget w, int width, int height, int radius) {
+            Point position = getStoredPosition(w);
+            if(position == null || stored.isEmpty())
+                return null;
+
+            Widget closest = null;
+            for(Map.Entry<Widget, Point> entry : stored.entrySet()) {
+                if(closest == null || entry.getValue().distanceSq(position) < stored.get(closest).distanceSq(position))
+                    closest = entry.getKey();
+            }
+
+            Point anchorStored = stored.get(closest);
+            Point anchorFound = found.get(closest);
+            return new Rectangle(anchorFound.x + position.x - anchorStored.x - radius,
+                    anchorFound.y + position.y - anchorStored.y - radius, width + 2 * radius, height + 2 * radius);
+        }
+
+        private static Point getStoredPosition(Widget w) {
+            Object x = w.getMetadata("IR_x");
+            Object y = w.getMetadata("IR_y");
+            if(!(x instanceof Number) || !(y instanceof Number))
+                return null;
+            return new Point(((Number) x).intValue(), ((Number) y).intValue());
+        }
+    }
+
+    /**
+     * Uniform grid over the location areas of the widgets of one state. A point query only looks at the widgets
+     * of one cell instead of every widget of the state, a rectangle query at the cells it covers. Results are
+     * in the order of the widgets in the state.
+     */
+    static final class WidgetIndex {
+        private static final int CELL_SHIFT = 6; // 64x64 pixel cells
+        private final Map<Long, List<Widget>> cells = new HashMap<>();
+        private final Map<Widget, Rectangle> areas = new HashMap<>();
+        private final Map<Widget, Integer> order = new HashMap<>();
+        private int nextOrder = 0;
+
+        WidgetIndex(List<Widget> widgets) {
+            for(Widget w : widgets)
+                put(w);
+        }
+
+        /**
+         * Add a widget, or move it to its current location area.
+         */
+        synchronized void put(Widget w) {
+            if(!order.containsKey(w))
+                order.put(w, nextOrder++);
+            unlink(w);
+
+            Rectangle area = w.getLocationArea();
+            if(area == null)
+                return;
+
+            area = new Rectangle(area);
+            areas.put(w, area);
+            forEachCell(area, key -> cells.computeIfAbsent(key, k -> new ArrayList<>(4)).add(w));
+        }
+
+        /**
+         * Move a widget to its current location area, if it is in this index.
+         */
+        synchronized void update(Widget w) {
+            if(order.containsKey(w))
+                put(w);
+        }
+
+        synchronized void remove(Widget w) {
+            unlink(w);
+            order.remove(w);
+        }
+
+        /**
+         * @return The widgets whose location area contains the point.
+         */
+        synchronized List<Widget> at(Point p) {
+            List<Widget> found = new ArrayList<>();
+            List<Widget> cell = cells.get(cellKey(p.x >> CELL_SHIFT, p.y >> CELL_SHIFT));
+            if(cell != null) {
+                for(Widget w : cell) {
+                    if(areas.get(w).contains(p))
+                        found.add(w);
+                }
+            }
+            return sorted(found);
+        }
+
+        /**
+         * @return The widgets whose location area intersects the rectangle.
+         */
+        synchronized List<Widget> intersecting(Rectangle r) {
+            Set<Widget> found = new HashSet<>();
+            forEachCell(r, key -> {
+                List<Widget> cell = cells.get(key);
+                if(cell == null)
+                    return;
+                for(Widget w : cell) {
+                    if(areas.get(w).intersects(r))
+                        found.add(w);
+                }
+            });
+            return sorted(new ArrayList<>(found));
+        }
+
+        private void unlink(Widget w) {
+            Rectangle old = areas.remove(w);
+            if(old == null)
+                return;
+
+            forEachCell(old, key -> {
+                List<Widget> cell = cells.get(key);
+                if(cell != null && cell.remove(w) && cell.isEmpty())
+                    cells.remove(key);
+            });
+        }
+
+        private List<Widget> sorted(List<Widget> widgets) {
+            if(widgets.size() > 1)
+                widgets.sort(Comparator.comparingInt(order::get));
+            return widgets;
+        }
+
+        private static void forEachCell(Rectangle r, java.util.function.LongConsumer action) {
+            if(r.width <= 0 || r.height <= 0)
+                return;
+            int right = (r.x + r.width - 1) >> CELL_SHIFT;
+            int bottom = (r.y + r.height - 1) >> CELL_SHIFT;
+            for(int cy = r.y >> CELL_SHIFT; cy <= bottom; cy++) {
+                for(int cx = r.x >> CELL_SHIFT; cx <= right; cx++)
+                    action.accept(cellKey(cx, cy));
+            }
+        }
+
+        private static long cellKey(int cx, int cy) {
+            return ((long) cx << 32) | (cy & 0xFFFFFFFFL);
+        }
+    }
+
+    /**
+     * Finds the salient content of a widget image, so that the stored template is the widget and not the background
+     * around it. A pixel is salient when its color stands out from the background, the most common color along the
+     * border of the image, or when it is on an edge. Salient pixels close to each other belong to the same content.
+     */
+    static final class TemplateTrimmer {
+        private static final int CONTRAST_THRESHOLD = 32;
+        private static final int EDGE_THRESHOLD = 48;
+        private static final int GAP = 4; // Salient pixels this close belong together.
+        private static final int MIN_SIZE = 8;
+        private static final double MIN_SAVING = 0.1;
+
+        private TemplateTrimmer() {
+        }
+
+        /**
+         * @param image The widget image.
+         * @param focus The point of the widget in image coordinates, only the content connected to it is kept.
+         * Null to keep all salient content.
+         * @param padding The number of pixels to keep around the content.
+         * @return The bounds of the content with padding in image coordinates, or null if trimming would not leave
+         * a reasonable template or save at least {@value #MIN_SAVING} of the pixels.
+         */
+        static Rectangle salientBounds(BufferedImage image, Point focus, int padding) {
+            PixelArray p = PixelArray.of(image);
+            int width = p.width;
+            int height = p.height;
+            if(width < 3 || height < 3)
+                return null;
+
+            int background = borderColor(p);
+            boolean[] salient = new boolean[width * height];
+            int[] lum = new int[width * height];
+            for(int y = 0; y < height; y++) {
+                for(int x = 0; x < width; x++)
+                    lum[y * width + x] = luminance(p.data[p.offset + y * p.stride + x]);
+            }
+
+            boolean any = false;
+            for(int y = 0; y < height; y++) {
+                for(int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    int gradient = x > 0 && x < width - 1 && y > 0 && y < height - 1
+                            ? Math.abs(lum[i + 1] - lum[i - 1]) + Math.abs(lum[i + width] - lum[i - width]) : 0;
+                    salient[i] = gradient > EDGE_THRESHOLD
+                            || contrast(p.data[p.offset + y * p.stride + x], background) > CONTRAST_THRESHOLD;
+                    any |= salient[i];
+                }
+            }
+            if(!any)
+                return null;
+
+            Rectangle content = focus == null ? bounds(salient, null, width, height)
+                    : bounds(salient, component(dilate(salient, width, height), focus, width, height), width, height);
+            if(content == null)
+                return null;
+
+            content.grow(padding, padding);
+            content = content.intersection(new Rectangle(0, 0, width, height));
+            if(content.width < MIN_SIZE || content.height < MIN_SIZE
+                    || (double) content.width * content.height > (1 - MIN_SAVING) * width * height)
+                return null;
+            return content;
+        }
+
+        /**
+         * @return The most common color along the border of the image.
+         */
+        private static int borderColor(PixelArray p) {
+            Map<Integer, Integer> counts = new HashMap<>();
+            for(int x = 0; x < p.width; x++) {
+                counts.merge(p.data[p.offset + x] & 0xFFFFFF, 1, Integer::sum);
+                counts.merge(p.data[p.offset + (p.height - 1) * p.stride + x] & 0xFFFFFF, 1, Integer::sum);
+            }
+            for(int y = 1; y < p.height - 1; y++) {
+                counts.merge(p.data[p.offset + y * p.stride] & 0xFFFFFF, 1, Integer::sum);
+                counts.merge(p.data[p.offset + y * p.stride + p.width - 1] & 0xFFFFFF, 1, Integer::sum);
+            }
+            return Collections.max(counts.entrySet(), Map.Entry.comparingByValue()).getKey();
+        }
+
+        private static int contrast(int a, int b) {
+            return Math.max(Math.abs(((a >> 16) & 0xFF) - ((b >> 16) & 0xFF)), Math.max(
+                    Math.abs(((a >> 8) & 0xFF) - ((b >> 8) & 0xFF)), Math.abs((a & 0xFF) - (b & 0xFF))));
+        }
+
+        private static int luminance(int rgb) {
+            return (((rgb >> 16) & 0xFF) * 77 + ((rgb >> 8) & 0xFF) * 150 + (rgb & 0xFF) * 29) >> 8;
+        }
+
+        /**
+         * @return The mask grown by {@value #GAP} pixels in every direction, a row pass and a column pass.
+         */
+        private static boolean[] dilate(boolean[] mask, int width, int height) {
+            boolean[] rows = new boolean[mask.length];
+            for(int y = 0; y < height; y++) {
+                int last = -GAP - 1;
+                for(int x = 0; x < width + GAP; x++) {
+                    if(x < width && mask[y * width + x])
+                        last = x;
+                    int target = x - GAP;
+                    if(target >= 0 && x - last <= 2 * GAP)
+                        rows[y * width + target] = true;
+                }
+            }
+
+            boolean[] grown = new boolean[mask.length];
+            for(int x = 0; x < width; x++) {
+                int last = -GAP - 1;
+                for(int y = 0; y < height + GAP; y++) {
+                    if(y < height && rows[y * width + x])
+                        last = y;
+                    int target = y - GAP;
+                    if(target >= 0 && y - last <= 2 * GAP)
+                        grown[target * width + x] = true;
+                }
+            }
+            return grown;
+        }
+
+        /**
+         * @return The pixels of the mask connected to the pixel of the mask closest to the focus, or null if the
+         * mask is empty.
+         */
+        private static boolean[] component(boolean[] mask, Point focus, int width, int height) {
+            int start = -1;
+            long best = Long.MAX_VALUE;
+            for(int i = 0; i < mask.length; i++) {
+                if(!mask[i])
+                    continue;
+                long dx = i % width - focus.x;
+                long dy = i / width - focus.y;
+                if(dx * dx + dy * dy < best) {
+                    best = dx * dx + dy * dy;
+                    start = i;
+                }
+            }
+            if(start < 0)
+                return null;
+
+            boolean[] component = new boolean[mask.length];
+            int[] queue = new int[mask.length];
+            int head = 0;
+            int tail = 0;
+            queue[tail++] = start;
+            component[start] = true;
+            while(head < tail) {
+                int i = queue[head++];
+                int x = i % width;
+                int[] neighbours = {x > 0 ? i - 1 : -1, x < width - 1 ? i + 1 : -1, i - width, i + width};
+                for(int n : neighbours) {
+                    if(n >= 0 && n < mask.length && mask[n] && !component[n]) {
+                        component[n] = true;
+                        queue[tail++] = n;
+                    }
+                }
+            }
+            return component;
+        }
+
+        /**
+         * @return The bounds of the salient pixels within the area, or of all of them if area is null.
+         */
+        private static Rectangle bounds(boolean[] salient, boolean[] area, int width, int height) {
+            int minX = width;
+            int minY = height;
+            int maxX = -1;
+            int maxY = -1;
+            for(int y = 0; y < height; y++) {
+                for(int x = 0; x < width; x++) {
+                    int i = y * width + x;
+                    if(salient[i] && (area == null || area[i])) {
+                        minX = Math.min(minX, x);
+                        minY = Math.min(minY, y);
+                        maxX = Math.max(maxX, x);
+                        maxY = Math.max(maxY, y);
+                    }
+                }
+            }
+            return maxX < 0 ? null : new Rectangle(minX, minY, maxX - minX + 1, maxY - minY + 1);
+        }
+    }
+
+    /**
+     * Locates many templates pixel for pixel in a single pass over a frame.
+     *
+     * Every template gets an anchor, its most detailed {@value #BLOCK}x{@value #BLOCK} block. The hashes of the
+     * anchors go into an open addressing hash table. A 2D rolling hash (Rabin-Karp over rows, then over columns)
+     * gives the hash of every block of the frame in constant time, each block is looked up in the table and hits
+     * are confirmed pixel by pixel. The cost grows with the frame size and the number of hits, not with the number
+     * of templates. Templates smaller than a block are never found, they are left to the other matchers.
+     */
+    static final class MultiTemplateMatcher {
+        static final int BLOCK = 8;
+        private static final long ROW_BASE = 0x100000001B3L;
+        private static final long COLUMN_BASE = 0x9E3779B97F4A7C15L;
+        private static final int RGB = 0xFFFFFF;
+
+        private MultiTemplateMatcher() {
+        }
+
+        /**
+         * @param frame The image to search in.
+         * @param templates The images to search for.
+         * @param region The area of the frame to search, or null to search the whole frame.
+         * @return For each template, in the same order, the {@link Match Match} of its top-most left-most exact
+         * occurrence, or null.
+         */
+        static Match[] findAll(BufferedImage frame, List<BufferedImage> templates, Rectangle region) {
+            Match[] found = new Match[templates.size()];
+            Rectangle frameBounds = new Rectangle(0, 0, frame.getWidth(), frame.getHeight());
+            Rectangle searched = region == null ? frameBounds : region.intersection(frameBounds);
+            if(searched.width < BLOCK || searched.height < BLOCK)
+                return found;
+
+            PixelArray[] pixels = new PixelArray[templates.size()];
+            int[] anchors = new int[templates.size() * 2];
+            AnchorTable table = new AnchorTable(templates.size());
+            int remaining = 0;
+
+            for(int i = 0; i < pixels.length; i++) {
+                BufferedImage template = templates.get(i);
+                if(template == null || template.getWidth() < BLOCK || template.getHeight() < BLOCK
+                        || template.getWidth() > searched.width || template.getHeight() > searched.height)
+                    continue;
+
+                pixels[i] = PixelArray.of(template);
+                chooseAnchor(pixels[i], anchors, i);
+                table.put(blockHash(pixels[i], anchors[i * 2], anchors[i * 2 + 1]), i);
+                remaining++;
+            }
+
+            if(remaining == 0)
+                return found;
+
+            PixelArray f = PixelArray.of(frame);
+            int windows = searched.width - BLOCK + 1;
+            long[][] rowHashes = new long[BLOCK][windows];
+            long[] blockHashes = new long[windows];
+            long rowPower = power(ROW_BASE, BLOCK);
+            long columnPower = power(COLUMN_BASE, BLOCK);
+
+            for(int y = searched.y; y < searched.y + searched.height && remaining > 0; y++) {
+                long[] rowHash = rowHashes[(y - searched.y) % BLOCK];
+                int row = f.offset + y * f.stride + searched.x;
+
+                // Rolling hash of the BLOCK wide windows of this row. The slot still holds the row that leaves the block.
+                long hash = 0;
+                for(int i = 0; i < BLOCK; i++)
+                    hash = hash * ROW_BASE + (f.data[row + i] & RGB);
+                for(int x = 0; x < windows; x++) {
+                    long leaving = rowHash[x];
+                    blockHashes[x] = blockHashes[x] * COLUMN_BASE - leaving * columnPower + hash;
+                    rowHash[x] = hash;
+                    if(x + 1 < windows)
+                        hash = hash * ROW_BASE - (f.data[row + x] & RGB) * rowPower + (f.data[row + x + BLOCK] & RGB);
+                }
+
+                int top = y - BLOCK + 1;
+                if(top < searched.y)
+                    continue;
+
+                for(int x = 0; x < windows; x++) {
+                    for(int entry = table.first(blockHashes[x]); entry >= 0; entry = table.next(entry)) {
+                        int t = table.template(entry);
+                        if(found[t] != null)
+                            continue;
+
+                        int fx = searched.x + x - anchors[t * 2];
+                        int fy = top - anchors[t * 2 + 1];
+                        if(fx < searched.x || fy < searched.y || fx + pixels[t].width > searched.x + searched.width
+                                || fy + pixels[t].height > searched.y + searched.height)
+                            continue;
+
+                        if(matchesAt(f, pixels[t], fx, fy)) {
+                            long all = (long) pixels[t].width * pixels[t].height;
+                            found[t] = new Match(fx, fy, pixels[t].width, pixels[t].height, all, all, 1.0, 1.0);
+                            remaining--;
+                        }
+                    }
+                }
+            }
+
+            return found;
+        }
+
+        /**
+         * Pick the block of the template with the most changes between neighbouring pixels, so that the anchor
+         * does not match large areas of flat background.
+         */
+        private static void chooseAnchor(PixelArray t, int[] anchors, int index) {
+            int step = Math.max(1, Math.min(t.width, t.height) / 16);
+            int bestScore = -1;
+
+            for(int ay = 0; ay + BLOCK <= t.height; ay += step) {
+                for(int ax = 0; ax + BLOCK <= t.width; ax += step) {
+                    int score = 0;
+                    for(int y = 0; y < BLOCK; y++) {
+                        int row = t.offset + (ay + y) * t.stride + ax;
+                        for(int x = 1; x < BLOCK; x++) {
+                            if(((t.data[row + x] ^ t.data[row + x - 1]) & RGB) != 0)
+                                score++;
+                            if(y > 0 && ((t.data[row + x] ^ t.data[row + x - t.stride]) & RGB) != 0)
+                                score++;
+                        }
+                    }
+
+                    if(score > bestScore) {
+                        bestScore = score;
+                        anchors[index * 2] = ax;
+                        anchors[index * 2 + 1] = ay;
+                    }
+                }
+            }
+        }
+
+        /**
+         * @return The hash of a block, equal to the rolling hash of the same pixels in a frame.
+         */
+        private static long blockHash(PixelArray image, int x, int y) {
+            long hash = 0;
+            for(int j = 0; j < BLOCK; j++) {
+                long rowHash = 0;
+                int row = image.offset + (y + j) * image.stride + x;
+                for(int i = 0; i < BLOCK; i++)
+                    rowHash = rowHash * ROW_BASE + (image.data[row + i] & RGB);
+                hash = hash * COLUMN_BASE + rowHash;
+            }
+            return hash;
+        }
+
+        private static boolean matchesAt(PixelArray f, PixelArray t, int x, int y) {
+            for(int ty = 0; ty < t.height; ty++) {
+                int fi = f.offset + (y + ty) * f.stride + x;
+                int ti = t.offset + ty * t.stride;
+                for(int tx = 0; tx < t.width; tx++) {
+                    if(((f.data[fi + tx] ^ t.data[ti + tx]) & RGB) != 0)
+                        return false;
+                }
+            }
+            return true;
+        }
+
+        private static long power(long base, int exponent) {
+            long result = 1;
+            for(int i = 0; i < exponent; i++)
+                result *= base;
+            return result;
+        }
+
+        /**
+         * Open addressing hash table from anchor hashes to templates. Templates with the same anchor hash are chained.
+         */
+        private static final class AnchorTable {
+            private final long[] keys;
+            private final int[] heads;
+            private final int mask;
+            private final int[] entryTemplates;
+            private final int[] entryNext;
+            private int entries = 0;
+
+            AnchorTable(int templates) {
+                int size = Integer.highestOneBit(Math.max(templates, 1) * 4 - 1) << 1;
+                keys = new long[size];
+                heads = new int[size];
+                Arrays.fill(heads, -1);
+                mask = size - 1;
+                entryTemplates = new int[Math.max(templates, 1)];
+                entryNext = new int[Math.max(templates, 1)];
+            }
+
+            void put(long key, int template) {
+                int slot = slot(key);
+                entryTemplates[entries] = template;
+                entryNext[entries] = heads[slot];
+                heads[slot] = entries++;
+                keys[slot] = key;
+            }
+
+            /**
+             * @return The first entry with the key, or -1.
+             */
+            int first(long key) {
+                return heads[slot(key)];
+            }
+
+            int next(int entry) {
+                return entryNext[entry];
+            }
+
+            int template(int entry) {
+                return entryTemplates[entry];
+            }
+
+            private int slot(long key) {
+                int slot = (int) (key ^ (key >>> 29) ^ (key >>> 47)) & mask;
+                while(heads[slot] >= 0 && keys[slot] != key)
+                    slot = (slot + 1) & mask;
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * The RGB pixels of an image as an int[] with an offset and a row stride. Images that already store their
+     * pixels as packed ints, including sub-image views of them, are used without copying.
+     */
+    static final class PixelArray {
+        final int[] data;
+        final int offset;
+        final int stride;
+        final int width;
+        final int height;
+
+        private PixelArray(int[] data, int offset, int stride, int width, int height) {
+            this.data = data;
+            this.offset = offset;
+            this.stride = stride;
+            this.width = width;
+            this.height = height;
+        }
+
+        static PixelArray of(BufferedImage image) {
+            int type = image.getType();
+            WritableRaster raster = image.getRaster();
+
+            if((type == BufferedImage.TYPE_INT_RGB || type == BufferedImage.TYPE_INT_ARGB)
+                    && raster.getDataBuffer() instanceof DataBufferInt
+                    && raster.getSampleModel() instanceof SinglePixelPackedSampleModel) {
+                SinglePixelPackedSampleModel model = (SinglePixelPackedSampleModel) raster.getSampleModel();
+                DataBufferInt buffer = (DataBufferInt) raster.getDataBuffer();
+                int offset = buffer.getOffset() + model.getOffset(-raster.getSampleModelTranslateX(),
+                        -raster.getSampleModelTranslateY());
+                return new PixelArray(buffer.getData(), offset, model.getScanlineStride(), image.getWidth(), image.getHeight());
+            }
+
+            int[] copy = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
+            return new PixelArray(copy, 0, image.getWidth(), image.getWidth(), image.getHeight());
+        }
+    }
+
+    /**
+     * How long and how often widgets are searched for before they count as missing. A widget is given up on
+     * when the next attempt would start after its deadline, by default {@link #widgetDeadlineMs} or the
+     * "IR_deadline" metadata of the widget in ms, and all widgets of a state are given up on after
+     * {@link #stateDeadlineMs} or {@link #maxAttempts} attempts. The delay between attempts grows as set by the
+     * {@link Backoff Backoff}, so widgets that show up quickly are found quickly.
+     */
+    static final class RetryPolicy {
+        enum Backoff { FIXED, LINEAR, EXPONENTIAL }
+
+        final int maxAttempts;
+        final long widgetDeadlineMs;
+        final long stateDeadlineMs;
+        final Backoff backoff;
+        final long delayMs;
+        final long maxDelayMs;
+
+        RetryPolicy(int maxAttempts, long widgetDeadlineMs, long stateDeadlineMs, Backoff backoff, long delayMs, long maxDelayMs) {
+            this.maxAttempts = Math.max(1, maxAttempts);
+            this.widgetDeadlineMs = widgetDeadlineMs;
+            this.stateDeadlineMs = stateDeadlineMs;
+            this.backoff = backoff;
+            this.delayMs = Math.max(0, delayMs);
+            this.maxDelayMs = Math.max(this.delayMs, maxDelayMs);
+        }
+
+        /**
+         * @param attempt The number of the attempt that just failed, starting at 1.
+         * @return The time to wait before the next attempt in ms.
+         */
+        long getDelay(int attempt) {
+            long delay;
+            switch (backoff) {
+                case LINEAR:
+                    delay = delayMs * attempt;
+                    break;
+                case EXPONENTIAL:
+                    delay = delayMs << Math.min(attempt - 1, 20);
+                    break;
+                default:
+                    delay = delayMs;
+            }
+            return Math.min(delay, maxDelayMs);
+        }
+
+        long getWidgetDeadline(Widget w) {
+            Object deadline = w.getMetadata("IR_deadline");
+            if(deadline != null) {
+                try {
+                    return Long.parseLong(deadline.toString());
+                } catch (NumberFormatException e) {
+                    LOGGER.warning("Invalid IR_deadline [" + deadline + "]");
+                }
+            }
+            return widgetDeadlineMs;
+        }
+    }
+
+    /**
+     * Handle of a run that performs all widgets from a state on the background suite thread, see
+     * {@link #startSuiteRun(AppState)}. It tells how many states and widgets are done out of the ones reachable
+     * from the start state, hands out the result of each widget as soon as it is known and cancels the run,
+     * including the searches that are in progress.
+     */
+    static final class SuiteRun {
+        private final int totalStates;
+        private final int totalWidgets;
+        private final AtomicInteger statesDone = new AtomicInteger();
+        private final AtomicInteger widgetsDone = new AtomicInteger();
+        private final CountDownLatch cancelled = new CountDownLatch(1);
+        private final LinkedBlockingQueue<WidgetResult> results = new LinkedBlockingQueue<>();
+        private final List<Consumer<WidgetResult>> listeners = new ArrayList<>();
+        private final List<WidgetResult> finished = new ArrayList<>();
+        private final CompletableFuture<Boolean> done = new CompletableFuture<>();
+
+        /**
+         * @param start The state the run starts from.
+         * @param maxDepth The depth the run gives up at, states further away are not counted.
+         */
+        SuiteRun(AppState start, int maxDepth) {
+            int states = 0;
+            int widgets = 0;
+            // States reachable through several paths, or through a path back to an earlier state, count once.
+            Set<AppState> visited = Collections.newSetFromMap(new IdentityHashMap<>());
+            Deque<AppState> pending = new ArrayDeque<>();
+            Deque<Integer> depths = new ArrayDeque<>();
+            if(start != null) {
+                visited.add(start);
+                pending.push(start);
+                depths.push(0);
+            }
+
+            while(!pending.isEmpty()) {
+                AppState state = pending.pop();
+                int depth = depths.pop();
+                states++;
+                widgets += state.getAllWidgets().size();
+
+                if(depth >= maxDepth)
+                    continue;
+                for(Widget w : state.getAllWidgets()) {
+                    if(w.getWidgetType() == Widget.WidgetType.ACTION && w.getNextState() != null
+                            && visited.add(w.getNextState())) {
+                        pending.push(w.getNextState());
+                        depths.push(depth + 1);
+                    }
+                }
+            }
+
+            totalStates = states;
+            totalWidgets = widgets;
+        }
+
+        /**
+         * @return A run that is not shown to anyone, for performing widgets outside of a suite run.
+         */
+        static SuiteRun untracked() {
+            return new SuiteRun(null, 0);
+        }
+
+        int getTotalStates() {
+            return totalStates;
+        }
+
+        int getTotalWidgets() {
+            return totalWidgets;
+        }
+
+        int getStatesDone() {
+            return statesDone.get();
+        }
+
+        int getWidgetsDone() {
+            return widgetsDone.get();
+        }
+
+        boolean isCancelled() {
+            return cancelled.getCount() == 0;
+        }
+
+        boolean isDone() {
+            return done.isDone();
+        }
+
+        /**
+         * @return Completes with true when the run performed every widget, false when it stopped early.
+         */
+        CompletableFuture<Boolean> getDone() {
+            return done;
+        }
+
+        /**
+         * Stop the run as soon as possible. Waits and searches in progress give up right away.
+         * Does nothing once the run has finished, so the matchers are never left stopped after it.
+         */
+        synchronized void cancel() {
+            if(isCancelled() || isDone())
+                return;
+
+            cancelled.countDown();
+            setMatchersStopped(true);
+            LOGGER.info("Cancelling the replay.");
+        }
+
+        /**
+         * Wait on the run thread, or less if the run is cancelled meanwhile.
+         * @return False if the run was cancelled.
+         */
+        boolean sleep(long ms) {
+            try {
+                return !cancelled.await(ms, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return !isCancelled();
+            }
+        }
+
+        /**
+         * @param listener Called with the widget results so far, and then on the run thread with every new one.
+         */
+        synchronized void addListener(Consumer<WidgetResult> listener) {
+            for(WidgetResult result : finished)
+                notify(listener, result);
+            listeners.add(listener);
+        }
+
+        /**
+         * @return The next widget result that has not been taken yet, or null if none arrives within the timeout.
+         */
+        WidgetResult pollResult(long timeout, TimeUnit unit) throws InterruptedException {
+            return results.poll(timeout, unit);
+        }
+
+        void stateDone() {
+            statesDone.incrementAndGet();
+        }
+
+        synchronized void widgetDone(WidgetResult result) {
+            widgetsDone.incrementAndGet();
+            if(totalStates == 0)
+                return;
+
+            results.add(result);
+            finished.add(result);
+            for(Consumer<WidgetResult> listener : listeners)
+                notify(listener, result);
+        }
+
+        private static void notify(Consumer<WidgetResult> listener, WidgetResult result) {
+            try {
+                listener.accept(result);
+            } catch (RuntimeException e) {
+                LOGGER.warning("Widget result listener failed. | " + ExceptionUtils.getStackTrace(e));
+            }
+        }
+
+        /**
+         * Complete the run, and resume the matchers if it was cancelled so the searches after it do not stop right away.
+         * @param completed True if every widget was performed.
+         */
+        synchronized void finish(boolean completed) {
+            if(isCancelled())
+                setMatchersStopped(false);
+            done.complete(completed && !isCancelled());
+        }
+
+        String describeProgress() {
+            return "States " + statesDone.get() + "/" + totalStates + ", widgets " + widgetsDone.get() + "/" + totalWidgets
+                    + (isCancelled() ? ", cancelled" : "");
+        }
+    }
+
+    /**
+     * A {@link Match Match} with the name of the matcher that found it.
+     */
+    static final class FoundMatch {
+        final Match match;
+        final String matcher;
+
+        FoundMatch(Match match, String matcher) {
+            this.match = match;
+            this.matcher = matcher;
+        }
+    }
+
+    /**
+     * Where an action widget was located, with the {@link CaptureFrame CaptureFrame} it was located in. The location can be used
+     * to perform the widget as long as the frame is still the current one, or a newer frame has the same pixels
+     * in the area of the match.
+     */
+    static final class LocatedMatch {
+        final Match match;
+        final long frameId;
+        final long areaHash;
+
+        LocatedMatch(Match match, long frameId, long areaHash) {
+            this.match = match;
+            this.frameId = frameId;
+            this.areaHash = areaHash;
+        }
+
+        /**
+         * @return The hash of the pixels of the frame in the area of the match.
+         */
+        static long areaHash(CaptureFrame frame, Match match) {
+            Rectangle area = new Rectangle(match.getX(), match.getY(), match.getWidth(), match.getHeight())
+                    .intersection(new Rectangle(0, 0, frame.getWidth(), frame.getHeight()));
+            if(area.isEmpty())
+                return 0;
+
+            int[] pixels = frame.getPixels();
+            long hash = 31L * area.width + area.height;
+            for(int y = area.y; y < area.y + area.height; y++) {
+                int row = y * frame.getWidth();
+                for(int x = area.x; x < area.x + area.width; x++)
+                    hash = hash * 31 + (pixels[row + x] & 0xFFFFFF);
+            }
+            return hash;
+        }
+    }
+
+    /**
+     * The outcome of looking for one widget during a {@link SuiteRun SuiteRun}.
+     */
+    static final class WidgetResult {
+        final String stateId;
+        final String imageName;
+        final String status;
+        final String mode;
+        final int matchPercent;
+        final int attempts;
+        final long elapsedMs;
+        final long searchMs;
+
+        /**
+         * @param stateId The id of the state of the widget.
+         * @param imageName The image of the widget.
+         * @param status The status the widget ended up with.
+         * @param mode The name of the matcher that found the widget, "exact" for the single pass, or null.
+         * @param matchPercent The match percent, or -1 if not found.
+         * @param attempts The number of attempts.
+         * @param elapsedMs The time from the first attempt on the state until the widget was found or given up on.
+         * @param searchMs The time spent searching for the widget, over all attempts.
+         */
+        WidgetResult(String stateId, String imageName, String status, String mode, int matchPercent, int attempts,
+                     long elapsedMs, long searchMs) {
+            this.stateId = stateId;
+            this.imageName = imageName;
+            this.status = status;
+            this.mode = mode == null ? "" : mode;
+            this.matchPercent = matchPercent;
+            this.attempts = attempts;
+            this.elapsedMs = elapsedMs;
+            this.searchMs = searchMs;
+        }
+
+        @Override
+        public String toString() {
+            return stateId + " " + imageName + " " + status + (mode.isEmpty() ? "" : " by " + mode + " at " + matchPercent + "%")
+                    + " after " + attempts + " attempts (" + elapsedMs + " ms)";
+        }
+    }
+
+    /**
+     * Store of the {@link WidgetResult WidgetResults} of past suite runs, to see which widgets cost the most search time
+     * and which vary the most from run to run. Results are appended to ./data/[product]/widget-history.bin while
+     * a run goes on, after the run the file is cut down to the latest runs. Only used on the background file thread.
+     *
+     * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by one record per result: run id, state id,
+     * image name, status, mode, match percent, attempts, elapsed and search time. A record cut short at the end of
+     * the file is removed before appending again.
+     */
+    static final class WidgetHistory {
+        static final String FILE_NAME = "widget-history.bin";
+        static final byte[] MAGIC = {'I', 'R', 'H', 'I', 'S'};
+        static final int VERSION = 2;
+        private static final int SHOWN = 10;
+
+        private final Path file;
+        private final int keptRuns;
+        private DataOutputStream out = null;
+
+        /**
+         * @param file The file of the store.
+         * @param keptRuns The number of latest runs to keep.
+         */
+        WidgetHistory(Path file, int keptRuns) {
+            this.file = file;
+            this.keptRuns = Math.max(1, keptRuns);
+        }
+
+        Path getFile() {
+            return file;
+        }
+
+        /**
+         * Append a result, the file is kept open until {@link #finishRun()}.
+         * @param runId The id of the run, runs with a higher id are newer.
+         * @param result The result.
+         */
+        void append(long runId, WidgetResult result) {
+            try {
+                if(out == null)
+                    out = open();
+
+                out.writeLong(runId);
+                out.writeUTF(result.stateId);
+                out.writeUTF(result.imageName);
+                out.writeUTF(result.status);
+                out.writeUTF(result.mode);
+                out.writeInt(result.matchPercent);
+                out.writeInt(result.attempts);
+                out.writeLong(result.elapsedMs);
+                out.writeLong(result.searchMs);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to append to " + file + " | " + e);
+            }
+        }
+
+        private DataOutputStream open() throws IOException {
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            long valid = Files.exists(file) ? read(new ArrayList<>()) : 0;
+            if(valid == 0) {
+                DataOutputStream created = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+                created.write(MAGIC);
+                created.writeInt(VERSION);
+                return created;
+            }
+
+            if(valid < Files.size(file)) {
+                try(RandomAccessFile cut = new RandomAccessFile(file.toFile(), "rw")) {
+                    cut.setLength(valid);
+                }
+            }
+            return new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file, StandardOpenOption.APPEND)));
+        }
+
+        /**
+         * Close the file after a run, and drop the runs that are older than the kept ones.
+         */
+        void finishRun() {
+            try {
+                if(out != null)
+                    out.close();
+                out = null;
+
+                List<Entry> entries = new ArrayList<>();
+                read(entries);
+                List<Long> runs = getRuns(entries);
+                if(runs.size() <= keptRuns)
+                    return;
+
+                long oldestKept = runs.get(runs.size() - keptRuns);
+                Path compacted = file.resolveSibling(file.getFileName() + ".tmp");
+                try(DataOutputStream copy = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(compacted)))) {
+                    out = copy;
+                    copy.write(MAGIC);
+                    copy.writeInt(VERSION);
+                    for(Entry entry : entries) {
+                        if(entry.runId >= oldestKept)
+                            append(entry.runId, entry.result);
+                    }
+                } finally {
+                    out = null;
+                }
+                Files.move(compacted, file, StandardCopyOption.REPLACE_EXISTING);
+                LOGGER.fine("Dropped " + (runs.size() - keptRuns) + " old runs from " + file);
+            } catch (IOException e) {
+                LOGGER.warning("Failed to finish the run in " + file + " | " + e);
+            }
+        }
+
+        /**
+         * Read every complete record of the file.
+         * @param entries The list to add the records to.
+         * @return The length of the file up to the end of the last complete record, 0 if it is not a history file.
+         */
+        long read(List<Entry> entries) throws IOException {
+            if(!Files.exists(file))
+                return 0;
+
+            try(DataInputStream in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file)))) {
+                byte[] magic = new byte[MAGIC.length];
+                in.readFully(magic);
+                if(!Arrays.equals(magic, MAGIC) || in.readInt() != VERSION)
+                    return 0;
+
+                long valid = MAGIC.length + 4;
+                CountingInput counter = new CountingInput(in);
+                DataInputStream records = new DataInputStream(counter);
+                while(true) {
+                    try {
+                        long runId = records.readLong();
+                        WidgetResult result = new WidgetResult(records.readUTF(), records.readUTF(), records.readUTF(),
+                                records.readUTF(), records.readInt(), records.readInt(), records.readLong(), records.readLong());
+                        entries.add(new Entry(runId, result));
+                        valid = MAGIC.length + 4 + counter.count;
+                    } catch (EOFException e) {
+                        return valid;
+                    }
+                }
+            } catch (EOFException e) {
+                return 0;
+            }
+        }
+
+        private static List<Long> getRuns(List<Entry> entries) {
+            TreeSet<Long> runs = new TreeSet<>();
+            for(Entry entry : entries)
+                runs.add(entry.runId);
+            return new ArrayList<>(runs);
+        }
+
+        /**
+         * Rank the widgets of the latest runs by the total time spent finding them, and by how much that time
+         * varies between their results.
+         * @param lastRuns The number of latest runs to look at.
+         * @return The report.
+         */
+        String report(int lastRuns) throws IOException {
+            List<Entry> entries = new ArrayList<>();
+            read(entries);
+            List<Long> runs = getRuns(entries);
+            long oldest = runs.isEmpty() ? 0 : runs.get(Math.max(0, runs.size() - Math.max(1, lastRuns)));
+
+            Map<String, Stats> widgets = new HashMap<>();
+            for(Entry entry : entries) {
+                if(entry.runId >= oldest)
+                    widgets.computeIfAbsent(entry.result.stateId + " " + entry.result.imageName, Stats::new).add(entry.result);
+            }
+
+            List<Stats> byTotal = new ArrayList<>(widgets.values());
+            byTotal.sort((a, b) -> Long.compare(b.totalMs, a.totalMs));
+            List<Stats> byVariance = new ArrayList<>(widgets.values());
+            byVariance.sort((a, b) -> Double.compare(b.getStandardDeviation(), a.getStandardDeviation()));
+
+            StringBuilder text = new StringBuilder("Widget report over the last ").append(Math.min(lastRuns, runs.size()))
+                    .append(" runs, ").append(widgets.size()).append(" widgets\n\nMost time spent searching:\n");
+            for(Stats stats : byTotal.subList(0, Math.min(SHOWN, byTotal.size())))
+                text.append(stats).append('\n');
+            text.append("\nMost varying search time:\n");
+            for(Stats stats : byVariance.subList(0, Math.min(SHOWN, byVariance.size())))
+                text.append(stats).append('\n');
+            return text.toString();
+        }
+
+        /**
+         * A record of the store.
+         */
+        static final class Entry {
+            final long runId;
+            final WidgetResult result;
+
+            Entry(long runId, WidgetResult result) {
+                this.runId = runId;
+                this.result = result;
+            }
+        }
+
+        /**
+         * The results of one widget over several runs.
+         */
+        private static final class Stats {
+            private final String widget;
+            private final Map<String, Integer> modes = new TreeMap<>();
+            private int results = 0;
+            private int missed = 0;
+            private int retries = 0;
+            private long totalMs = 0;
+            private double sumSquares = 0;
+
+            Stats(String widget) {
+                this.widget = widget;
+            }
+
+            void add(WidgetResult result) {
+                results++;
+                totalMs += result.searchMs;
+                sumSquares += (double) result.searchMs * result.searchMs;
+                retries += Math.max(0, result.attempts - 1);
+                if(result.mode.isEmpty())
+                    missed++;
+                else
+                    modes.merge(result.mode, 1, Integer::sum);
+            }
+
+            double getStandardDeviation() {
+                double mean = (double) totalMs / results;
+                return Math.sqrt(Math.max(0, sumSquares / results - mean * mean));
+            }
+
+            @Override
+            public String toString() {
+                return String.format("%s | total %d ms, mean %d ms, deviation %.0f ms | %d results, %d missed, %d retries | modes %s",
+                        widget, totalMs, totalMs / results, getStandardDeviation(), results, missed, retries, modes);
+            }
+        }
+
+        /**
+         * Counts the bytes read through it, to know where the last complete record ends.
+         */
+        private static final class CountingInput extends FilterInputStream {
+            private long count = 0;
+
+            CountingInput(InputStream in) {
+                super(in);
+            }
+
+            @Override
+            public int read() throws IOException {
+                int b = super.read();
+                if(b >= 0)
+                    count++;
+                return b;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                int n = super.read(b, off, len);
+                if(n > 0)
+                    count += n;
+                return n;
+            }
+        }
+    }
+
+    /**
+     * How much of their deadline the widgets used during a replay: per widget the attempts, the time until it was
+     * found or given up on, and the share of the deadline that took.
+     */
+    static final class RetryReport {
+        private static final int WORST_SHOWN = 5;
+        private final Map<String, long[]> widgets = new LinkedHashMap<>();
+        private int found = 0;
+        private int missed = 0;
+
+        synchronized void reset() {
+            widgets.clear();
+            found = 0;
+            missed = 0;
+        }
+
+        /**
+         * @param w The widget that was searched for.
+         * @param attempts The number of attempts.
+         * @param usedMs The time from the first attempt until it was found or given up on.
+         * @param deadlineMs The deadline of the widget.
+         * @param located True if the widget was found.
+         */
+        void record(Widget w, int attempts, long usedMs, long deadlineMs, boolean located) {
+            long percent = deadlineMs <= 0 ? 100 : usedMs * 100 / deadlineMs;
+            EVENTS.event(Level.FINE, "deadline-usage", "image", w.getMetadata("IR_imageName"), "found", located,
+                    "attempts", attempts, "usedMs", usedMs, "deadlineMs", deadlineMs, "percent", percent);
+
+            synchronized (this) {
+                if(located)
+                    found++;
+                else
+                    missed++;
+                widgets.put(String.valueOf(w.getMetadata("IR_imageName")), new long[] {percent, usedMs, attempts, located ? 1 : 0});
+            }
+        }
+
+        synchronized String describe() {
+            List<Map.Entry<String, long[]>> worst = new ArrayList<>(widgets.entrySet());
+            worst.sort((a, b) -> Long.compare(b.getValue()[0], a.getValue()[0]));
+
+            StringBuilder text = new StringBuilder("Retries: ").append(found).append(" found, ").append(missed).append(" missed");
+            for(Map.Entry<String, long[]> entry : worst.subList(0, Math.min(WORST_SHOWN, worst.size()))) {
+                long[] usage = entry.getValue();
+                text.append(" | ").append(entry.getKey()).append(' ').append(usage[0]).append("% of deadline (")
+                        .append(usage[1]).append(" ms, ").append(usage[2]).append(" attempts")
+                        .append(usage[3] == 1 ? ")" : ", missed)");
+            }
+            return text.toString();
+        }
+    }
+
+    /**
+     * Decides when {@link #getCapture()} takes a full capture. After an action, or when a capture differs from the
+     * one before, every call captures for the boost time. After that the screen counts as static: calls probe the
+     * screen and hand out the last capture again, unless the probe differs from the last capture or the idle
+     * interval has passed since the last full capture.
+     *
+     * A probe is a capture into a pooled frame, in one go, whose grid of every {@value #FRAME_SAMPLE_STEP}th pixel
+     * of every {@value #FRAME_SAMPLE_STEP}th row is compared with that of the last capture, so a popup, menu or
+     * dialog anywhere on the screen is noticed. A probe that differs becomes the new capture. One that does not is
+     * dropped, which saves the rest of a capture: publishing the frame, the frame history, the recording and
+     * the repaint of Scout.
+     */
+    static final class CaptureScheduler {
+        private static final int FRAME_SAMPLE_STEP = 8;
+        private static final long REPORT_INTERVAL_NANOS = 60_000_000_000L;
+        private boolean enabled = true;
+        private long idleIntervalNanos = 1_000_000_000L;
+        private long boostNanos = 2_000_000_000L;
+        private long boostedUntil = System.nanoTime();
+        private long lastCapture = System.nanoTime();
+        private long lastReport = System.nanoTime();
+        private long frameHash = 0;
+        private long captures = 0;
+        private long captureNanos = 0;
+        private long skipped = 0;
+        private long probeNanos = 0;
+        private long rateWindowStart = System.nanoTime();
+        private long rateWindowCaptures = 0;
+        private double captureRate = 0;
+
+        synchronized void configure(boolean enabled, int idleIntervalMs, int boostMs) {
+            this.enabled = enabled;
+            idleIntervalNanos = Math.max(0, idleIntervalMs) * 1_000_000L;
+            boostNanos = Math.max(0, boostMs) * 1_000_000L;
+        }
+
+        /**
+         * Capture at full rate for a while, called when an action is performed.
+         */
+        synchronized void boost() {
+            boostedUntil = System.nanoTime() + boostNanos;
+        }
+
+        /**
+         * @return True if a full capture has to be taken without probing.
+         */
+        synchronized boolean isCaptureDue(long now) {
+            return !enabled || now - boostedUntil < 0 || now - lastCapture >= idleIntervalNanos;
+        }
+
+        /**
+         * @param frame The probe, a capture that is dropped again if the screen did not change.
+         * @param elapsedNanos The time the probe took.
+         * @return True if the screen changed since the last capture and the probe has to be used as a new capture.
+         */
+        synchronized boolean probed(CaptureFrame frame, long elapsedNanos) {
+            probeNanos += elapsedNanos;
+            long hash = sampleHash(frame.getPixels(), frame.getWidth(), frame.getHeight());
+            if(hash == frameHash) {
+                skipped++;
+                return false;
+            }
+            boostedUntil = System.nanoTime() + boostNanos;
+            return true;
+        }
+
+        /**
+         * @param elapsedNanos The time publishing the last capture took, counted as part of the capture.
+         */
+        synchronized void published(long elapsedNanos) {
+            captureNanos += elapsedNanos;
+        }
+
+        /**
+         * @param frame The frame that was captured.
+         * @param elapsedNanos The time the capture took.
+         */
+        synchronized void captured(CaptureFrame frame, long elapsedNanos) {
+            long now = System.nanoTime();
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            long hash = sampleHash(frame.getPixels(), width, height);
+            if(hash != frameHash)
+                boostedUntil = now + boostNanos;
+
+            frameHash = hash;
+            lastCapture = now;
+            captures++;
+            captureNanos += elapsedNanos;
+
+            rateWindowCaptures++;
+            if(now - rateWindowStart >= 1_000_000_000L) {
+                captureRate = rateWindowCaptures * 1e9 / (now - rateWindowStart);
+                rateWindowStart = now;
+                rateWindowCaptures = 0;
+            }
+        }
+
+        /**
+         * @return True once a minute, to log the metrics.
+         */
+        synchronized boolean isReportDue(long now) {
+            if(now - lastReport < REPORT_INTERVAL_NANOS)
+                return false;
+            lastReport = now;
+            return true;
+        }
+
+        /**
+         * @return The full captures per second, measured over the last second with captures.
+         */
+        synchronized double getCaptureRate() {
+            return Math.round(captureRate * 10) / 10.0;
+        }
+
+        synchronized long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return An estimate of the capture time saved: the skipped captures at the average capture time, minus
+         * the time spent probing.
+         */
+        synchronized long getCpuSavedMs() {
+            if(captures == 0)
+                return 0;
+            return (skipped * (captureNanos / captures) - probeNanos) / 1_000_000L;
+        }
+
+        synchronized String describe() {
+            return "Captures: " + captures + " full, " + skipped + " skipped, " + getCaptureRate() + "/s, ~"
+                    + getCpuSavedMs() + " ms saved";
+        }
+
+        /**
+         * @return The hash of every {@value #FRAME_SAMPLE_STEP}th pixel of every {@value #FRAME_SAMPLE_STEP}th row.
+         */
+        static long sampleHash(int[] pixels, int width, int height) {
+            long hash = 1;
+            for(int y = FRAME_SAMPLE_STEP / 2; y < height; y += FRAME_SAMPLE_STEP) {
+                int row = y * width;
+                for(int x = (y / FRAME_SAMPLE_STEP) % FRAME_SAMPLE_STEP; x < width; x += FRAME_SAMPLE_STEP)
+                    hash = hash * 31 + (pixels[row + x] & 0xFFFFFF);
+            }
+            return hash;
+        }
+
+    }
+
+    /**
+     * A captured image whose pixels live in a reusable int[] buffer owned by a {@link FramePool FramePool}.
+     *
+     * Everyone that uses the frame past the point where a new capture could happen holds a reference through
+     * {@link #retain()} and gives it back through {@link #release()}. When the last reference is released
+     * the buffer goes back to the pool and will be overwritten by a later capture, so views created from
+     * {@link #getImage()} must not be used after that.
+     */
+    static final class CaptureFrame {
+        private final FramePool pool;
+        private final BufferedImage image;
+        private final int[] pixels;
+        private final AtomicInteger references = new AtomicInteger();
+        private long id;
+
+        private CaptureFrame(FramePool pool, int width, int height) {
+            this.pool = pool;
+            this.image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+            this.pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+        }
+
+        BufferedImage getImage() {
+            return image;
+        }
+
+        int[] getPixels() {
+            return pixels;
+        }
+
+        int getWidth() {
+            return image.getWidth();
+        }
+
+        int getHeight() {
+            return image.getHeight();
+        }
+
+        /**
+         * @return The sequence number of the capture that is currently held in the frame.
+         */
+        long getId() {
+            return id;
+        }
+
+        CaptureFrame retain() {
+            if(references.getAndIncrement() <= 0)
+                throw new IllegalStateException("Retained frame " + id + " after it was released.");
+            return this;
+        }
+
+        void release() {
+            int left = references.decrementAndGet();
+            if(left == 0)
+                pool.recycle(this);
+            else if(left < 0)
+                throw new IllegalStateException("Released frame " + id + " more times than it was retained.");
+        }
+
+        /**
+         * Capture an area of the desktop into this frame.
+         * @param capturer The {@link ScreenCapturer ScreenCapturer} to capture with.
+         * @param rect The area to capture in desktop coordinates, of the same size as the frame.
+         */
+        void capture(ScreenCapturer capturer, Rectangle rect) {
+            capturer.capture(new Rectangle(rect.x, rect.y, getWidth(), getHeight()), pixels, 0, getWidth());
+        }
+
+        /**
+         * Capture an area of the desktop into this frame with robot, see {@link RobotCapturer RobotCapturer}.
+         * @param robot The {@link java.awt.Robot Robot} to capture with.
+         * @param rect The area to capture in desktop coordinates, of the same size as the frame.
+         * @param stripRows The number of rows to capture at a time, 0 or less captures the area in one go.
+         */
+        void capture(Robot robot, Rectangle rect, int stripRows) {
+            capture(new RobotCapturer(robot, stripRows), rect);
+        }
+    }
+
+    /**
+     * Reads areas of the desktop into an int[] buffer of RGB pixels, so that a capture does not need a new image.
+     */
+    interface ScreenCapturer {
+        /**
+         * Capture an area of the desktop.
+         * @param area The area in desktop coordinates.
+         * @param pixels The buffer to write the pixels to, row by row.
+         * @param offset The index of the upper left pixel in the buffer.
+         * @param scanline The distance between two rows in the buffer.
+         */
+        void capture(Rectangle area, int[] pixels, int offset, int scanline);
+
+        /**
+         * @param area An area in desktop coordinates.
+         * @return True if the area can be captured by this capturer.
+         */
+        default boolean canCapture(Rectangle area) {
+            return true;
+        }
+
+        /**
+         * @return The name of the backend, as used by the capturebackend setting.
+         */
+        String getName();
+    }
+
+    /**
+     * Captures with {@link java.awt.Robot#createScreenCapture(Rectangle)}, works everywhere.
+     *
+     * Robot can only hand out new images, so every capture allocates one that is copied into the buffer. The area
+     * can be read in strips of a few rows instead, which die young instead of being allocated directly in the
+     * old generation like a full frame may be. That allocates as many bytes in total, and strips taken at
+     * different times can tear, so by default the area is read in one go.
+     */
+    static final class RobotCapturer implements ScreenCapturer {
+        private final Robot robot;
+        private final int stripRows;
+
+        /**
+         * @param robot The {@link java.awt.Robot Robot} to capture with.
+         * @param stripRows The number of rows to capture at a time, 0 or less captures the area in one go.
+         */
+        RobotCapturer(Robot robot, int stripRows) {
+            this.robot = robot;
+            this.stripRows = stripRows;
+        }
+
+        @Override
+        public void capture(Rectangle area, int[] pixels, int offset, int scanline) {
+            int width = area.width;
+            int height = area.height;
+            int rows = stripRows > 0 ? stripRows : height;
+
+            for(int y = 0; y < height; y += rows) {
+                int stripHeight = Math.min(rows, height - y);
+                BufferedImage strip = robot.createScreenCapture(new Rectangle(area.x, area.y + y, width, stripHeight));
+
+                if(scanline == width && strip.getRaster().getDataBuffer() instanceof DataBufferInt
+                        && strip.getRaster().getParent() == null && strip.getType() == BufferedImage.TYPE_INT_RGB) {
+                    int[] stripPixels = ((DataBufferInt) strip.getRaster().getDataBuffer()).getData();
+                    System.arraycopy(stripPixels, 0, pixels, offset + y * scanline, width * stripHeight);
+                }
+                else {
+                    strip.getRGB(0, 0, width, stripHeight, pixels, offset + y * scanline, scanline);
+                }
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "robot";
+        }
+    }
+
+    /**
+     * Captures from the framebuffer of an Xvfb server started with {@code -fbdir}, which keeps its screen in a
+     * memory mapped file in the XWD format. The file is mapped once, and a capture copies the rows of the area
+     * straight into the buffer, without going through the X server at all.
+     *
+     * Only 32 bit TrueColor screens are supported, which is what {@code -screen 0 WxHx24} gives. Put the directory
+     * on a tmpfs like /dev/shm so the framebuffer stays in memory.
+     */
+    static final class XvfbCapturer implements ScreenCapturer {
+        static final String DEFAULT_FILE = "/dev/shm/Xvfb_screen0";
+        private static final int HEADER_FIELDS = 25;
+        private static final int FILE_VERSION = 7;
+        private static final int Z_PIXMAP = 2;
+        private static final int LSB_FIRST = 0;
+        private static final int TRUE_COLOR = 4;
+        private static final int COLOR_SIZE = 12;
+
+        private final IntBuffer screen;
+        private final int width;
+        private final int height;
+        private final int intsPerLine;
+
+        private XvfbCapturer(IntBuffer screen, int width, int height, int intsPerLine) {
+            this.screen = screen;
+            this.width = width;
+            this.height = height;
+            this.intsPerLine = intsPerLine;
+        }
+
+        /**
+         * Map the framebuffer file of a screen, "Xvfb_screen" and the screen number in the -fbdir directory.
+         * @param file The framebuffer file.
+         * @return The capturer.
+         * @throws IOException If the file can not be read or is not a framebuffer that is supported.
+         */
+        static XvfbCapturer open(Path file) throws IOException {
+            try(FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+                // The header is always most significant byte first, only the pixels use the byte order of the server.
+                ByteBuffer header = ByteBuffer.allocate(HEADER_FIELDS * 4);
+                while(header.hasRemaining()) {
+                    if(channel.read(header, header.position()) < 0)
+                        throw new IOException(file + " is too short to be a framebuffer.");
+                }
+                header.flip();
+                int[] fields = new int[HEADER_FIELDS];
+                for(int i = 0; i < HEADER_FIELDS; i++)
+                    fields[i] = header.getInt();
+
+                int headerSize = fields[0];
+                int width = fields[4];
+                int height = fields[5];
+                int bytesPerLine = fields[12];
+                if(fields[1] != FILE_VERSION || fields[2] != Z_PIXMAP)
+                    throw new IOException(file + " is not an XWD framebuffer.");
+                if(fields[11] != 32 || fields[13] != TRUE_COLOR || fields[14] != 0xFF0000 || fields[15] != 0xFF00
+                        || fields[16] != 0xFF || bytesPerLine % 4 != 0)
+                    throw new IOException(file + " is not a 24 bit TrueColor framebuffer, depth " + fields[3]
+                            + ", " + fields[11] + " bits per pixel.");
+
+                long offset = (long) headerSize + (long) fields[19] * COLOR_SIZE;
+                long size = (long) bytesPerLine * height;
+                if(width <= 0 || height <= 0 || offset + size > channel.size())
+                    throw new IOException(file + " is smaller than its " + width + "x" + height + " screen.");
+
+                // The mapping stays valid after the channel is closed.
+                MappedByteBuffer pixels = channel.map(FileChannel.MapMode.READ_ONLY, offset, size);
+                pixels.order(fields[7] == LSB_FIRST ? ByteOrder.LITTLE_ENDIAN : ByteOrder.BIG_ENDIAN);
+                return new XvfbCapturer(pixels.asIntBuffer(), width, height, bytesPerLine / 4);
+            }
+        }
+
+        int getWidth() {
+            return width;
+        }
+
+        int getHeight() {
+            return height;
+        }
+
+        @Override
+        public boolean canCapture(Rectangle area) {
+            return area.x >= 0 && area.y >= 0 && area.x + area.width <= width && area.y + area.height <= height;
+        }
+
+        @Override
+        public void capture(Rectangle area, int[] pixels, int offset, int scanline) {
+            if(!canCapture(area))
+                throw new IndexOutOfBoundsException(area + " is outside of the " + width + "x" + height + " screen.");
+
+            IntBuffer rows = screen.duplicate();
+            for(int y = 0; y < area.height; y++) {
+                rows.position((area.y + y) * intsPerLine + area.x);
+                rows.get(pixels, offset + y * scanline, area.width);
+            }
+        }
+
+        @Override
+        public String getName() {
+            return "xvfb";
+        }
+    }
+
+    /**
+     * Captures with the first capturer, and with the second one for the areas the first one can not capture.
+     */
+    static final class FallbackCapturer implements ScreenCapturer {
+        private final ScreenCapturer primary;
+        private final ScreenCapturer fallback;
+
+        FallbackCapturer(ScreenCapturer primary, ScreenCapturer fallback) {
+            this.primary = primary;
+            this.fallback = fallback;
+        }
+
+        @Override
+        public void capture(Rectangle area, int[] pixels, int offset, int scanline) {
+            if(primary.canCapture(area))
+                primary.capture(area, pixels, offset, scanline);
+            else
+                fallback.capture(area, pixels, offset, scanline);
+        }
+
+        @Override
+        public boolean canCapture(Rectangle area) {
+            return primary.canCapture(area) || fallback.canCapture(area);
+        }
+
+        @Override
+        public String getName() {
+            return primary.getName();
+        }
+    }
+
+    /**
+     * Ring buffer of the latest captured frames, kept run-length encoded so that a few full screens cost little
+     * memory. A screen is mostly runs of the same color, encoding a frame is one pass over its pixels.
+     *
+     * Recording is on the capture path, so it has to stay cheap: a frame with the same
+     * {@link CaptureScheduler#sampleHash(int[], int, int) sample hash} as the latest kept one is not encoded again,
+     * every slot reuses its buffer from one frame to the next, and frames that do not encode to at most
+     * 1/{@value #MAX_ENCODED_SHARE} of their pixels, like video or noise, are not kept. Copies are only made by
+     * {@link #snapshot()}.
+     */
+    static final class FrameHistory {
+        private static final int MAX_ENCODED_SHARE = 4;
+        private Slot[] slots;
+        private int next = 0;
+        private int[] scratch = new int[0];
+        private long latestHash = 0;
+        private boolean hasLatest = false;
+        private long skipped = 0;
+
+        FrameHistory(int capacity) {
+            slots = createSlots(capacity);
+        }
+
+        private static Slot[] createSlots(int capacity) {
+            Slot[] created = new Slot[Math.max(capacity, 0)];
+            for(int i = 0; i < created.length; i++)
+                created[i] = new Slot();
+            return created;
+        }
+
+        /**
+         * @param capacity The number of frames to keep, 0 turns the history off. Kept frames are dropped on change.
+         */
+        synchronized void configure(int capacity) {
+            if(Math.max(capacity, 0) != slots.length) {
+                slots = createSlots(capacity);
+                scratch = new int[0];
+                next = 0;
+                hasLatest = false;
+            }
+        }
+
+        /**
+         * Keep a copy of the frame, replacing the oldest one, unless it looks the same as the latest one kept or
+         * does not encode small enough.
+         * @param frame A frame that the caller holds a reference to.
+         * @return True if the frame was kept.
+         */
+        synchronized boolean record(CaptureFrame frame) {
+            if(slots.length == 0)
+                return false;
+
+            int[] pixels = frame.getPixels();
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            long hash = CaptureScheduler.sampleHash(pixels, width, height);
+            Slot latest = slots[(next + slots.length - 1) % slots.length];
+            if(hasLatest && hash == latestHash && latest.width == width && latest.height == height)
+                return false;
+
+            int limit = pixels.length / MAX_ENCODED_SHARE;
+            if(scratch.length < limit)
+                scratch = new int[limit];
+
+            // Give up on encoding as soon as it would be larger than the limit.
+            int length = 0;
+            for(int i = 0; i < pixels.length;) {
+                if(length + 2 > limit) {
+                    skipped++;
+                    return false;
+                }
+
+                int color = pixels[i];
+                int run = 1;
+                while(i + run < pixels.length && pixels[i + run] == color)
+                    run++;
+                scratch[length++] = run;
+                scratch[length++] = color;
+                i += run;
+            }
+
+            Slot slot = slots[next];
+            if(slot.data.length < length)
+                slot.data = new int[Math.min(limit, length + length / 4)];
+            System.arraycopy(scratch, 0, slot.data, 0, length);
+            slot.length = length;
+            slot.id = frame.getId();
+            slot.capturedAt = System.currentTimeMillis();
+            slot.width = width;
+            slot.height = height;
+            next = (next + 1) % slots.length;
+            latestHash = hash;
+            hasLatest = true;
+            return true;
+        }
+
+        /**
+         * @return The number of frames that were not kept because they did not encode small enough.
+         */
+        synchronized long getSkipped() {
+            return skipped;
+        }
+
+        /**
+         * @return The number of int[] elements held by the slots and the encoding buffer.
+         */
+        synchronized long getRetainedInts() {
+            long ints = scratch.length;
+            for(Slot slot : slots)
+                ints += slot.data.length;
+            return ints;
+        }
+
+        /**
+         * @return Copies of the kept frames, oldest first.
+         */
+        synchronized List<Entry> snapshot() {
+            List<Entry> kept = new ArrayList<>(slots.length);
+            for(int i = 0; i < slots.length; i++) {
+                Slot slot = slots[(next + i) % slots.length];
+                if(slot.length > 0)
+                    kept.add(new Entry(slot.id, slot.capturedAt, slot.width, slot.height, Arrays.copyOf(slot.data, slot.length)));
+            }
+            return kept;
+        }
+
+        /**
+         * A place in the ring, its buffer is overwritten by later frames.
+         */
+        private static final class Slot {
+            private int[] data = new int[0];
+            private int length = 0;
+            private long id;
+            private long capturedAt;
+            private int width;
+            private int height;
+        }
+
+        /**
+         * A frame of the history, immutable once taken.
+         */
+        static final class Entry {
+            private final long id;
+            private final long capturedAt;
+            private final int width;
+            private final int height;
+            private final int[] data;
+
+            private Entry(long id, long capturedAt, int width, int height, int[] data) {
+                this.id = id;
+                this.capturedAt = capturedAt;
+                this.width = width;
+                this.height = height;
+                this.data = data;
+            }
+
+            long getId() {
+                return id;
+            }
+
+            long getCapturedAt() {
+                return capturedAt;
+            }
+
+            /**
+             * @return The size of the kept frame in bytes.
+             */
+            long getBytes() {
+                return data.length * 4L;
+            }
+
+            /**
+             * @return A new image with the pixels of the frame.
+             */
+            BufferedImage decode() {
+                BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+                int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+                int p = 0;
+                for(int i = 0; i < data.length; i += 2) {
+                    Arrays.fill(pixels, p, p + data[i], data[i + 1]);
+                    p += data[i];
+                }
+                return image;
+            }
+        }
+    }
+
+    /**
+     * Records the captured frames of a session to a single append-only file, to look at what the plugin saw later
+     * on, see {@link SessionRecording SessionRecording}.
+     *
+     * The file starts with {@link #MAGIC} and {@link #VERSION}, followed by one record per frame: the length of
+     * the rest of the record, the header (keyframe flag, frame id, capture time, width, height, tile size, state
+     * id and the action performed since the frame before) and the deflated pixel data. A keyframe holds every
+     * pixel, the frames in between hold the index and pixels of each tile that changed since the frame before.
+     * The tiles are compared on the capture thread, deflating and writing happens on a writer thread. If the
+     * writer falls behind the frame is dropped and the next one is written as a keyframe.
+     */
+    static final class SessionRecorder {
+        static final String EXTENSION = ".irrec";
+        static final byte[] MAGIC = {'I', 'R', 'R', 'E', 'C'};
+        static final int VERSION = 1;
+        static final int TILE_SIZE = 32;
+        private static final int QUEUED_FRAMES = 8;
+
+        private ThreadPoolExecutor writer = null;
+        private Output output = null;
+        private int keyframeInterval = 50;
+        private int[] last = null;
+        private int lastWidth = 0;
+        private int lastHeight = 0;
+        private int sinceKeyframe = 0;
+        private int[] tiles = new int[0];
+        private String pendingAction = null;
+        private long recorded = 0;
+        private long dropped = 0;
+
+        synchronized boolean isRecording() {
+            return writer != null;
+        }
+
+        /**
+         * Start recording to a new file.
+         * @param file The file to create.
+         * @param keyframeInterval The number of frames from one keyframe to the next.
+         */
+        synchronized void start(Path file, int keyframeInterval) throws IOException {
+            if(writer != null)
+                stop();
+
+            Files.createDirectories(file.toAbsolutePath().getParent());
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file)));
+            out.write(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+
+            Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+            writer = new ThreadPoolExecutor(1, 1, 0, TimeUnit.MILLISECONDS, new ArrayBlockingQueue<>(QUEUED_FRAMES), r -> {
+                Thread t = new Thread(r, "ImageRecognition-recorder");
+                t.setDaemon(true);
+                return t;
+            }) {
+                @Override
+                protected void terminated() {
+                    deflater.end();
+                    try {
+                        out.close();
+                    } catch (IOException e) {
+                        LOGGER.warning("Failed to close the recording " + file + " | " + e);
+                    }
+                }
+            };
+            output = new Output(out, deflater);
+
+            this.keyframeInterval = Math.max(1, keyframeInterval);
+            last = null;
+            pendingAction = null;
+            recorded = 0;
+            dropped = 0;
+            LOGGER.info("Recording frames to " + file);
+        }
+
+        /**
+         * Stop recording, the frames that are queued are still written.
+         */
+        synchronized void stop() {
+            if(writer == null)
+                return;
+
+            writer.shutdown();
+            writer = null;
+            output = null;
+            last = null;
+            LOGGER.info("Stopped recording, " + recorded + " frames recorded, " + dropped + " dropped.");
+        }
+
+        /**
+         * @param action A description of an action, stored with the next recorded frame.
+         */
+        synchronized void noteAction(String action) {
+            if(writer != null)
+                pendingAction = pendingAction == null ? action : pendingAction + "; " + action;
+        }
+
+        /**
+         * Record a frame if recording. Frames without changed tiles are only recorded if an action was noted.
+         * @param frame A frame that the caller holds a reference to.
+         * @param stateId The id of the current state.
+         */
+        synchronized void record(CaptureFrame frame, String stateId) {
+            if(writer == null)
+                return;
+
+            int width = frame.getWidth();
+            int height = frame.getHeight();
+            int[] pixels = frame.getPixels();
+            boolean keyframe = last == null || width != lastWidth || height != lastHeight || sinceKeyframe >= keyframeInterval;
+
+            int[] data;
+            if(keyframe) {
+                data = pixels.clone();
+                last = pixels.clone();
+                lastWidth = width;
+                lastHeight = height;
+                sinceKeyframe = 0;
+            }
+            else {
+                data = diffTiles(pixels, width, height);
+                if(data == null && pendingAction == null)
+                    return;
+                if(data == null)
+                    data = new int[] {0};
+            }
+            sinceKeyframe++;
+
+            String action = pendingAction == null ? "" : pendingAction;
+            pendingAction = null;
+            long id = frame.getId();
+            long capturedAt = System.currentTimeMillis();
+            int[] written = data;
+            Output to = output;
+            try {
+                writer.execute(() -> to.write(keyframe, id, capturedAt, width, height, stateId, action, written));
+                recorded++;
+            } catch (RejectedExecutionException e) {
+                // The tiles of this frame never reach the file, start over from a keyframe.
+                last = null;
+                pendingAction = action.isEmpty() ? null : action;
+                dropped++;
+            }
+        }
+
+        /**
+         * Compare the frame with the last recorded one tile by tile, and update the last one.
+         * @return The number of changed tiles followed by the index and pixels of each, or null if nothing changed.
+         */
+        private int[] diffTiles(int[] pixels, int width, int height) {
+            int columns = (width + TILE_SIZE - 1) / TILE_SIZE;
+            int rows = (height + TILE_SIZE - 1) / TILE_SIZE;
+            int length = 1;
+            int changed = 0;
+
+            for(int ty = 0; ty < rows; ty++) {
+                int y0 = ty * TILE_SIZE;
+                int th = Math.min(TILE_SIZE, height - y0);
+                for(int tx = 0; tx < columns; tx++) {
+                    int x0 = tx * TILE_SIZE;
+                    int tw = Math.min(TILE_SIZE, width - x0);
+
+                    boolean same = true;
+                    for(int y = y0; y < y0 + th && same; y++) {
+                        int row = y * width + x0;
+                        for(int x = 0; x < tw; x++) {
+                            if(pixels[row + x] != last[row + x]) {
+                                same = false;
+                                break;
+                            }
+                        }
+                    }
+                    if(same)
+                        continue;
+
+                    if(tiles.length < length + 1 + tw * th)
+                        tiles = Arrays.copyOf(tiles, Math.max(tiles.length * 2, length + 1 + tw * th));
+                    tiles[length++] = ty * columns + tx;
+                    for(int y = y0; y < y0 + th; y++) {
+                        int row = y * width + x0;
+                        System.arraycopy(pixels, row, tiles, length, tw);
+                        System.arraycopy(pixels, row, last, row, tw);
+                        length += tw;
+                    }
+                    changed++;
+                }
+            }
+
+            if(changed == 0)
+                return null;
+            tiles[0] = changed;
+            return Arrays.copyOf(tiles, length);
+        }
+
+        /**
+         * The file of one recording, only used on its writer thread.
+         */
+        private static final class Output {
+            private final DataOutputStream out;
+            private final Deflater deflater;
+            private final byte[] chunk = new byte[64 * 1024];
+
+            Output(DataOutputStream out, Deflater deflater) {
+                this.out = out;
+                this.deflater = deflater;
+            }
+
+            void write(boolean keyframe, long id, long capturedAt, int width, int height, String stateId,
+                       String action, int[] data) {
+                try {
+                    ByteBuffer raw = ByteBuffer.allocate(data.length * 4);
+                    raw.asIntBuffer().put(data);
+
+                    ByteArrayOutputStream record = new ByteArrayOutputStream(data.length + 256);
+                    DataOutputStream header = new DataOutputStream(record);
+                    header.writeBoolean(keyframe);
+                    header.writeLong(id);
+                    header.writeLong(capturedAt);
+                    header.writeInt(width);
+                    header.writeInt(height);
+                    header.writeInt(TILE_SIZE);
+                    header.writeUTF(stateId);
+                    header.writeUTF(action);
+                    header.writeInt(raw.capacity());
+
+                    deflater.reset();
+                    deflater.setInput(raw.array());
+                    deflater.finish();
+                    while(!deflater.finished()) {
+                        int n = deflater.deflate(chunk);
+                        record.write(chunk, 0, n);
+                    }
+
+                    out.writeInt(record.size());
+                    record.writeTo(out);
+                    out.flush();
+                } catch (IOException e) {
+                    LOGGER.warning("Failed to write a recorded frame | " + ExceptionUtils.getStackTrace(e));
+                }
+            }
+        }
+    }
+
+    /**
+     * Reads a file written by a {@link SessionRecorder SessionRecorder}. Opening it reads the headers of all
+     * frames, {@link #getFrame(int)} then decodes any frame from the keyframe before it. Reading forward one
+     * frame at a time only applies the tiles of each new frame. A record cut short at the end of the file, for
+     * example when the plugin was killed while recording, is left out.
+     */
+    static final class SessionRecording implements Closeable {
+        private final RandomAccessFile file;
+        private final List<FrameInfo> frames = new ArrayList<>();
+        private int[] decoded = null;
+        private int decodedIndex = -1;
+
+        private SessionRecording(RandomAccessFile file) {
+            this.file = file;
+        }
+
+        /**
+         * @param path The recording.
+         * @return The opened recording, to be closed by the caller.
+         * @throws IOException If the file can not be read or is not a recording.
+         */
+        static SessionRecording open(Path path) throws IOException {
+            RandomAccessFile file = new RandomAccessFile(path.toFile(), "r");
+            SessionRecording recording = new SessionRecording(file);
+            try {
+                recording.readIndex();
+            } catch (IOException | RuntimeException e) {
+                file.close();
+                throw e;
+            }
+            return recording;
+        }
+
+        private void readIndex() throws IOException {
+            byte[] magic = new byte[SessionRecorder.MAGIC.length];
+            file.readFully(magic);
+            if(!Arrays.equals(magic, SessionRecorder.MAGIC))
+                throw new IOException("Not a recording.");
+            int version = file.readInt();
+            if(version != SessionRecorder.VERSION)
+                throw new IOException("Unsupported recording version " + version);
+
+            long length = file.length();
+            long position = file.getFilePointer();
+            int keyframe = -1;
+            while(position + 4 <= length) {
+                file.seek(position);
+                int size = file.readInt();
+                long end = position + 4 + size;
+                if(size <= 0 || end > length)
+                    break;
+
+                boolean isKeyframe = file.readBoolean();
+                if(isKeyframe)
+                    keyframe = frames.size();
+                if(keyframe < 0)
+                    break;
+
+                FrameInfo info = new FrameInfo(isKeyframe, file.readLong(), file.readLong(), file.readInt(), file.readInt(),
+                        file.readInt(), file.readUTF(), file.readUTF(), keyframe);
+                info.rawLength = file.readInt();
+                info.dataOffset = file.getFilePointer();
+                info.dataLength = (int) (end - info.dataOffset);
+                frames.add(info);
+                position = end;
+            }
+        }
+
+        /**
+         * @return The number of frames in the recording.
+         */
+        int size() {
+            return frames.size();
+        }
+
+        /**
+         * @param index The index of the frame, from 0.
+         * @return What is known about the frame without decoding it.
+         */
+        FrameInfo getInfo(int index) {
+            return frames.get(index);
+        }
+
+        /**
+         * @param index The index of the frame, from 0.
+         * @return A new image of the frame.
+         * @throws IOException If the frame can not be read.
+         */
+        synchronized BufferedImage getFrame(int index) throws IOException {
+            FrameInfo target = frames.get(index);
+            int from = target.keyframe;
+            if(decoded != null && decodedIndex >= target.keyframe && decodedIndex <= index)
+                from = decodedIndex + 1;
+            else
+                decoded = new int[target.width * target.height];
+
+            for(int i = from; i <= index; i++) {
+                apply(frames.get(i));
+                decodedIndex = i;
+            }
+
+            BufferedImage image = new BufferedImage(target.width, target.height, BufferedImage.TYPE_INT_RGB);
+            int[] pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+            System.arraycopy(decoded, 0, pixels, 0, pixels.length);
+            return image;
+        }
+
+        private void apply(FrameInfo info) throws IOException {
+            byte[] compressed = new byte[info.dataLength];
+            file.seek(info.dataOffset);
+            file.readFully(compressed);
+
+            byte[] raw = new byte[info.rawLength];
+            Inflater inflater = new Inflater();
+            try {
+                inflater.setInput(compressed);
+                int n = 0;
+                while(n < raw.length && !inflater.finished())
+                    n += inflater.inflate(raw, n, raw.length - n);
+            } catch (DataFormatException e) {
+                throw new IOException("Corrupt frame " + info.frameId, e);
+            } finally {
+                inflater.end();
+            }
+
+            int[] data = new int[raw.length / 4];
+            ByteBuffer.wrap(raw).asIntBuffer().get(data);
+            if(info.isKeyframe) {
+                System.arraycopy(data, 0, decoded, 0, Math.min(data.length, decoded.length));
+                return;
+            }
+
+            int columns = (info.width + info.tileSize - 1) / info.tileSize;
+            int p = 1;
+            for(int t = 0; t < data[0]; t++) {
+                int tile = data[p++];
+                int x0 = (tile % columns) * info.tileSize;
+                int y0 = (tile / columns) * info.tileSize;
+                int tw = Math.min(info.tileSize, info.width - x0);
+                int th = Math.min(info.tileSize, info.height - y0);
+                for(int y = y0; y < y0 + th; y++) {
+                    System.arraycopy(data, p, decoded, y * info.width + x0, tw);
+                    p += tw;
+                }
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            file.close();
+        }
+
+        /**
+         * The header of a recorded frame.
+         */
+        static final class FrameInfo {
+            private final boolean isKeyframe;
+            private final long frameId;
+            private final long capturedAt;
+            private final int width;
+            private final int height;
+            private final int tileSize;
+            private final String stateId;
+            private final String action;
+            private final int keyframe;
+            private int rawLength;
+            private long dataOffset;
+            private int dataLength;
+
+            private FrameInfo(boolean isKeyframe, long frameId, long capturedAt, int width, int height, int tileSize,
+                              String stateId, String action, int keyframe) {
+                this.isKeyframe = isKeyframe;
+                this.frameId = frameId;
+                this.capturedAt = capturedAt;
+                this.width = width;
+                this.height = height;
+                this.tileSize = tileSize;
+                this.stateId = stateId;
+                this.action = action;
+                this.keyframe = keyframe;
+            }
+
+            boolean isKeyframe() {
+                return isKeyframe;
+            }
+
+            /**
+             * @return The id of the captured frame, see {@link CaptureFrame#getId()}.
+             */
+            long getFrameId() {
+                return frameId;
+            }
+
+            long getCapturedAt() {
+                return capturedAt;
+            }
+
+            int getWidth() {
+                return width;
+            }
+
+            int getHeight() {
+                return height;
+            }
+
+            String getStateId() {
+                return stateId;
+            }
+
+            /**
+             * @return The actions performed since the frame before, or an empty string.
+             */
+            String getAction() {
+                return action;
+            }
+        }
+    }
+
+    /**
+     * Pool of preallocated {@link CaptureFrame Frames} so that captures do not allocate a new full size image every time.
+     *
+     * The pool keeps at most {@code capacity} frames. If all of them are in use a new frame is allocated
+     * anyway and counted as a miss, it is kept afterwards only if the pool has room for it.
+     */
+    static final class FramePool {
+        private final int capacity;
+        private final ArrayDeque<CaptureFrame> free = new ArrayDeque<>();
+        private long nextId = 0;
+        private long acquired = 0;
+        private long misses = 0;
+        private long allocatedBytes = 0;
+
+        FramePool(int capacity) {
+            this.capacity = Math.max(capacity, 1);
+        }
+
+        /**
+         * @return A frame of the given size with one reference held by the caller. The content is undefined.
+         */
+        synchronized CaptureFrame acquire(int width, int height) {
+            CaptureFrame frame = null;
+
+            while(frame == null && !free.isEmpty()) {
+                CaptureFrame candidate = free.pop();
+                // Frames of another size (e.g. after selecting a new area) are left to the GC.
+                if(candidate.getWidth() == width && candidate.getHeight() == height)
+                    frame = candidate;
+            }
+
+            if(frame == null) {
+                frame = new CaptureFrame(this, width, height);
+                allocatedBytes += (long) width * height * 4;
+                misses++;
+            }
+
+            acquired++;
+            frame.id = ++nextId;
+            frame.references.set(1);
+            return frame;
+        }
+
+        private synchronized void recycle(CaptureFrame frame) {
+            if(free.size() < capacity)
+                free.push(frame);
+        }
+
+        synchronized long getAcquired() {
+            return acquired;
+        }
+
+        synchronized long getMisses() {
+            return misses;
+        }
+
+        synchronized long getAllocatedBytes() {
+            return allocatedBytes;
+        }
+    }
+
+    /**
+     * Snapshot of the allocation and garbage collection counters of the JVM, and of a {@link FramePool FramePool}.
+     */
+    static final class MemoryStats {
+        private final long allocatedBytes;
+        private final long gcCount;
+        private final long gcTimeMs;
+        private final long framesAcquired;
+        private final long frameMisses;
+        private final long frameBytes;
+        private final long nanoTime;
+
+        private MemoryStats(long allocatedBytes, long gcCount, long gcTimeMs, FramePool pool) {
+            this.allocatedBytes = allocatedBytes;
+            this.gcCount = gcCount;
+            this.gcTimeMs = gcTimeMs;
+            this.framesAcquired = pool == null ? 0 : pool.getAcquired();
+            this.frameMisses = pool == null ? 0 : pool.getMisses();
+            this.frameBytes = pool == null ? 0 : pool.getAllocatedBytes();
+            this.nanoTime = System.nanoTime();
+        }
+
+        static MemoryStats take(FramePool pool) {
+            long count = 0;
+            long time = 0;
+            for(GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+                count += Math.max(gc.getCollectionCount(), 0);
+                time += Math.max(gc.getCollectionTime(), 0);
+            }
+
+            return new MemoryStats(getAllocatedBytes(), count, time, pool);
+        }
+
+        /**
+         * @return The total amount of bytes allocated by all live threads, or -1 if the JVM does not support it.
+         */
+        private static long getAllocatedBytes() {
+            java.lang.management.ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+            if(!(threads instanceof com.sun.management.ThreadMXBean))
+                return -1;
+
+            com.sun.management.ThreadMXBean sunThreads = (com.sun.management.ThreadMXBean) threads;
+            if(!sunThreads.isThreadAllocatedMemorySupported() || !sunThreads.isThreadAllocatedMemoryEnabled())
+                return -1;
+
+            long total = 0;
+            for(long allocated : sunThreads.getThreadAllocatedBytes(threads.getAllThreadIds()))
+                total += Math.max(allocated, 0);
+            return total;
+        }
+
+        /**
+         * @return The bytes allocated since the other snapshot, or -1 if unknown. Threads that died in between
+         * take their allocations with them, so this is a lower bound.
+         */
+        long getAllocatedBytes(MemoryStats before) {
+            if(allocatedBytes < 0 || before.allocatedBytes < 0)
+                return -1;
+            return Math.max(allocatedBytes - before.allocatedBytes, 0);
+        }
+
+        long getGcCount(MemoryStats before) {
+            return gcCount - before.gcCount;
+        }
+
+        long getGcTimeMs(MemoryStats before) {
+            return gcTimeMs - before.gcTimeMs;
+        }
+
+        String describeSince(MemoryStats before) {
+            double seconds = Math.max(nanoTime - before.nanoTime, 1) / 1.0e9;
+            long allocated = getAllocatedBytes(before);
+            String allocation = allocated < 0 ? "n/a" : String.format("%.1f MB/s", allocated / seconds / (1024 * 1024));
+
+            return String.format("allocation rate %s | GC %d pauses, %d ms | frames %d captured, %d allocated (%.1f MB)",
+                    allocation, getGcCount(before), getGcTimeMs(before), framesAcquired - before.framesAcquired,
+                    frameMisses - before.frameMisses, (frameBytes - before.frameBytes) / (1024.0 * 1024.0));
+        }
+    }
 }
@@ -0,0 +1,98 @@
+/*
+ * Copyright 2021 to Joel Amundberg and Martin Moberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package plugin;
+
+import java.awt.*;
+import java.nio.file.Paths;
+import java.util.Arrays;
+
+/**
+ * Benchmark of the screen capture backends, {@link ImageRecognition.RobotCapturer robot} against
+ * {@link ImageRecognition.XvfbCapturer xvfb}, on the same screen.
+ *
+ * For every backend it captures the whole screen back to back, and reports the throughput and the latency of a
+ * single capture at the median, the 99th percentile and the worst. It does the same for the single rows the
+ * {@link ImageRecognition.CaptureScheduler CaptureScheduler} probes while the screen is static. Last it compares a
+ * capture of both backends, the pixels should be the same.
+ *
+ * Usage: {@code java plugin.CaptureBackendBenchmark [frames] [framebuffer file]}
+ * Needs an Xvfb display started with -fbdir, e.g.
+ * {@code Xvfb :99 -screen 0 1920x1080x24 -fbdir /dev/shm & DISPLAY=:99 java plugin.CaptureBackendBenchmark 500 /dev/shm/Xvfb_screen0}
+ */
+public class CaptureBackendBenchmark {
+    private static final int DEFAULT_FRAMES = 300;
+    private static final int WARMUP_FRAMES = 30;
+    private static final int STRIP_ROWS = 32;
+
+    public static void main(String[] args) throws Exception {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FRAMES;
+        String file = args.length > 1 ? args[1] : ImageRecognition.XvfbCapturer.DEFAULT_FILE;
+
+        Robot robot = new Robot();
+        Rectangle bounds = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDefaultConfiguration().getBounds();
+        ImageRecognition.ScreenCapturer[] capturers = {
+                new ImageRecognition.RobotCapturer(robot, STRIP_ROWS),
+                ImageRecognition.XvfbCapturer.open(Paths.get(file))
+        };
+
+        System.out.println("Capturing " + bounds.width + "x" + bounds.height + ", " + frames + " frames per run");
+        System.out.println(String.format("%-7s %-6s %10s %10s %10s %10s", "backend", "area", "frames/s", "p50 ms",
+                "p99 ms", "max ms"));
+
+        Rectangle row = new Rectangle(bounds.x, bounds.y + bounds.height / 2, bounds.width, 1);
+        for(ImageRecognition.ScreenCapturer capturer : capturers) {
+            if(!capturer.canCapture(bounds)) {
+                System.out.println(capturer.getName() + " can not capture the screen, skipped.");
+                continue;
+            }
+            run(capturer, "screen", bounds, frames);
+            run(capturer, "row", row, frames);
+        }
+
+        int[] robotPixels = new int[bounds.width * bounds.height];
+        int[] xvfbPixels = new int[bounds.width * bounds.height];
+        capturers[0].capture(bounds, robotPixels, 0, bounds.width);
+        capturers[1].capture(bounds, xvfbPixels, 0, bounds.width);
+        int different = 0;
+        for(int i = 0; i < robotPixels.length; i++) {
+            if((robotPixels[i] & 0xFFFFFF) != (xvfbPixels[i] & 0xFFFFFF))
+                different++;
+        }
+        System.out.println("Pixels that differ between the backends: " + different + " of " + robotPixels.length);
+    }
+
+    private static void run(ImageRecognition.ScreenCapturer capturer, String name, Rectangle area, int frames) {
+        int[] pixels = new int[area.width * area.height];
+        for(int i = 0; i < WARMUP_FRAMES; i++)
+            capturer.capture(area, pixels, 0, area.width);
+
+        long[] nanos = new long[frames];
+        long start = System.nanoTime();
+        for(int i = 0; i < frames; i++) {
+            long before = System.nanoTime();
+            capturer.capture(area, pixels, 0, area.width);
+            nanos[i] = System.nanoTime() - before;
+        }
+        double seconds = (System.nanoTime() - start) / 1.0e9;
+
+        Arrays.sort(nanos);
+        System.out.println(String.format("%-7s %-6s %10.1f %10.3f %10.3f %10.3f", capturer.getName(), name,
+                frames / seconds, nanos[frames / 2] / 1.0e6, nanos[Math.min(frames - 1, frames * 99 / 100)] / 1.0e6,
+                nanos[frames - 1] / 1.0e6));
+    }
+}
@@ -0,0 +1,166 @@
+/*
+ * Copyright 2021 to Joel Amundberg and Martin Moberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package plugin;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.Arrays;
+
+/**
+ * Benchmark of the screen capture path, comparing plain {@link java.awt.Robot#createScreenCapture(Rectangle)}
+ * against captures into pooled {@link ImageRecognition.CaptureFrame Frames}, and the cost of recording the frames into the
+ * {@link ImageRecognition.FrameHistory FrameHistory} on top of that. The history is measured on the screen as it is,
+ * usually static, and with a square moved across every frame so that every frame is encoded.
+ *
+ * Usage: {@code java plugin.CaptureBenchmark [frames] [strip rows...]}
+ * Needs a display, e.g. run it under Xvfb on a headless machine.
+ */
+public class CaptureBenchmark {
+    private static final int DEFAULT_FRAMES = 200;
+    private static final int WARMUP_FRAMES = 20;
+    private static final int HISTORY_FRAMES = 8;
+    private static final int HISTORY_STRIP_ROWS = 0;
+    private static final int SQUARE_SIZE = 24;
+
+    public static void main(String[] args) throws AWTException {
+        int frames = args.length > 0 ? Integer.parseInt(args[0]) : DEFAULT_FRAMES;
+        int[] stripRows = {0, 16, 32, 64};
+        if(args.length > 1) {
+            stripRows = new int[args.length - 1];
+            for(int i = 1; i < args.length; i++)
+                stripRows[i - 1] = Integer.parseInt(args[i]);
+        }
+
+        Robot robot = new Robot();
+        Rectangle bounds = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+                .getDefaultConfiguration().getBounds();
+
+        System.out.println("Capturing " + bounds.width + "x" + bounds.height + ", " + frames + " frames per run");
+        runRobot(robot, bounds, WARMUP_FRAMES);
+        report("robot", frames, runRobot(robot, bounds, frames));
+
+        for(int rows : stripRows) {
+            ImageRecognition.FramePool pool = new ImageRecognition.FramePool(4);
+            runPool(robot, bounds, pool, rows, null, false, WARMUP_FRAMES);
+            report("pool, strip rows " + rows, frames, runPool(robot, bounds, pool, rows, null, false, frames));
+        }
+
+        for(boolean changing : new boolean[]{false, true}) {
+            ImageRecognition.FramePool pool = new ImageRecognition.FramePool(4);
+            ImageRecognition.FrameHistory history = new ImageRecognition.FrameHistory(HISTORY_FRAMES);
+            runPool(robot, bounds, pool, HISTORY_STRIP_ROWS, history, changing, WARMUP_FRAMES);
+            Result result = runPool(robot, bounds, pool, HISTORY_STRIP_ROWS, history, changing, frames);
+            report("history, " + (changing ? "changing" : "as is"), frames, result);
+            System.out.println(String.format("%-22s %8.2f ms/frame recording | %d of %d kept, %d skipped, %.1f MB held",
+                    "", result.recordNanos / 1.0e6 / frames, result.kept, frames, history.getSkipped(),
+                    history.getRetainedInts() * 4 / 1048576.0));
+        }
+    }
+
+    private static Result runRobot(Robot robot, Rectangle bounds, int frames) {
+        ImageRecognition.MemoryStats before = ImageRecognition.MemoryStats.take(null);
+        long start = System.nanoTime();
+        BufferedImage current = null;
+        BufferedImage previous;
+
+        for(int i = 0; i < frames; i++) {
+            // Keep the two latest frames reachable, the same way the plugin does.
+            previous = current;
+            current = robot.createScreenCapture(bounds);
+            consume(previous);
+        }
+
+        return new Result(before, ImageRecognition.MemoryStats.take(null), System.nanoTime() - start, 0, 0);
+    }
+
+    private static Result runPool(Robot robot, Rectangle bounds, ImageRecognition.FramePool pool, int rows,
+                                  ImageRecognition.FrameHistory history, boolean changing, int frames) {
+        ImageRecognition.MemoryStats before = ImageRecognition.MemoryStats.take(pool);
+        long start = System.nanoTime();
+        long recordNanos = 0;
+        int kept = 0;
+        ImageRecognition.CaptureFrame current = null;
+        ImageRecognition.CaptureFrame previous = null;
+
+        for(int i = 0; i < frames; i++) {
+            ImageRecognition.CaptureFrame frame = pool.acquire(bounds.width, bounds.height);
+            frame.capture(robot, bounds, rows);
+            if(changing)
+                drawSquare(frame, i);
+            if(history != null) {
+                long recordStart = System.nanoTime();
+                if(history.record(frame))
+                    kept++;
+                recordNanos += System.nanoTime() - recordStart;
+            }
+
+            if(previous != null)
+                previous.release();
+            previous = current;
+            current = frame;
+            consume(previous == null ? null : previous.getImage());
+        }
+
+        if(previous != null)
+            previous.release();
+        if(current != null)
+            current.release();
+
+        return new Result(before, ImageRecognition.MemoryStats.take(pool), System.nanoTime() - start, recordNanos, kept);
+    }
+
+    /**
+     * Draw a square that moves along the diagonal with every frame, like a spinner or a dragged window would.
+     */
+    private static void drawSquare(ImageRecognition.CaptureFrame frame, int i) {
+        int[] pixels = frame.getPixels();
+        int width = frame.getWidth();
+        int span = Math.max(1, Math.min(width, frame.getHeight()) - SQUARE_SIZE);
+        int offset = (i * 7) % span;
+        for(int y = offset; y < offset + SQUARE_SIZE; y++)
+            Arrays.fill(pixels, y * width + offset, y * width + offset + SQUARE_SIZE, 0xFF0000 + i);
+    }
+
+    private static int sink = 0;
+
+    private static void consume(BufferedImage image) {
+        if(image != null)
+            sink += image.getRGB(image.getWidth() / 2, image.getHeight() / 2);
+    }
+
+    private static void report(String name, int frames, Result result) {
+        System.out.println(String.format("%-22s %8.2f ms/frame | %s", name,
+                result.nanos / 1.0e6 / frames, result.after.describeSince(result.before)));
+    }
+
+    private static final class Result {
+        private final ImageRecognition.MemoryStats before;
+        private final ImageRecognition.MemoryStats after;
+        private final long nanos;
+        private final long recordNanos;
+        private final int kept;
+
+        private Result(ImageRecognition.MemoryStats before, ImageRecognition.MemoryStats after, long nanos,
+                       long recordNanos, int kept) {
+            this.before = before;
+            this.after = after;
+            this.nanos = nanos;
+            this.recordNanos = recordNanos;
+            this.kept = kept;
+        }
+    }
+}
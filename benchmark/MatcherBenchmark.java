@@ -0,0 +1,161 @@
+/*
+ * Copyright 2021 to Joel Amundberg and Martin Moberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package plugin;
+
+import eye.Eye;
+import eye.Match;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark of the speed and accuracy of the {@link ImageRecognition.TemplateMatcher TemplateMatchers}.
+ *
+ * A synthetic GUI-like frame is generated from a seed. Templates are cut from the same frame (exact), from a
+ * rendering of the frame with anti-aliased text (anti-aliased), and from a frame that does not contain them
+ * (absent). A search counts as correct if it finds the template within two pixels of where it was cut, or finds
+ * nothing for absent templates.
+ *
+ * Usage: {@code java plugin.MatcherBenchmark [width] [height] [templates] [minimum percent] [seed]}
+ * Runs headless.
+ */
+public class MatcherBenchmark {
+    private static final int TOLERANCE_PX = 2;
+
+    public static void main(String[] args) {
+        int width = args.length > 0 ? Integer.parseInt(args[0]) : 1280;
+        int height = args.length > 1 ? Integer.parseInt(args[1]) : 720;
+        int templates = args.length > 2 ? Integer.parseInt(args[2]) : 10;
+        int minimumPercent = args.length > 3 ? Integer.parseInt(args[3]) : 90;
+        long seed = args.length > 4 ? Long.parseLong(args[4]) : 42;
+        int threads = Runtime.getRuntime().availableProcessors();
+
+        BufferedImage frame = renderFrame(width, height, seed, false);
+        BufferedImage antiAliased = renderFrame(width, height, seed, true);
+        BufferedImage other = renderFrame(width, height, seed + 1, false);
+
+        Random random = new Random(seed);
+        List<Case> cases = new ArrayList<>();
+        for(int i = 0; i < templates; i++) {
+            int tw = 40 + random.nextInt(110);
+            int th = 20 + random.nextInt(60);
+            int x = random.nextInt(width - tw);
+            int y = random.nextInt(height - th);
+            cases.add(new Case("exact", copy(frame, x, y, tw, th), new Point(x, y)));
+            cases.add(new Case("anti-aliased", copy(antiAliased, x, y, tw, th), new Point(x, y)));
+            cases.add(new Case("absent", copy(other, x, y, tw, th), null));
+        }
+
+        Map<String, ImageRecognition.TemplateMatcher> matchers = new LinkedHashMap<>();
+        matchers.put("eye-exact", new ImageRecognition.EyeMatcher(Eye.RecognitionMode.EXACT));
+        matchers.put("eye-color", new ImageRecognition.EyeMatcher(Eye.RecognitionMode.COLOR));
+        matchers.put("eye-tolerant", new ImageRecognition.EyeMatcher(Eye.RecognitionMode.TOLERANT));
+        matchers.put("pixel-exact", new ImageRecognition.PixelTemplateMatcher(0, threads));
+        matchers.put("pixel-16", new ImageRecognition.PixelTemplateMatcher(16, threads));
+        matchers.put("ncc-direct", new ImageRecognition.NccTemplateMatcher(threads, 0));
+        matchers.put("ncc-fft", new ImageRecognition.NccTemplateMatcher(threads, 1));
+
+        System.out.println("Frame " + width + "x" + height + ", " + templates + " templates per kind, minimum "
+                + minimumPercent + "%, " + threads + " threads");
+        System.out.println(String.format("%-16s %-14s %10s %10s", "matcher", "kind", "ms/search", "correct"));
+
+        for(Map.Entry<String, ImageRecognition.TemplateMatcher> entry : matchers.entrySet()) {
+            String name = entry.getKey();
+            ImageRecognition.TemplateMatcher matcher = entry.getValue();
+
+            // Warm up on one case so JIT compilation is not measured.
+            matcher.find(frame, cases.get(0).template, null, minimumPercent);
+
+            for(String kind : new String[]{"exact", "anti-aliased", "absent"}) {
+                long nanos = 0;
+                int searches = 0;
+                int correct = 0;
+
+                for(Case c : cases) {
+                    if(!c.kind.equals(kind))
+                        continue;
+
+                    long start = System.nanoTime();
+                    Match match = matcher.find(frame, c.template, null, minimumPercent);
+                    nanos += System.nanoTime() - start;
+                    searches++;
+
+                    boolean found = match != null && match.getMatchPercent() >= minimumPercent;
+                    if(c.expected == null ? !found : found && c.expected.distance(match.getX(), match.getY()) <= TOLERANCE_PX)
+                        correct++;
+                }
+
+                System.out.println(String.format("%-16s %-14s %10.1f %9d%%", name, kind,
+                        nanos / 1.0e6 / Math.max(searches, 1), correct * 100 / Math.max(searches, 1)));
+            }
+            matcher.close();
+        }
+    }
+
+    /**
+     * Render a GUI-like image of panels, buttons and labels.
+     */
+    static BufferedImage renderFrame(int width, int height, long seed, boolean antiAliasedText) {
+        Random random = new Random(seed);
+        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, antiAliasedText
+                ? RenderingHints.VALUE_TEXT_ANTIALIAS_ON : RenderingHints.VALUE_TEXT_ANTIALIAS_OFF);
+        g.setColor(new Color(238, 238, 238));
+        g.fillRect(0, 0, width, height);
+
+        for(int i = 0; i < width * height / 4000; i++) {
+            int x = random.nextInt(width);
+            int y = random.nextInt(height);
+            int w = 30 + random.nextInt(120);
+            int h = 16 + random.nextInt(30);
+            g.setColor(new Color(random.nextInt(0xFFFFFF)));
+            g.fillRoundRect(x, y, w, h, 6, 6);
+            g.setColor(Color.DARK_GRAY);
+            g.drawRoundRect(x, y, w, h, 6, 6);
+            g.setColor(random.nextBoolean() ? Color.BLACK : Color.WHITE);
+            g.setFont(new Font(Font.SANS_SERIF, Font.PLAIN, 11 + random.nextInt(6)));
+            g.drawString("Item " + random.nextInt(1000), x + 4, y + h - 5);
+        }
+
+        g.dispose();
+        return image;
+    }
+
+    private static BufferedImage copy(BufferedImage image, int x, int y, int w, int h) {
+        BufferedImage copy = new BufferedImage(w, h, BufferedImage.TYPE_INT_RGB);
+        copy.getGraphics().drawImage(image.getSubimage(x, y, w, h), 0, 0, null);
+        return copy;
+    }
+
+    private static final class Case {
+        private final String kind;
+        private final BufferedImage template;
+        private final Point expected;
+
+        private Case(String kind, BufferedImage template, Point expected) {
+            this.kind = kind;
+            this.template = template;
+            this.expected = expected;
+        }
+    }
+}
@@ -0,0 +1,234 @@
+/*
+ * Copyright 2021 to Joel Amundberg and Martin Moberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package plugin;
+
+import eye.Eye;
+import eye.Match;
+import scout.AppState;
+import scout.StateController;
+import scout.Widget;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * End-to-end benchmark of record and replay against a {@link SyntheticApp SyntheticApp}.
+ *
+ * The driver opens the application, records it into the Scout state tree the way a tester would: every widget
+ * image is cut from a capture of its state and saved to the image directory of the product, and every widget is
+ * inserted through {@link StateController#insertWidget}. It then replays the tree a number of times through
+ * {@link ImageRecognition#startSuiteRun(AppState)}, while a thread calls {@link ImageRecognition#getCapture()}
+ * like the Scout window does, and reports:
+ * <ul>
+ *     <li>states per second of every replay,</li>
+ *     <li>the time spent searching for the widgets over all attempts, found or not, in the rest of the replay
+ *     (waits and actions) and per capture,</li>
+ *     <li>flakiness: the replays that did not reach the last state, and the widgets that were found in some
+ *     replays and not in others.</li>
+ * </ul>
+ * The same seed gives the same application, so the numbers can be compared from one change to the next.
+ *
+ * Usage: {@code java plugin.ReplayBenchmark [replays] [states] [widgets per state] [animation ms] [noise percent] [seed]}
+ * Needs Scout on the classpath with a product loaded, and a display of at least 1024x700, e.g. run it under Xvfb.
+ */
+public class ReplayBenchmark {
+    private static final long CAPTURE_INTERVAL_MS = 40;
+    private static final long SETTLE_MS = 300;
+    private static final long REPLAY_TIMEOUT_MS = 600_000;
+    private static final int TEMPLATE_MARGIN = 3;
+
+    public static void main(String[] args) throws Exception {
+        int replays = args.length > 0 ? Integer.parseInt(args[0]) : 5;
+        SyntheticApp app = new SyntheticApp(SyntheticApp.Config.parse(args, 1));
+        System.out.println("Replaying " + app.getConfig() + ", " + replays + " times");
+
+        app.open();
+        ImageRecognition plugin = new ImageRecognition();
+        plugin.startSession();
+
+        AppState tree = StateController.getStateTree();
+        if(tree == null) {
+            System.err.println("Scout has no state tree, load a product before running the benchmark.");
+            System.exit(1);
+        }
+
+        CapturePump pump = new CapturePump(plugin);
+        pump.start();
+
+        long recordStart = System.nanoTime();
+        Map<String, Widget> widgets = record(app, tree, plugin);
+        System.out.println(String.format("Recorded %d widgets in %.0f ms", widgets.size(), (System.nanoTime() - recordStart) / 1.0e6));
+        System.out.println(String.format("%-7s %9s %9s %11s %11s %11s %10s %8s", "replay", "states", "states/s",
+                "total ms", "search ms", "other ms", "ms/capture", "reached"));
+
+        Map<String, int[]> foundCounts = new LinkedHashMap<>();
+        int reachedEnd = 0;
+        for(int r = 0; r < replays; r++) {
+            app.show(0);
+            Thread.sleep(SETTLE_MS);
+            for(Widget w : widgets.values())
+                w.setWidgetStatus(Widget.WidgetStatus.UNLOCATED);
+
+            List<ImageRecognition.WidgetResult> results = new ArrayList<>();
+            long capturesBefore = pump.captures.get();
+            long captureNanosBefore = pump.nanos.get();
+            long start = System.nanoTime();
+
+            ImageRecognition.SuiteRun run = plugin.startSuiteRun(tree);
+            if(run == null) {
+                System.err.println("Could not start the replay.");
+                break;
+            }
+            run.addListener(result -> {
+                synchronized (results) {
+                    results.add(result);
+                }
+            });
+            run.getDone().get(REPLAY_TIMEOUT_MS, TimeUnit.MILLISECONDS);
+
+            long totalNanos = System.nanoTime() - start;
+            long searchMs = 0;
+            synchronized (results) {
+                for(ImageRecognition.WidgetResult result : results) {
+                    searchMs += result.searchMs;
+                    int[] counts = foundCounts.computeIfAbsent(result.imageName, k -> new int[2]);
+                    counts[result.matchPercent >= 0 ? 0 : 1]++;
+                }
+            }
+
+            long captures = pump.captures.get() - capturesBefore;
+            double captureMs = captures == 0 ? 0 : (pump.nanos.get() - captureNanosBefore) / 1.0e6 / captures;
+            boolean reached = app.getShownState() == app.getStates().size() - 1;
+            if(reached)
+                reachedEnd++;
+
+            double totalMs = totalNanos / 1.0e6;
+            System.out.println(String.format("%-7d %9d %9.2f %11.0f %11d %11.0f %10.2f %8s", r + 1, run.getStatesDone(),
+                    run.getStatesDone() / (totalNanos / 1.0e9), totalMs, searchMs, totalMs - searchMs, captureMs, reached));
+        }
+
+        int flaky = 0;
+        int missed = 0;
+        for(Map.Entry<String, int[]> entry : foundCounts.entrySet()) {
+            int[] counts = entry.getValue();
+            if(counts[0] > 0 && counts[1] > 0)
+                flaky++;
+            else if(counts[0] == 0)
+                missed++;
+        }
+        System.out.println(String.format("Reached the last state in %d of %d replays | %d flaky widgets, %d never found, of %d",
+                reachedEnd, replays, flaky, missed, widgets.size()));
+
+        pump.interrupt();
+        app.close();
+        System.exit(0);
+    }
+
+    /**
+     * Record every state of the application into the state tree, from the root.
+     * @return The recorded widgets by image name.
+     */
+    private static Map<String, Widget> record(SyntheticApp app, AppState tree, ImageRecognition plugin) throws Exception {
+        Path images = Paths.get("./data/" + StateController.getProduct() + "/images/");
+        Files.createDirectories(images);
+        Robot robot = new Robot();
+        Map<String, Widget> widgets = new LinkedHashMap<>();
+        List<AppState> path = new ArrayList<>();
+        AppState state = tree;
+
+        List<List<SyntheticApp.Spec>> states = app.getStates();
+        for(int s = 0; s < states.size(); s++) {
+            app.show(s);
+            Thread.sleep(SETTLE_MS);
+            BufferedImage screen = robot.createScreenCapture(new Rectangle(0, 0, SyntheticApp.WIDTH, SyntheticApp.HEIGHT));
+            path.add(state);
+
+            // The widget leading on is inserted last, the state it returns is the next one.
+            List<SyntheticApp.Spec> specs = new ArrayList<>(states.get(s));
+            specs.sort((a, b) -> Boolean.compare(a.next, b.next));
+            AppState next = null;
+            for(int w = 0; w < specs.size(); w++) {
+                SyntheticApp.Spec spec = specs.get(w);
+                Rectangle area = new Rectangle(spec.bounds.x - TEMPLATE_MARGIN, spec.bounds.y - TEMPLATE_MARGIN,
+                        spec.bounds.width + 2 * TEMPLATE_MARGIN, spec.bounds.height + 2 * TEMPLATE_MARGIN);
+                String imageName = "synthetic-" + app.getConfig().seed + "-" + s + "-" + w + ".png";
+                Eye.savePngImage(screen.getSubimage(area.x, area.y, area.width, area.height), images.resolve(imageName).toString());
+
+                Widget widget = new Widget();
+                widget.setWidgetType(spec.next ? Widget.WidgetType.ACTION : Widget.WidgetType.CHECK);
+                if(spec.next)
+                    widget.setWidgetSubtype(Widget.WidgetSubtype.LEFT_CLICK_ACTION);
+                widget.putMetadata("IR_imageName", imageName);
+                widget.setLocationArea(area);
+                long pixels = (long) area.width * area.height;
+                plugin.putWidgetMetaData(widget, new Match(area.x, area.y, area.width, area.height, pixels, pixels, 1.0, 1.0));
+
+                AppState inserted = StateController.insertWidget(state, widget, null, StateController.getProductVersion(),
+                        StateController.getTesterName(), path);
+                if(spec.next)
+                    next = inserted;
+                widgets.put(imageName, widget);
+            }
+
+            if(next == null)
+                break;
+            state = next;
+        }
+
+        return widgets;
+    }
+
+    /**
+     * Calls {@link ImageRecognition#getCapture()} at the rate the Scout window repaints, and times the calls.
+     */
+    private static final class CapturePump extends Thread {
+        private final ImageRecognition plugin;
+        private final AtomicLong captures = new AtomicLong();
+        private final AtomicLong nanos = new AtomicLong();
+
+        CapturePump(ImageRecognition plugin) {
+            super("ReplayBenchmark-capture");
+            this.plugin = plugin;
+            setDaemon(true);
+        }
+
+        @Override
+        public void run() {
+            while(!isInterrupted()) {
+                long start = System.nanoTime();
+                plugin.getCapture();
+                nanos.addAndGet(System.nanoTime() - start);
+                captures.incrementAndGet();
+
+                try {
+                    Thread.sleep(CAPTURE_INTERVAL_MS);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,232 @@
+/*
+ * Copyright 2021 to Joel Amundberg and Martin Moberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package plugin;
+
+import eye.Eye;
+import scout.AppState;
+import scout.StateController;
+import scout.Widget;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Benchmark of how the plugin scales with the size of the state tree and of the image directory.
+ *
+ * For every size a synthetic tree is generated below the root of the Scout state tree, breadth first: every state
+ * gets the given number of widgets, of which the given number of action widgets lead to new states, until the
+ * tree has the requested number of widgets. Every widget gets its own small image in the image directory of the
+ * product. Then it measures, with the peak heap of each operation:
+ * <ul>
+ *     <li>traversal: walking every state and widget reachable from the top, see {@link ImageRecognition.SuiteRun},</li>
+ *     <li>pre-load: {@link ImageRecognition#performAllStateWidgets(int, AppState, boolean)} on every state with the
+ *     widgets already located, which loads the images of the state and does nothing else,</li>
+ *     <li>lookup: {@link ImageRecognition#getProjectFileLocationForName(String)} for every image,</li>
+ *     <li>deletion: {@link ImageRecognition#resetFromNode(AppState, List)} on the top of the tree.</li>
+ * </ul>
+ * An operation is flagged when its time grows faster than the number of widgets, by more than the exponent
+ * limit between the smallest and the largest size.
+ *
+ * Usage: {@code java plugin.ScaleBenchmark [widgets per state] [actions per state] [sizes...]}
+ * Needs Scout on the classpath with a product loaded, the images are written to the image directory of the
+ * product and deleted again. Runs headless.
+ */
+public class ScaleBenchmark {
+    private static final double EXPONENT_LIMIT = 1.25;
+    private static final int IMAGE_WIDTH = 32;
+    private static final int IMAGE_HEIGHT = 24;
+    private static final String[] OPERATIONS = {"traversal", "pre-load", "lookup", "deletion"};
+
+    public static void main(String[] args) throws Exception {
+        int widgetsPerState = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int actionsPerState = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        int[] sizes = {1000, 2500, 5000, 10000, 20000};
+        if(args.length > 2) {
+            sizes = new int[args.length - 2];
+            for(int i = 2; i < args.length; i++)
+                sizes[i - 2] = Integer.parseInt(args[i]);
+        }
+
+        ImageRecognition plugin = new ImageRecognition();
+        AppState root = StateController.getStateTree();
+        if(root == null) {
+            System.err.println("Scout has no state tree, load a product before running the benchmark.");
+            System.exit(1);
+        }
+
+        System.out.println("Trees with " + widgetsPerState + " widgets per state, " + actionsPerState + " leading on");
+        System.out.println(String.format("%-10s %8s %-10s %12s %12s %12s", "widgets", "states", "operation",
+                "total ms", "us/widget", "peak heap MB"));
+
+        Map<String, double[]> times = new LinkedHashMap<>();
+        for(String operation : OPERATIONS)
+            times.put(operation, new double[sizes.length]);
+
+        for(int i = 0; i < sizes.length; i++) {
+            Generated tree = generate(plugin, root, sizes[i], widgetsPerState, actionsPerState, i);
+            int widgets = tree.widgets.size();
+
+            measure(times, "traversal", i, widgets, tree.states, () -> {
+                ImageRecognition.SuiteRun walk = new ImageRecognition.SuiteRun(tree.top, Integer.MAX_VALUE);
+                if(walk.getTotalWidgets() != widgets)
+                    throw new IllegalStateException("Walked " + walk.getTotalWidgets() + " widgets of " + widgets);
+            });
+
+            for(Widget w : tree.widgets)
+                w.setWidgetStatus(Widget.WidgetStatus.LOCATED);
+            measure(times, "pre-load", i, widgets, tree.states, () -> {
+                for(AppState state : tree.allStates)
+                    plugin.performAllStateWidgets(0, state, false);
+            });
+
+            measure(times, "lookup", i, widgets, tree.states, () -> {
+                for(Widget w : tree.widgets)
+                    plugin.getProjectFileLocationForName((String) w.getMetadata("IR_imageName"));
+            });
+
+            // States on the current path are not deleted.
+            StateController.setCurrentState(root);
+            List<String> imageNames = new ArrayList<>();
+            measure(times, "deletion", i, widgets, tree.states, () -> plugin.resetFromNode(tree.top, imageNames));
+
+            root.removeWidget(tree.entry);
+            imageNames.add((String) tree.entry.getMetadata("IR_imageName"));
+            for(String imageName : imageNames)
+                Files.deleteIfExists(Paths.get(plugin.getProjectFileLocationForName(imageName)));
+        }
+
+        System.out.println();
+        for(Map.Entry<String, double[]> entry : times.entrySet()) {
+            double[] t = entry.getValue();
+            int last = sizes.length - 1;
+            if(last == 0 || t[0] <= 0)
+                continue;
+
+            double exponent = Math.log(t[last] / t[0]) / Math.log((double) sizes[last] / sizes[0]);
+            System.out.println(String.format("%-10s grows as n^%.2f%s", entry.getKey(), exponent,
+                    exponent > EXPONENT_LIMIT ? "  <-- super-linear" : ""));
+        }
+    }
+
+    private interface Operation {
+        void run() throws Exception;
+    }
+
+    private static void measure(Map<String, double[]> times, String name, int size, int widgets, int states,
+                                Operation operation) throws Exception {
+        System.gc();
+        List<MemoryPoolMXBean> heap = new ArrayList<>();
+        for(MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if(pool.getType() == MemoryType.HEAP) {
+                pool.resetPeakUsage();
+                heap.add(pool);
+            }
+        }
+
+        long start = System.nanoTime();
+        operation.run();
+        double ms = (System.nanoTime() - start) / 1.0e6;
+
+        long peak = 0;
+        for(MemoryPoolMXBean pool : heap)
+            peak += pool.getPeakUsage().getUsed();
+
+        times.get(name)[size] = ms;
+        System.out.println(String.format("%-10d %8d %-10s %12.1f %12.2f %12.1f", widgets, states, name, ms,
+                ms * 1000 / widgets, peak / 1048576.0));
+    }
+
+    /**
+     * A generated tree below the root.
+     */
+    private static final class Generated {
+        private Widget entry;
+        private AppState top;
+        private int states = 0;
+        private final List<AppState> allStates = new ArrayList<>();
+        private final List<Widget> widgets = new ArrayList<>();
+    }
+
+    /**
+     * Generate a tree of about the given number of widgets below the root, breadth first.
+     */
+    private static Generated generate(ImageRecognition plugin, AppState root, int size, int widgetsPerState,
+                                      int actionsPerState, int run) throws Exception {
+        Path images = Paths.get(plugin.getProjectFileLocationForName(""));
+        Random random = new Random(size);
+        Generated tree = new Generated();
+
+        tree.entry = createWidget(images, "scale-" + run + "-entry.png", true, random);
+        tree.top = StateController.insertWidget(root, tree.entry, null, StateController.getProductVersion(),
+                StateController.getTesterName(), new ArrayList<>());
+
+        ArrayDeque<AppState> open = new ArrayDeque<>();
+        open.add(tree.top);
+        while(!open.isEmpty() && tree.widgets.size() < size) {
+            AppState state = open.poll();
+            tree.allStates.add(state);
+            tree.states++;
+
+            for(int w = 0; w < widgetsPerState && tree.widgets.size() < size; w++) {
+                boolean action = w < actionsPerState;
+                String imageName = "scale-" + run + "-" + tree.widgets.size() + ".png";
+                Widget widget = createWidget(images, imageName, action, random);
+                AppState next = StateController.insertWidget(state, widget, null, StateController.getProductVersion(),
+                        StateController.getTesterName(), new ArrayList<>());
+                tree.widgets.add(widget);
+                if(action && next != null && next != state)
+                    open.add(next);
+            }
+        }
+
+        return tree;
+    }
+
+    private static Widget createWidget(Path images, String imageName, boolean action, Random random) {
+        BufferedImage image = new BufferedImage(IMAGE_WIDTH, IMAGE_HEIGHT, BufferedImage.TYPE_INT_RGB);
+        Graphics2D g = image.createGraphics();
+        g.setColor(new Color(random.nextInt(0xffffff)));
+        g.fillRect(0, 0, IMAGE_WIDTH, IMAGE_HEIGHT);
+        g.setColor(new Color(random.nextInt(0xffffff)));
+        g.drawString(imageName.substring(imageName.lastIndexOf('-') + 1), 2, IMAGE_HEIGHT - 6);
+        g.dispose();
+        Eye.savePngImage(image, images.resolve(imageName).toString());
+
+        Widget widget = new Widget();
+        widget.setWidgetType(action ? Widget.WidgetType.ACTION : Widget.WidgetType.CHECK);
+        if(action)
+            widget.setWidgetSubtype(Widget.WidgetSubtype.LEFT_CLICK_ACTION);
+        widget.putMetadata("IR_imageName", imageName);
+        Rectangle area = new Rectangle(random.nextInt(1000), random.nextInt(700), IMAGE_WIDTH, IMAGE_HEIGHT);
+        widget.setLocationArea(area);
+        widget.putMetadata("IR_x", area.x);
+        widget.putMetadata("IR_y", area.y);
+        return widget;
+    }
+}
@@ -0,0 +1,296 @@
+/*
+ * Copyright 2021 to Joel Amundberg and Martin Moberg
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+
+package plugin;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A deterministic Swing application to record and replay against, generated from a seed.
+ *
+ * The application is a chain of states. Each state shows a number of widgets at generated positions: one button
+ * that leads to the next state and labels to check for, the last state only has labels. Going to the next state
+ * slides the new state in over the animation time. A noise area in the corner repaints random pixels at a fixed
+ * rate, like a clock or a spinner would, so that the screen is never fully static.
+ *
+ * Usage: {@code java plugin.SyntheticApp [states] [widgets per state] [animation ms] [noise percent] [seed]}
+ * to look at it, {@link ReplayBenchmark ReplayBenchmark} drives it.
+ */
+public class SyntheticApp {
+    static final int WIDTH = 1024;
+    static final int HEIGHT = 700;
+    private static final int NOISE_SIZE = 120;
+    private static final int NOISE_INTERVAL_MS = 100;
+    private static final int ANIMATION_STEP_MS = 20;
+    private static final int MARGIN = 40;
+
+    private final Config config;
+    private final List<List<Spec>> states = new ArrayList<>();
+    private final AtomicInteger shownState = new AtomicInteger();
+    private final JFrame frame = new JFrame("SyntheticApp");
+    private final JPanel content = new JPanel(null);
+    private final NoisePanel noise;
+    private Timer animation = null;
+
+    /**
+     * The shape of a generated application.
+     */
+    static final class Config {
+        final int states;
+        final int widgets;
+        final int animationMs;
+        final int noisePercent;
+        final long seed;
+
+        Config(int states, int widgets, int animationMs, int noisePercent, long seed) {
+            this.states = Math.max(1, states);
+            this.widgets = Math.max(1, widgets);
+            this.animationMs = Math.max(0, animationMs);
+            this.noisePercent = Math.min(Math.max(0, noisePercent), 100);
+            this.seed = seed;
+        }
+
+        static Config parse(String[] args, int from) {
+            return new Config(
+                    args.length > from ? Integer.parseInt(args[from]) : 10,
+                    args.length > from + 1 ? Integer.parseInt(args[from + 1]) : 8,
+                    args.length > from + 2 ? Integer.parseInt(args[from + 2]) : 150,
+                    args.length > from + 3 ? Integer.parseInt(args[from + 3]) : 20,
+                    args.length > from + 4 ? Long.parseLong(args[from + 4]) : 42);
+        }
+
+        @Override
+        public String toString() {
+            return states + " states, " + widgets + " widgets per state, " + animationMs + " ms animation, "
+                    + noisePercent + "% noise, seed " + seed;
+        }
+    }
+
+    /**
+     * A generated widget, its bounds are relative to the window.
+     */
+    static final class Spec {
+        final String text;
+        final Rectangle bounds;
+        final Color background;
+        final boolean next;
+
+        private Spec(String text, Rectangle bounds, Color background, boolean next) {
+            this.text = text;
+            this.bounds = bounds;
+            this.background = background;
+            this.next = next;
+        }
+    }
+
+    SyntheticApp(Config config) {
+        this.config = config;
+        Random random = new Random(config.seed);
+
+        for(int s = 0; s < config.states; s++) {
+            List<Spec> widgets = new ArrayList<>();
+            boolean last = s == config.states - 1;
+            for(int w = 0; w < config.widgets; w++) {
+                Rectangle bounds = place(random, widgets);
+                if(bounds == null)
+                    break;
+                Color background = Color.getHSBColor(random.nextFloat(), 0.3f + random.nextFloat() * 0.5f, 0.8f);
+                boolean next = !last && w == 0;
+                String text = (next ? "Next " : "Item ") + s + "-" + w + " " + Long.toString(random.nextLong() & 0xffffff, 36);
+                widgets.add(new Spec(text, bounds, background, next));
+            }
+            states.add(widgets);
+        }
+
+        noise = new NoisePanel(config.noisePercent, config.seed);
+        content.setBackground(Color.WHITE);
+        frame.setUndecorated(true);
+        frame.setContentPane(content);
+        frame.setBounds(0, 0, WIDTH, HEIGHT);
+        frame.setDefaultCloseOperation(WindowConstants.DISPOSE_ON_CLOSE);
+    }
+
+    /**
+     * Find a place for a widget that does not overlap the others or the noise area.
+     */
+    private static Rectangle place(Random random, List<Spec> placed) {
+        Rectangle noiseArea = new Rectangle(WIDTH - NOISE_SIZE - MARGIN, MARGIN, NOISE_SIZE, NOISE_SIZE);
+        for(int attempt = 0; attempt < 200; attempt++) {
+            int w = 110 + random.nextInt(90);
+            int h = 28 + random.nextInt(16);
+            Rectangle bounds = new Rectangle(MARGIN + random.nextInt(WIDTH - w - 2 * MARGIN),
+                    MARGIN + random.nextInt(HEIGHT - h - 2 * MARGIN), w, h);
+            Rectangle padded = new Rectangle(bounds.x - 12, bounds.y - 12, bounds.width + 24, bounds.height + 24);
+
+            boolean free = !padded.intersects(noiseArea);
+            for(Spec spec : placed)
+                free &= !padded.intersects(spec.bounds);
+            if(free)
+                return bounds;
+        }
+        return null;
+    }
+
+    Config getConfig() {
+        return config;
+    }
+
+    /**
+     * @return The generated widgets of every state.
+     */
+    List<List<Spec>> getStates() {
+        return states;
+    }
+
+    /**
+     * @return The state that is shown, it changes once an animation has finished.
+     */
+    int getShownState() {
+        return shownState.get();
+    }
+
+    /**
+     * Show the window with the first state.
+     */
+    void open() throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+            build(0, 0);
+            frame.setVisible(true);
+            frame.toFront();
+            noise.start();
+        });
+    }
+
+    void close() throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+            noise.stop();
+            frame.dispose();
+        });
+    }
+
+    /**
+     * Show a state right away, without animation.
+     */
+    void show(int state) throws Exception {
+        SwingUtilities.invokeAndWait(() -> {
+            if(animation != null)
+                animation.stop();
+            build(state, 0);
+        });
+    }
+
+    private void advance(int from) {
+        int to = from + 1;
+        if(to >= states.size() || animation != null && animation.isRunning())
+            return;
+
+        int steps = config.animationMs / ANIMATION_STEP_MS;
+        if(steps == 0) {
+            build(to, 0);
+            return;
+        }
+
+        // Slide the next state in from the right.
+        int[] step = {0};
+        animation = new Timer(ANIMATION_STEP_MS, e -> {
+            step[0]++;
+            build(to, (WIDTH * (steps - step[0])) / steps);
+            if(step[0] >= steps)
+                ((Timer) e.getSource()).stop();
+        });
+        build(to, WIDTH);
+        animation.start();
+    }
+
+    private void build(int state, int offsetX) {
+        content.removeAll();
+        for(Spec spec : states.get(state)) {
+            JComponent widget;
+            if(spec.next) {
+                JButton button = new JButton(spec.text);
+                button.setFocusPainted(false);
+                button.addActionListener(e -> advance(state));
+                widget = button;
+            }
+            else {
+                JLabel label = new JLabel(spec.text, SwingConstants.CENTER);
+                label.setOpaque(true);
+                widget = label;
+            }
+            widget.setBackground(spec.background);
+            widget.setBorder(BorderFactory.createLineBorder(spec.background.darker(), 2));
+            widget.setBounds(spec.bounds.x + offsetX, spec.bounds.y, spec.bounds.width, spec.bounds.height);
+            content.add(widget);
+        }
+        noise.setBounds(WIDTH - NOISE_SIZE - MARGIN, MARGIN, NOISE_SIZE, NOISE_SIZE);
+        content.add(noise);
+        content.revalidate();
+        content.repaint();
+
+        if(offsetX == 0)
+            shownState.set(state);
+    }
+
+    /**
+     * Repaints a share of its pixels with random colors at a fixed rate.
+     */
+    private static final class NoisePanel extends JComponent {
+        private static final long serialVersionUID = 1L;
+        private final BufferedImage image = new BufferedImage(NOISE_SIZE, NOISE_SIZE, BufferedImage.TYPE_INT_RGB);
+        private final Random random;
+        private final int percent;
+        private final Timer timer;
+
+        NoisePanel(int percent, long seed) {
+            this.percent = percent;
+            this.random = new Random(seed);
+            this.timer = new Timer(NOISE_INTERVAL_MS, e -> tick());
+        }
+
+        void start() {
+            if(percent > 0)
+                timer.start();
+        }
+
+        void stop() {
+            timer.stop();
+        }
+
+        private void tick() {
+            int pixels = NOISE_SIZE * NOISE_SIZE * percent / 100;
+            for(int i = 0; i < pixels; i++)
+                image.setRGB(random.nextInt(NOISE_SIZE), random.nextInt(NOISE_SIZE), random.nextInt(0xffffff));
+            repaint();
+        }
+
+        @Override
+        protected void paintComponent(Graphics g) {
+            g.drawImage(image, 0, 0, null);
+        }
+    }
+
+    public static void main(String[] args) throws Exception {
+        SyntheticApp app = new SyntheticApp(Config.parse(args, 0));
+        System.out.println("SyntheticApp: " + app.getConfig());
+        app.open();
+    }
+}